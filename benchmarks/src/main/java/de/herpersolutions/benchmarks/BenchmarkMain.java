@@ -0,0 +1,25 @@
+package de.herpersolutions.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Runs JMH with the usual command line, but writes results as JSON to
+ * {@code jmh-results.json} unless {@code -rf}/{@code -rff} say otherwise,
+ * so runs of different releases can be diffed.
+ */
+public class BenchmarkMain {
+    static final String DEFAULT_RESULT_FILE = "jmh-results.json";
+
+    public static void main(String[] args) throws Exception {
+        List<String> argv = new ArrayList<>(Arrays.asList(args));
+        if (!argv.contains("-rf"))
+            argv.addAll(List.of("-rf", "json"));
+        if (!argv.contains("-rff"))
+            argv.addAll(List.of("-rff", DEFAULT_RESULT_FILE));
+        Main.main(argv.toArray(new String[0]));
+    }
+}
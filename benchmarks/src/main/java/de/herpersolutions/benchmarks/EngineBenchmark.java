@@ -0,0 +1,99 @@
+package de.herpersolutions.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xbill.DNS.Type;
+
+import de.herpersolutions.Zones.ZoneStore;
+import de.herpersolutions.cache.DnsCache;
+import de.herpersolutions.engine.AuthoritativeEngine;
+import de.herpersolutions.engine.Reply;
+import de.herpersolutions.engine.WireQuery;
+import de.herpersolutions.monitoring.DnsMetrics;
+import de.herpersolutions.monitoring.QueryLog;
+
+/**
+ * {@link AuthoritativeEngine#answer} for the common response shapes, with and
+ * without the response cache, from the heap and the off-heap record store. Query logging is sampled away and rate limiting
+ * is off, so only resolution and encoding are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineBenchmark {
+    @Param({ "false", "true" })
+    public boolean cache;
+
+    @Param({ "false", "true" })
+    public boolean offHeap;
+
+    private AuthoritativeEngine engine;
+    private QueryLog queryLog;
+    private InetAddress client;
+    // Reused like a UDP worker's
+    private final Reply reply = new Reply();
+
+    private WireQuery hit, nxdomain, nodata, cnameWithGlue;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ZoneStore store = Fixtures.store(100);
+        DnsMetrics metrics = new DnsMetrics();
+        queryLog = new QueryLog(metrics, 0, 1024, 0, null);
+        DnsCache dnsCache = cache ? new DnsCache(300_000, 100_000, metrics) : null;
+        engine = new AuthoritativeEngine(store, metrics, null, dnsCache, queryLog, null, 1232, offHeap);
+        client = InetAddress.getByName("198.51.100.7");
+
+        hit = Fixtures.wireQuery("www.zone42.test.", Type.A);
+        nxdomain = Fixtures.wireQuery("www.not-served.example.", Type.A);
+        nodata = Fixtures.wireQuery("www.zone42.test.", Type.TXT);
+        cnameWithGlue = Fixtures.wireQuery("alias.zone42.test.", Type.A);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        queryLog.close();
+    }
+
+    @Benchmark
+    public Reply hit() {
+        engine.answer(hit, client, true, reply);
+        return reply;
+    }
+
+    @Benchmark
+    public Reply nxdomain() {
+        engine.answer(nxdomain, client, true, reply);
+        return reply;
+    }
+
+    @Benchmark
+    public Reply nodata() {
+        engine.answer(nodata, client, true, reply);
+        return reply;
+    }
+
+    @Benchmark
+    public Reply cnameWithGlue() {
+        engine.answer(cnameWithGlue, client, true, reply);
+        return reply;
+    }
+}
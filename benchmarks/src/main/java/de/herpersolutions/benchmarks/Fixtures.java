@@ -0,0 +1,72 @@
+package de.herpersolutions.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+
+import de.herpersolutions.Zones.JsonRecord;
+import de.herpersolutions.Zones.JsonZone;
+import de.herpersolutions.Zones.ZoneStore;
+import de.herpersolutions.engine.WireQuery;
+
+/**
+ * Zone data and queries shared by the benchmarks.
+ */
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    /**
+     * A small zone with an A record, a CNAME to it, an MX with in-zone glue and two NS hosts.
+     */
+    static JsonZone exampleZone(String origin) {
+        JsonZone z = new JsonZone();
+        z.setOrigin(origin);
+        z.setAdmin("hostmaster." + origin);
+        z.setNs(Arrays.asList("ns1." + origin, "ns2." + origin));
+        z.setRecords(new ArrayList<>(Arrays.asList(
+                new JsonRecord("@", "A", 60, "192.0.2.1", null),
+                new JsonRecord("www", "A", 300, "192.0.2.10", null),
+                new JsonRecord("www", "AAAA", 300, "2001:db8::10", null),
+                new JsonRecord("alias", "CNAME", 300, "www." + origin, null),
+                new JsonRecord("@", "MX", 300, "mail." + origin, 10),
+                new JsonRecord("mail", "A", 300, "192.0.2.25", null),
+                new JsonRecord("ns1", "A", 300, "192.0.2.53", null),
+                new JsonRecord("ns2", "A", 300, "192.0.2.54", null),
+                new JsonRecord("@", "TXT", 300, "v=spf1 mx -all", null))));
+        return z;
+    }
+
+    /**
+     * A store holding {@code count} zones named {@code zone<i>.test.}, without touching disk.
+     */
+    static ZoneStore store(int count) throws IOException {
+        List<JsonZone> zones = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            zones.add(exampleZone("zone" + i + ".test."));
+        ZoneStore store = new ZoneStore(Files.createTempDirectory("jdns-bench"));
+        store.putZones(zones);
+        return store;
+    }
+
+    static byte[] query(String name, int type) throws IOException {
+        Message q = Message.newQuery(Record.newRecord(Name.fromString(name), type, DClass.IN));
+        return q.toWire();
+    }
+
+    /** A query as the listener hands it to the engine. */
+    static WireQuery wireQuery(String name, int type) throws IOException {
+        byte[] wire = query(name, type);
+        WireQuery q = new WireQuery();
+        if (!q.parse(wire, wire.length))
+            throw new IOException("malformed query for " + name);
+        return q;
+    }
+}
@@ -0,0 +1,70 @@
+package de.herpersolutions.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Type;
+
+import de.herpersolutions.monitoring.DnsMetrics;
+import de.herpersolutions.monitoring.PrometheusExporter;
+
+/**
+ * What {@link DnsMetrics} records for every answered query (query and qtype
+ * counters, the QPS window, the zone counter and a latency sample), from
+ * several threads at once, as the UDP workers do; and a Prometheus scrape of
+ * 200 zones' worth of metrics (run with {@code -prof gc} to see what it allocates).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class MetricsBenchmark {
+    private DnsMetrics metrics;
+    private Name zone;
+    private PrometheusExporter exporter;
+    private final OutputStream sink = OutputStream.nullOutputStream();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        metrics = new DnsMetrics();
+        zone = Name.fromString("zone42.test.");
+        exporter = new PrometheusExporter(metrics);
+        exporter.gauge("jdns_zones", "Zones loaded", () -> 200);
+        for (int i = 0; i < 200; i++) {
+            metrics.recordQuery(i % 2 == 0 ? Type.A : Type.AAAA);
+            metrics.recordZoneQuery(Name.fromString("zone" + i + ".test."));
+            metrics.recordLatency(true, 10_000L * i);
+        }
+    }
+
+    @Benchmark
+    public void recordQuery() {
+        metrics.recordQuery(Type.A);
+        metrics.recordZoneQuery(zone);
+        metrics.recordSuccess();
+        metrics.recordLatency(true, 25_000);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void scrape() throws IOException {
+        exporter.write(sink, true);
+    }
+}
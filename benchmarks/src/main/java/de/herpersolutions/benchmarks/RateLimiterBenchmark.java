@@ -0,0 +1,73 @@
+package de.herpersolutions.benchmarks;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.herpersolutions.security.RateLimiter;
+
+/**
+ * {@link RateLimiter#isAllowed} shared by several threads: all threads hitting
+ * one client's bucket (worst-case CAS contention), and each thread spraying
+ * many distinct clients (table probing and slot recycling).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class RateLimiterBenchmark {
+    private RateLimiter limiter;
+    private InetAddress hot;
+
+    @State(Scope.Thread)
+    public static class Clients {
+        private static final int POOL = 4096;
+        InetAddress[] addresses = new InetAddress[POOL];
+
+        @Setup(Level.Trial)
+        public void setUp() throws UnknownHostException {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            for (int i = 0; i < POOL; i++) {
+                byte[] a = { (byte) 10, (byte) rnd.nextInt(256), (byte) rnd.nextInt(256), (byte) rnd.nextInt(256) };
+                addresses[i] = InetAddress.getByAddress(a);
+            }
+        }
+
+        InetAddress next() {
+            return addresses[ThreadLocalRandom.current().nextInt(POOL)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws UnknownHostException {
+        limiter = new RateLimiter(1000, 1000, 65536);
+        hot = InetAddress.getByName("192.0.2.1");
+    }
+
+    @Benchmark
+    public boolean sameClient() {
+        return limiter.isAllowed(hot);
+    }
+
+    @Benchmark
+    public boolean distinctClients(Clients clients) {
+        return limiter.isAllowed(clients.next());
+    }
+}
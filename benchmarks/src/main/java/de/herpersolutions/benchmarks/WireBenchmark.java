@@ -0,0 +1,79 @@
+package de.herpersolutions.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import de.herpersolutions.engine.WireQuery;
+
+/**
+ * Parsing a received query, with dnsjava and with the listener's pre-parser,
+ * and serializing a typical response with dnsjava.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireBenchmark {
+    private byte[] queryWire;
+    private Message response;
+    private final WireQuery preParsed = new WireQuery();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        queryWire = Fixtures.query("www.example.com.", Type.A);
+
+        Name origin = Name.fromString("example.com.");
+        Name www = Name.fromString("www.example.com.");
+        Message query = new Message(queryWire);
+        response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.AA);
+        response.addRecord(query.getQuestion(), Section.QUESTION);
+        response.addRecord(new ARecord(www, DClass.IN, 300, InetAddress.getByName("192.0.2.10")), Section.ANSWER);
+        response.addRecord(new AAAARecord(www, DClass.IN, 300, InetAddress.getByName("2001:db8::10")), Section.ANSWER);
+        for (int i = 1; i <= 2; i++) {
+            Name ns = Name.fromString("ns" + i + ".example.com.");
+            response.addRecord(new NSRecord(origin, DClass.IN, 300, ns), Section.AUTHORITY);
+            response.addRecord(new ARecord(ns, DClass.IN, 300, InetAddress.getByName("192.0.2.5" + i)), Section.ADDITIONAL);
+        }
+    }
+
+    @Benchmark
+    public Message parseQuery() throws IOException {
+        return new Message(queryWire);
+    }
+
+    @Benchmark
+    public boolean preParseQuery() {
+        return preParsed.parse(queryWire, queryWire.length);
+    }
+
+    @Benchmark
+    public byte[] encodeResponse() {
+        return response.toWire();
+    }
+}
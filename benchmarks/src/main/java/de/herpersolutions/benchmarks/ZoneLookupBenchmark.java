@@ -0,0 +1,65 @@
+package de.herpersolutions.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xbill.DNS.Name;
+
+import de.herpersolutions.Zones.JsonZone;
+import de.herpersolutions.Zones.ZoneStore;
+
+/**
+ * {@link ZoneStore#getZoneByName} against stores of increasing size. Names are
+ * picked from a pre-built pool so the lookup, not name parsing, is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZoneLookupBenchmark {
+    private static final int POOL = 1024;
+
+    @Param({ "10", "1000", "100000" })
+    public int zones;
+
+    private ZoneStore store;
+    private Name[] served;
+    private Name[] unserved;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        store = Fixtures.store(zones);
+        served = new Name[POOL];
+        unserved = new Name[POOL];
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        for (int i = 0; i < POOL; i++) {
+            served[i] = Name.fromString("host" + i + ".www.zone" + rnd.nextInt(zones) + ".test.");
+            unserved[i] = Name.fromString("host" + i + ".www.zone" + i + ".invalid.");
+        }
+    }
+
+    @Benchmark
+    public JsonZone served() {
+        return store.getZoneByName(served[ThreadLocalRandom.current().nextInt(POOL)]);
+    }
+
+    @Benchmark
+    public JsonZone unserved() {
+        return store.getZoneByName(unserved[ThreadLocalRandom.current().nextInt(POOL)]);
+    }
+}
@@ -1,18 +1,23 @@
 package de.herpersolutions;
 
 import java.io.IOException;
-import java.net.UnknownHostException;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xbill.DNS.TextParseException;
 
+import de.herpersolutions.Zones.JsonZone;
 import de.herpersolutions.Zones.ZoneStore;
 import de.herpersolutions.api.ManagementApi;
+import de.herpersolutions.cache.DnsCache;
 import de.herpersolutions.engine.AuthoritativeEngine;
 import de.herpersolutions.engine.DnsListener;
 import de.herpersolutions.monitoring.DnsMetrics;
+import de.herpersolutions.monitoring.PrometheusExporter;
+import de.herpersolutions.monitoring.QueryLog;
+import de.herpersolutions.security.NetworkAcl;
 import de.herpersolutions.security.RateLimiter;
+import de.herpersolutions.security.ResponseRateLimiter;
 import io.github.cdimascio.dotenv.Dotenv;
 
 /**
@@ -34,10 +39,14 @@ public class App
         }
             
         Config cfg = Config.fromArgs(dotenv);
-        ZoneStore store = new ZoneStore(cfg.dataDir);
+        ZoneStore store = new ZoneStore(cfg.dataDir, cfg.ixfrJournalSize);
         DnsMetrics metrics = new DnsMetrics();
         RateLimiter rateLimiter = cfg.rateLimitEnabled ? 
-            new RateLimiter(cfg.maxQueriesPerSecond, 1000) : null;
+            new RateLimiter(cfg.maxQueriesPerSecond, 1000, cfg.rateLimitTableSize) : null;
+        ResponseRateLimiter responseRateLimiter = cfg.rrlResponsesPerSecond > 0 ?
+            new ResponseRateLimiter(cfg.rrlResponsesPerSecond, cfg.rrlSlip, cfg.rateLimitTableSize) : null;
+        DnsCache cache = cfg.cacheMaxEntries > 0 ?
+            new DnsCache(cfg.cacheTtlMs, cfg.cacheMaxEntries, metrics) : null;
 
         try {
             store.loadAll();
@@ -46,27 +55,116 @@ public class App
             return;
         }
 
+        QueryLog queryLog;
+        try {
+            queryLog = new QueryLog(metrics, cfg.queryLogSampleRate, cfg.queryLogBufferSize,
+                cfg.rateLimitLogSummaryMs, cfg.queryLogFile);
+        } catch (IOException e) {
+            logger.error("Failed to open query log", e);
+            return;
+        }
+
         AuthoritativeEngine engine;
         try {
-            engine = new AuthoritativeEngine(store, metrics, rateLimiter);
-        } catch (TextParseException | UnknownHostException e) {
+            engine = new AuthoritativeEngine(store, metrics, rateLimiter, cache, queryLog,
+                responseRateLimiter, cfg.ednsUdpPayload, cfg.offHeapRecords);
+        } catch (IOException e) {
             logger.error("Failed to create AuthoritativeEngine", e);
             return;
         }
+        try {
+            engine.setTransferAcl(NetworkAcl.parse(cfg.transferAllow));
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid JDNS_TRANSFER_ALLOW, zone transfers are disabled: {}", e.getMessage());
+        }
         
-        DnsListener listener = new DnsListener(cfg.port, engine, metrics);
-        ManagementApi managementApi = new ManagementApi(cfg.managementPort, store, metrics, engine);
+        ZoneWatcher zoneWatcher = null;
+        if (cfg.zoneWatch) {
+            try {
+                zoneWatcher = new ZoneWatcher(store, engine, cfg.zoneWatchDebounceMs);
+            } catch (IOException e) {
+                logger.error("Failed to watch zone directory, changes need a manual reload", e);
+            }
+        }
+        final ZoneWatcher watcher = zoneWatcher;
+
+        SecondaryZones secondaryZones = null;
+        if (!cfg.secondaryZones.isBlank()) {
+            try {
+                secondaryZones = new SecondaryZones(store, engine, metrics, SecondaryZones.parseAddress(cfg.primary),
+                    SecondaryZones.parseOrigins(cfg.secondaryZones));
+                engine.setNotifyHandler(secondaryZones::notify);
+                logger.info("Secondary for {} from primary {}", cfg.secondaryZones, cfg.primary);
+            } catch (IllegalArgumentException e) {
+                logger.error("Invalid JDNS_PRIMARY or JDNS_SECONDARY_ZONES, secondary zones are not refreshed: {}",
+                    e.getMessage());
+            }
+        }
+        final SecondaryZones secondaries = secondaryZones;
+
+        ZoneWriter zoneWriter = null;
+        try {
+            zoneWriter = new ZoneWriter(store, engine, cfg.writeBatchSize, cfg.walCompactIntervalMs);
+        } catch (IOException e) {
+            logger.error("Failed to open the write-ahead log, zone changes via the API and dynamic updates are disabled", e);
+        }
+        final ZoneWriter writer = zoneWriter;
+
+        if (!cfg.tsigKeys.isBlank() && writer != null) {
+            try {
+                DynamicUpdates updates = new DynamicUpdates(store, writer, metrics,
+                    DynamicUpdates.parseKeys(cfg.tsigKeys),
+                    secondaries == null ? Set.of() : secondaries.origins(), cfg.ednsUdpPayload);
+                engine.setUpdateHandler(updates::update);
+                logger.info("Dynamic updates enabled");
+            } catch (IllegalArgumentException e) {
+                logger.error("Invalid JDNS_TSIG_KEYS, dynamic updates are disabled: {}", e.getMessage());
+            }
+        }
+        
+        DnsListener listener = new DnsListener(cfg, engine, metrics);
+        PrometheusExporter prometheus = new PrometheusExporter(metrics);
+        prometheus.gauge("jdns_zones", "Zones loaded", store.zones::size);
+        prometheus.gauge("jdns_zone_records", "Records in all loaded zones, SOA and NS excluded", () -> {
+            long n = 0;
+            for (JsonZone z : store.zones.values())
+                n += z.getRecords().size();
+            return n;
+        });
+        if (cache != null)
+            prometheus.gauge("jdns_cache_entries", "Responses in the cache", cache::size);
+        if (rateLimiter != null)
+            prometheus.gauge("jdns_rate_limit_max_qps", "Queries per second allowed per client", () -> cfg.maxQueriesPerSecond);
+        if (responseRateLimiter != null)
+            prometheus.gauge("jdns_rrl_max_responses_per_second", "Identical responses per second allowed per client network",
+                () -> cfg.rrlResponsesPerSecond);
+        if (cfg.offHeapRecords)
+            prometheus.gauge("jdns_off_heap_bytes", "Bytes held by the off-heap record store", engine::offHeapBytes);
+        ManagementApi managementApi = new ManagementApi(cfg.managementPort, store, metrics, engine, prometheus,
+            cfg.apiToken.isBlank() ? null : writer, cfg.apiToken);
+        if (cfg.apiToken.isBlank())
+            logger.info("Zone changes via the API are disabled; set JDNS_API_TOKEN to enable them");
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             logger.info("Shutting down DNS server...");
+            if (watcher != null)
+                watcher.close();
+            if (secondaries != null)
+                secondaries.close();
             listener.close();
             managementApi.stop();
+            if (writer != null)
+                writer.close();
+            queryLog.close();
             try { store.saveAll(); } catch (Exception e) { logger.error("Failed to save zone data", e); }
         }));
 
         logger.info("JDNS Server listening on UDP/TCP localhost:{} zones={} dataDir={}",
                 cfg.port, store.zones.size(), cfg.dataDir.toAbsolutePath());
 
+        if (cfg.offHeapRecords)
+            logger.info("Off-heap record store: {} MB", engine.offHeapBytes() / (1024 * 1024));
+
         logger.info("Running Management API on http://localhost:{}", cfg.managementPort);
 
         // Keep running forever
@@ -13,15 +13,75 @@ public class Config {
     int port;
     int managementPort;
     Path dataDir;
+    boolean zoneWatch;
+    long zoneWatchDebounceMs;
+    boolean offHeapRecords;
     int maxQueriesPerSecond;
     boolean rateLimitEnabled;
+    int rateLimitTableSize;
+    int rrlResponsesPerSecond;
+    int rrlSlip;
+    int cacheMaxEntries;
+    long cacheTtlMs;
+    int udpWorkers;
+    int ednsUdpPayload;
+    boolean tcpVirtualThreads;
+    int tcpMaxConnections;
+    int tcpIdleTimeoutMs;
+    int tcpReadTimeoutMs;
+    int queryLogSampleRate;
+    int queryLogBufferSize;
+    long rateLimitLogSummaryMs;
+    Path queryLogFile;
+    String transferAllow;
+    int ixfrJournalSize;
+    String primary;
+    String secondaryZones;
+    int writeBatchSize;
+    long walCompactIntervalMs;
+    String tsigKeys;
+    String apiToken;
 
     static Config fromArgs(Dotenv dotenv) {
         int port = Integer.parseInt(dotenv.get("JDNS_PORT", "53"));
         int managementPort = Integer.parseInt(dotenv.get("JDNS_MGMT_PORT", "8080"));
         Path dataDir = Paths.get(dotenv.get("JDNS_DATA_DIR", ".data"));
+        boolean zoneWatch = Boolean.parseBoolean(dotenv.get("JDNS_ZONE_WATCH", "true"));
+        long zoneWatchDebounceMs = Long.parseLong(dotenv.get("JDNS_ZONE_WATCH_DEBOUNCE_MS", "500"));
+        boolean offHeapRecords = Boolean.parseBoolean(dotenv.get("JDNS_OFF_HEAP_RECORDS", "false"));
         int maxQueriesPerSecond = Integer.parseInt(dotenv.get("JDNS_MAX_QPS", "100"));
         boolean rateLimitEnabled = Boolean.parseBoolean(dotenv.get("JDNS_RATE_LIMIT", "true"));
-        return new Config(port, managementPort, dataDir, maxQueriesPerSecond, rateLimitEnabled);
+        int rateLimitTableSize = Integer.parseInt(dotenv.get("JDNS_RATE_LIMIT_TABLE_SIZE", "65536"));
+        int rrlResponsesPerSecond = Integer.parseInt(dotenv.get("JDNS_RRL_RESPONSES_PER_SECOND", "0"));
+        int rrlSlip = Integer.parseInt(dotenv.get("JDNS_RRL_SLIP", "2"));
+        int cacheMaxEntries = Integer.parseInt(dotenv.get("JDNS_CACHE_SIZE", "100000"));
+        long cacheTtlMs = Long.parseLong(dotenv.get("JDNS_CACHE_TTL", "300")) * 1000;
+        int udpWorkers = Integer.parseInt(dotenv.get("JDNS_UDP_WORKERS",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int ednsUdpPayload = Integer.parseInt(dotenv.get("JDNS_EDNS_UDP_PAYLOAD", "1232"));
+        boolean tcpVirtualThreads = Boolean.parseBoolean(dotenv.get("JDNS_TCP_VIRTUAL_THREADS", "true"));
+        int tcpMaxConnections = Integer.parseInt(dotenv.get("JDNS_TCP_MAX_CONNECTIONS", "1000"));
+        int tcpIdleTimeoutMs = Integer.parseInt(dotenv.get("JDNS_TCP_IDLE_TIMEOUT_MS", "10000"));
+        int tcpReadTimeoutMs = Integer.parseInt(dotenv.get("JDNS_TCP_READ_TIMEOUT_MS", "3000"));
+        int queryLogSampleRate = Integer.parseInt(dotenv.get("JDNS_QUERY_LOG_SAMPLE", "1"));
+        int queryLogBufferSize = Integer.parseInt(dotenv.get("JDNS_QUERY_LOG_BUFFER", "65536"));
+        long rateLimitLogSummaryMs = Long.parseLong(dotenv.get("JDNS_RATE_LIMIT_LOG_SUMMARY_MS", "10000"));
+        String queryLogFile = dotenv.get("JDNS_QUERY_LOG_FILE", "");
+        String transferAllow = dotenv.get("JDNS_TRANSFER_ALLOW", "127.0.0.1,::1");
+        int ixfrJournalSize = Integer.parseInt(dotenv.get("JDNS_IXFR_JOURNAL_SIZE", "100"));
+        String primary = dotenv.get("JDNS_PRIMARY", "");
+        String secondaryZones = dotenv.get("JDNS_SECONDARY_ZONES", "");
+        int writeBatchSize = Integer.parseInt(dotenv.get("JDNS_WRITE_BATCH_SIZE", "1000"));
+        long walCompactIntervalMs = Long.parseLong(dotenv.get("JDNS_WAL_COMPACT_INTERVAL_MS", "10000"));
+        String tsigKeys = dotenv.get("JDNS_TSIG_KEYS", "");
+        String apiToken = dotenv.get("JDNS_API_TOKEN", "");
+        return new Config(port, managementPort, dataDir, zoneWatch, zoneWatchDebounceMs, offHeapRecords,
+                maxQueriesPerSecond, rateLimitEnabled,
+                rateLimitTableSize, rrlResponsesPerSecond, rrlSlip, cacheMaxEntries, cacheTtlMs, udpWorkers, ednsUdpPayload,
+                tcpVirtualThreads, tcpMaxConnections,
+                tcpIdleTimeoutMs, tcpReadTimeoutMs, queryLogSampleRate, queryLogBufferSize,
+                rateLimitLogSummaryMs, queryLogFile.isEmpty() ? null : Paths.get(queryLogFile),
+                transferAllow, ixfrJournalSize, primary, secondaryZones, writeBatchSize, walCompactIntervalMs,
+                tsigKeys, apiToken);
     }
 }
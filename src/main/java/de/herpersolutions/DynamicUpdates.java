@@ -0,0 +1,533 @@
+package de.herpersolutions;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Opcode;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Serial;
+import org.xbill.DNS.TSIG;
+import org.xbill.DNS.TSIGRecord;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+import de.herpersolutions.Zones.JsonRecord;
+import de.herpersolutions.Zones.JsonZone;
+import de.herpersolutions.Zones.ZoneStore;
+import de.herpersolutions.engine.AuthoritativeEngine;
+import de.herpersolutions.monitoring.DnsMetrics;
+
+/**
+ * Applies dynamic UPDATE messages (RFC 2136) to the zones in the store.
+ * Updates must be signed with one of the configured TSIG keys (RFC 8945);
+ * any key may update any zone served here as a primary, updates to
+ * secondary zones are refused.
+ * <p>
+ * Each update is an edit queued on the {@link ZoneWriter}: on the thread
+ * that changes the zone the prerequisites are checked against the zone as it is then, and the
+ * changed RRsets go into its write-ahead log like changes from the
+ * management API, so nothing else changes the zone in between and the zone
+ * file is written later. The response is sent once the changes are in the
+ * log and served, the zone's serial incremented once. Updates to zones on
+ * different writer threads are applied side by side.
+ */
+public class DynamicUpdates {
+    private static final Logger logger = LoggerFactory.getLogger(DynamicUpdates.class);
+    private static final String DEFAULT_ALGORITHM = "hmac-sha256";
+    private static final long WRITE_TIMEOUT_SECONDS = 10;
+
+    private final ZoneStore store;
+    private final ZoneWriter writer;
+    private final DnsMetrics metrics;
+    private final Map<Name, TSIG> keys;
+    private final Set<Name> secondaries;
+    private final int udpPayload;
+
+    public DynamicUpdates(ZoneStore store, ZoneWriter writer, DnsMetrics metrics, Map<Name, TSIG> keys,
+            Set<Name> secondaries, int udpPayload) {
+        this.store = store;
+        this.writer = writer;
+        this.metrics = metrics;
+        this.keys = Map.copyOf(keys);
+        this.secondaries = secondaries;
+        this.udpPayload = udpPayload;
+    }
+
+    /**
+     * Handles an UPDATE message.
+     *
+     * @see AuthoritativeEngine.UpdateHandler
+     */
+    public byte[] update(byte[] message, int length, InetAddress from) {
+        byte[] wire = Arrays.copyOf(message, length);
+        Message request;
+        try {
+            request = new Message(wire);
+        } catch (IOException e) {
+            return null;
+        }
+        org.xbill.DNS.Record zone = request.getQuestion();
+        if (zone == null || zone.getType() != Type.SOA)
+            return response(request, Rcode.FORMERR, null, Rcode.NOERROR);
+
+        // Authenticate before telling anything about our zones
+        TSIGRecord signature = request.getTSIG();
+        if (signature == null) {
+            logger.warn("Refused unsigned UPDATE for {} from {}", zone.getName(), from.getHostAddress());
+            return response(request, Rcode.REFUSED, null, Rcode.NOERROR);
+        }
+        TSIG key = keys.get(signature.getName());
+        if (key == null) {
+            logger.warn("Refused UPDATE for {} from {} with unknown key {}", zone.getName(), from.getHostAddress(),
+                    signature.getName());
+            return response(request, Rcode.NOTAUTH, unknownKey(signature), Rcode.BADKEY);
+        }
+        int error = key.verify(request, wire, null);
+        if (error != Rcode.NOERROR) {
+            logger.warn("Refused UPDATE for {} from {} with key {}: {}", zone.getName(), from.getHostAddress(),
+                    signature.getName(), Rcode.TSIGstring(error));
+            return response(request, Rcode.NOTAUTH, key, error);
+        }
+
+        Name origin = zone.getName();
+        if (zone.getDClass() != DClass.IN || store.getZone(origin.toString()) == null)
+            return response(request, Rcode.NOTAUTH, key, Rcode.NOERROR);
+        if (secondaries.contains(origin)) {
+            logger.warn("Refused UPDATE for secondary zone {} from {}", origin, from.getHostAddress());
+            return response(request, Rcode.REFUSED, key, Rcode.NOERROR);
+        }
+
+        Outcome outcome = new Outcome();
+        int rcode;
+        try {
+            JsonZone z = writer.submit(origin.toString(), current -> apply(request, current, origin, outcome))
+                    .get(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            rcode = outcome.rcode;
+            if (outcome.changes > 0)
+                logger.info("UPDATE for {} from {}: {} change(s), serial {}", origin, from.getHostAddress(),
+                        outcome.changes, z.serial);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof NoSuchElementException) {
+                rcode = Rcode.NOTAUTH;
+            } else {
+                logger.error("Failed to apply UPDATE for " + origin, e.getCause());
+                rcode = Rcode.SERVFAIL;
+            }
+        } catch (TimeoutException e) {
+            logger.error("Timed out applying UPDATE for {}", origin);
+            rcode = Rcode.SERVFAIL;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rcode = Rcode.SERVFAIL;
+        }
+        return response(request, rcode, key, Rcode.NOERROR);
+    }
+
+    /** What an update came to, filled in on the writer's thread. */
+    private static final class Outcome {
+        int rcode = Rcode.NOERROR;
+        int changes;
+    }
+
+    /**
+     * Checks the prerequisites against the zone as it is and works out the
+     * changes the update makes to it; none if a check fails.
+     */
+    private static List<ZoneWriter.Change> apply(Message request, JsonZone current, Name origin, Outcome outcome) {
+        Working w = new Working(current.copy(), origin);
+        outcome.rcode = prerequisites(w, request.getSection(Section.PREREQ));
+        if (outcome.rcode != Rcode.NOERROR)
+            return List.of();
+        List<org.xbill.DNS.Record> updates = request.getSection(Section.UPDATE);
+        outcome.rcode = prescan(w, updates);
+        if (outcome.rcode != Rcode.NOERROR)
+            return List.of();
+
+        for (org.xbill.DNS.Record r : updates) {
+            try {
+                if (w.apply(r))
+                    outcome.changes++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (outcome.changes == 0)
+            return List.of();
+        // The writer increments the serial unless the update set a newer one
+        return ZoneWriter.Change.between(current, w.finish());
+    }
+
+    /** The prerequisite checks of RFC 2136 3.2, in their order. */
+    private static int prerequisites(Working w, List<org.xbill.DNS.Record> prereqs) {
+        Map<String, Set<org.xbill.DNS.Record>> values = new LinkedHashMap<>();
+        Map<String, org.xbill.DNS.Record> sets = new HashMap<>();
+        for (org.xbill.DNS.Record r : prereqs) {
+            if (r.getTTL() != 0)
+                return Rcode.FORMERR;
+            if (!r.getName().subdomain(w.origin))
+                return Rcode.NOTZONE;
+            boolean empty = r.rdataToWireCanonical().length == 0;
+            switch (r.getDClass()) {
+                case DClass.ANY:
+                    if (!empty)
+                        return Rcode.FORMERR;
+                    if (r.getType() == Type.ANY) {
+                        if (!w.exists(r.getName()))
+                            return Rcode.NXDOMAIN;
+                    } else if (w.rrset(r.getName(), r.getType()).isEmpty()) {
+                        return Rcode.NXRRSET;
+                    }
+                    break;
+                case DClass.NONE:
+                    if (!empty)
+                        return Rcode.FORMERR;
+                    if (r.getType() == Type.ANY) {
+                        if (w.exists(r.getName()))
+                            return Rcode.YXDOMAIN;
+                    } else if (!w.rrset(r.getName(), r.getType()).isEmpty()) {
+                        return Rcode.YXRRSET;
+                    }
+                    break;
+                case DClass.IN: {
+                    // RRsets that must exist with exactly these records, compared once all are collected
+                    String set = r.getName() + " " + Type.string(r.getType());
+                    sets.putIfAbsent(set, r);
+                    org.xbill.DNS.Record c = w.canonical(r);
+                    if (c == null)
+                        return Rcode.NXRRSET; // a type we can't hold, so it is not here
+                    values.computeIfAbsent(set, k -> new HashSet<>()).add(c);
+                    break;
+                }
+                default:
+                    return Rcode.FORMERR;
+            }
+        }
+        for (Map.Entry<String, Set<org.xbill.DNS.Record>> e : values.entrySet()) {
+            org.xbill.DNS.Record r = sets.get(e.getKey());
+            if (!e.getValue().equals(new HashSet<>(w.rrset(r.getName(), r.getType()))))
+                return Rcode.NXRRSET;
+        }
+        return Rcode.NOERROR;
+    }
+
+    /**
+     * Checks the update section before anything is changed (RFC 2136
+     * 3.4.1.3). Record types the zone files can't hold are refused.
+     */
+    private static int prescan(Working w, List<org.xbill.DNS.Record> updates) {
+        for (org.xbill.DNS.Record r : updates) {
+            if (!r.getName().subdomain(w.origin))
+                return Rcode.NOTZONE;
+            int type = r.getType();
+            boolean meta = type == Type.AXFR || type == Type.IXFR || type == Type.MAILA || type == Type.MAILB;
+            switch (r.getDClass()) {
+                case DClass.IN:
+                    if (meta || type == Type.ANY)
+                        return Rcode.FORMERR;
+                    if (type != Type.SOA && w.canonical(r) == null)
+                        return Rcode.REFUSED;
+                    break;
+                case DClass.ANY:
+                    if (r.getTTL() != 0 || r.rdataToWireCanonical().length != 0 || meta)
+                        return Rcode.FORMERR;
+                    break;
+                case DClass.NONE:
+                    if (r.getTTL() != 0 || meta || type == Type.ANY)
+                        return Rcode.FORMERR;
+                    break;
+                default:
+                    return Rcode.FORMERR;
+            }
+        }
+        return Rcode.NOERROR;
+    }
+
+    private byte[] response(Message request, int rcode, TSIG key, int tsigError) {
+        Message response = new Message(request.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setOpcode(Opcode.UPDATE);
+        response.getHeader().setRcode(rcode);
+        if (request.getQuestion() != null)
+            response.addRecord(request.getQuestion(), Section.ZONE);
+        if (request.getOPT() != null)
+            response.addRecord(new OPTRecord(udpPayload, 0, 0), Section.ADDITIONAL);
+        if (key != null)
+            response.setTSIG(key, tsigError, request.getTSIG());
+        metrics.recordUpdate(rcode);
+        return response.toWire(65535);
+    }
+
+    /**
+     * A key with the request's name and algorithm, to answer BADKEY with; the
+     * response carries no MAC, so the secret does not matter. Null if the
+     * algorithm is unknown, in which case the response goes unsigned.
+     */
+    private static TSIG unknownKey(TSIGRecord signature) {
+        try {
+            return new TSIG(signature.getAlgorithm(), signature.getName(), new byte[1]);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a comma-separated list of TSIG keys, each {@code name:secret}
+     * or {@code algorithm:name:secret} with the secret in base64; the
+     * algorithm defaults to hmac-sha256.
+     *
+     * @throws IllegalArgumentException for entries that are not valid keys
+     */
+    static Map<Name, TSIG> parseKeys(String spec) {
+        Map<Name, TSIG> keys = new HashMap<>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty())
+                continue;
+            String[] parts = entry.split(":");
+            if (parts.length < 2 || parts.length > 3)
+                throw new IllegalArgumentException("not [algorithm:]name:secret: " + entry);
+            String algorithm = parts.length == 3 ? parts[0] : DEFAULT_ALGORITHM;
+            String name = parts[parts.length - 2];
+            try {
+                keys.put(Name.fromString(name, Name.root), new TSIG(algorithm, name, parts[parts.length - 1]));
+            } catch (TextParseException e) {
+                throw new IllegalArgumentException("not a key name: " + name, e);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("invalid key " + name + ": " + e.getMessage(), e);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * A zone being updated: a copy of it with its records parsed, in the
+     * order of the zone file, and indexed by owner name. The apex NS set is
+     * the zone's {@code ns} list, its SOA made from the zone's fields.
+     */
+    private static final class Working {
+        final JsonZone zone;
+        final Name origin;
+        final long ttl;
+        final List<Entry> entries = new ArrayList<>();
+        final Map<Name, List<Entry>> byName = new HashMap<>();
+
+        Working(JsonZone zone, Name origin) {
+            this.zone = zone;
+            this.origin = origin;
+            this.ttl = Math.max(0, zone.defaultTtl);
+            for (JsonRecord jr : zone.records) {
+                org.xbill.DNS.Record r;
+                try {
+                    r = JsonZone.toRecord(jr, origin, ttl);
+                } catch (IOException | IllegalArgumentException e) {
+                    r = null;
+                }
+                add(new Entry(jr, r));
+            }
+        }
+
+        private void add(Entry e) {
+            entries.add(e);
+            if (e.record != null)
+                byName.computeIfAbsent(e.record.getName(), k -> new ArrayList<>()).add(e);
+        }
+
+        private void delete(Entry e) {
+            e.deleted = true;
+            byName.get(e.record.getName()).remove(e);
+        }
+
+        private List<Entry> at(Name name) {
+            return byName.getOrDefault(name, List.of());
+        }
+
+        SOARecord soa() throws IOException {
+            JsonZone head = zone.copy();
+            head.records = new ArrayList<>();
+            return head.toRecords().soa();
+        }
+
+        List<NSRecord> apexNs() throws IOException {
+            JsonZone head = zone.copy();
+            head.records = new ArrayList<>();
+            return head.toRecords().ns();
+        }
+
+        /** True if the name owns records; the apex always does. */
+        boolean exists(Name name) {
+            return name.equals(origin) || !at(name).isEmpty();
+        }
+
+        List<org.xbill.DNS.Record> rrset(Name name, int type) {
+            List<org.xbill.DNS.Record> out = new ArrayList<>();
+            if (name.equals(origin)) {
+                try {
+                    if (type == Type.SOA)
+                        out.add(soa());
+                    else if (type == Type.NS)
+                        out.addAll(apexNs());
+                } catch (IOException e) {
+                    throw new IllegalStateException("zone " + origin + " has an invalid SOA or NS", e);
+                }
+            }
+            for (Entry e : at(name))
+                if (e.record.getType() == type)
+                    out.add(e.record);
+            return out;
+        }
+
+        /**
+         * The record as the zone would hold it, e.g. with TXT strings joined,
+         * so it compares equal to what the zone has; null for types the zone
+         * files can't hold.
+         */
+        org.xbill.DNS.Record canonical(org.xbill.DNS.Record r) {
+            if (r.getType() == Type.SOA)
+                return r;
+            JsonRecord jr = JsonZone.fromRecord(r, origin);
+            if (jr == null)
+                return null;
+            try {
+                return JsonZone.toRecord(jr, origin, ttl);
+            } catch (IOException | IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        /** Applies one record of the update section (RFC 2136 3.4.2); false if it changed nothing. */
+        boolean apply(org.xbill.DNS.Record r) throws IOException {
+            Name name = r.getName();
+            boolean apex = name.equals(origin);
+            switch (r.getDClass()) {
+                case DClass.IN:
+                    return add(r, apex);
+                case DClass.ANY: {
+                    boolean changed = false;
+                    for (Entry e : new ArrayList<>(at(name))) {
+                        // The apex keeps its SOA and NS records
+                        if (apex && e.record.getType() == Type.NS)
+                            continue;
+                        if (r.getType() == Type.ANY || e.record.getType() == r.getType()) {
+                            delete(e);
+                            changed = true;
+                        }
+                    }
+                    return changed;
+                }
+                case DClass.NONE:
+                    return remove(r, apex);
+                default:
+                    return false;
+            }
+        }
+
+        private boolean add(org.xbill.DNS.Record r, boolean apex) throws IOException {
+            Name name = r.getName();
+            if (r.getType() == Type.SOA) {
+                SOARecord soa = (SOARecord) r;
+                if (!apex || Serial.compare(soa.getSerial(), zone.serial) <= 0)
+                    return false;
+                zone.admin = soa.getAdmin().toString();
+                zone.serial = soa.getSerial();
+                zone.refresh = soa.getRefresh();
+                zone.retry = soa.getRetry();
+                zone.expire = soa.getExpire();
+                zone.minimum = soa.getMinimum();
+                return true;
+            }
+            org.xbill.DNS.Record c = canonical(r);
+            // A CNAME never shares its name with other data
+            boolean cname = r.getType() == Type.CNAME;
+            for (Entry e : at(name))
+                if ((e.record.getType() == Type.CNAME) != cname)
+                    return false;
+            if (cname && apex)
+                return false;
+            if (apex && r.getType() == Type.NS) {
+                if (rrset(name, Type.NS).contains(c))
+                    return false;
+                zone.ns.add(((NSRecord) c).getTarget().toString());
+                return true;
+            }
+            for (Entry e : new ArrayList<>(at(name))) {
+                if (e.record.equals(c)) {
+                    if (e.record.getTTL() == c.getTTL())
+                        return false;
+                    delete(e); // same data, new TTL
+                } else if (cname) {
+                    delete(e); // a name has one CNAME; the new one replaces it
+                }
+            }
+            add(new Entry(JsonZone.fromRecord(c, origin), c));
+            return true;
+        }
+
+        private boolean remove(org.xbill.DNS.Record r, boolean apex) throws IOException {
+            if (r.getType() == Type.SOA)
+                return false;
+            org.xbill.DNS.Record c = canonical(r);
+            if (apex && r.getType() == Type.NS) {
+                // Never the last name server
+                if (rrset(r.getName(), Type.NS).size() <= 1)
+                    return false;
+                String target = ((NSRecord) c).getTarget().toString();
+                for (String ns : zone.ns) {
+                    if (Name.fromString(ns, Name.root).equals(((NSRecord) c).getTarget())) {
+                        zone.ns.remove(ns);
+                        return true;
+                    }
+                }
+                logger.debug("Apex NS {} of {} is not in the zone's name servers", target, origin);
+            }
+            for (Entry e : at(r.getName())) {
+                if (e.record.equals(c)) {
+                    delete(e);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** The zone with the remaining records, in their original order. */
+        JsonZone finish() {
+            List<JsonRecord> records = new ArrayList<>();
+            for (Entry e : entries)
+                if (!e.deleted)
+                    records.add(e.json);
+            zone.records = records;
+            return zone;
+        }
+    }
+
+    private static final class Entry {
+        final JsonRecord json;
+        final org.xbill.DNS.Record record;
+        boolean deleted;
+
+        Entry(JsonRecord json, org.xbill.DNS.Record record) {
+            this.json = json;
+            this.record = record;
+        }
+    }
+}
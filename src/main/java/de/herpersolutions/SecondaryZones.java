@@ -0,0 +1,338 @@
+package de.herpersolutions;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Serial;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+import org.xbill.DNS.ZoneTransferException;
+import org.xbill.DNS.ZoneTransferIn;
+
+import de.herpersolutions.Zones.JsonZone;
+import de.herpersolutions.Zones.ZoneStore;
+import de.herpersolutions.engine.AuthoritativeEngine;
+import de.herpersolutions.monitoring.DnsMetrics;
+
+/**
+ * Keeps secondary zones in step with their primary (RFC 1034 4.3.5). Each
+ * zone's SOA serial is checked on the primary when its refresh timer runs
+ * out, after its retry time if that failed, and right away when the primary
+ * sends a NOTIFY (RFC 1996). A higher serial is fetched with IXFR and the
+ * changes are applied to the local copy; if the primary answers with the
+ * whole zone, or the changes don't fit the copy, the zone is replaced as a
+ * whole (AXFR). Each new version is written to the zone's file and swapped
+ * into the engine on its own. A copy that could not be refreshed for the
+ * zone's expire time is dropped.
+ */
+public class SecondaryZones {
+    private static final Logger logger = LoggerFactory.getLogger(SecondaryZones.class);
+    private static final Duration QUERY_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration TRANSFER_TIMEOUT = Duration.ofMinutes(2);
+    // Retry interval while there is no copy yet, hence no SOA timers
+    private static final long INITIAL_RETRY_SECONDS = 60;
+
+    private final ZoneStore store;
+    private final AuthoritativeEngine engine;
+    private final DnsMetrics metrics;
+    private final InetSocketAddress primary;
+    private final Map<Name, Secondary> zones = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Starts refreshing the given zones from the primary, beginning now.
+     * Copies already in the store are served until they expire.
+     */
+    public SecondaryZones(ZoneStore store, AuthoritativeEngine engine, DnsMetrics metrics,
+            InetSocketAddress primary, Collection<Name> origins) {
+        this.store = store;
+        this.engine = engine;
+        this.metrics = metrics;
+        this.primary = primary;
+        this.executor = Executors.newScheduledThreadPool(Math.max(1, Math.min(4, origins.size())), r -> {
+            Thread t = new Thread(r, "zone-secondary");
+            t.setDaemon(true);
+            return t;
+        });
+        long now = System.currentTimeMillis();
+        for (Name origin : origins) {
+            Secondary s = new Secondary(origin);
+            JsonZone copy = store.getZone(s.key);
+            if (copy != null)
+                s.expiresAt = now + copy.expire * 1000;
+            zones.put(origin, s);
+            queue(s);
+        }
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /** The zones kept in step with the primary. */
+    public Set<Name> origins() {
+        return zones.keySet();
+    }
+
+    /**
+     * Handles a NOTIFY for one of our zones by refreshing it now, unless the
+     * announced serial is one we already have.
+     *
+     * @see AuthoritativeEngine.NotifyHandler
+     */
+    public int notify(Name zone, long serial, InetAddress from) {
+        Secondary s = zones.get(zone);
+        if (s == null)
+            return Rcode.NOTAUTH;
+        if (!from.equals(primary.getAddress())) {
+            logger.warn("Ignoring NOTIFY for {} from {}, which is not its primary", zone, from.getHostAddress());
+            return Rcode.REFUSED;
+        }
+        JsonZone copy = store.getZone(s.key);
+        if (serial >= 0 && copy != null && Serial.compare(serial, copy.serial) <= 0)
+            return Rcode.NOERROR;
+        logger.info("NOTIFY for {} serial {} from {}", zone, serial, from.getHostAddress());
+        queue(s);
+        return Rcode.NOERROR;
+    }
+
+    /** Refreshes a zone as soon as a thread is free; a refresh already waiting covers this one. */
+    private void queue(Secondary s) {
+        if (!s.queued.compareAndSet(false, true))
+            return;
+        try {
+            executor.execute(() -> refresh(s));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    private void refresh(Secondary s) {
+        synchronized (s) {
+            s.queued.set(false);
+            long delay = Math.max(1, check(s));
+            if (s.timer != null)
+                s.timer.cancel(false);
+            try {
+                s.timer = executor.schedule(() -> refresh(s), delay, TimeUnit.SECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+            }
+        }
+    }
+
+    /**
+     * Brings one zone up to date with the primary.
+     *
+     * @return seconds until the zone should be checked again
+     */
+    private long check(Secondary s) {
+        JsonZone copy = store.getZone(s.key);
+        long now = System.currentTimeMillis();
+        try {
+            JsonZone next = null;
+            if (copy == null || Serial.compare(primarySerial(s.origin), copy.serial) > 0)
+                next = transfer(s.origin, copy);
+            if (next == null) {
+                metrics.recordSecondaryCurrent();
+                s.expiresAt = now + copy.expire * 1000;
+                return copy.refresh;
+            }
+            engine.updateZones(store.replaceZone(next));
+            s.expiresAt = now + next.expire * 1000;
+            return next.refresh;
+        } catch (Exception e) {
+            metrics.recordSecondaryFailed();
+            if (copy == null) {
+                logger.warn("Failed to transfer secondary zone {} from {}, retrying in {}s: {}",
+                        s.origin, primary, INITIAL_RETRY_SECONDS, e.toString());
+                return INITIAL_RETRY_SECONDS;
+            }
+            if (now < s.expiresAt) {
+                logger.warn("Failed to refresh secondary zone {} from {}, retrying in {}s: {}",
+                        s.origin, primary, copy.retry, e.toString());
+                return copy.retry;
+            }
+            logger.error("Secondary zone {} expired without reaching {}; no longer serving it", s.origin, primary);
+            try {
+                engine.updateZones(store.removeZone(s.key));
+            } catch (IOException ex) {
+                logger.error("Failed to drop expired zone " + s.origin, ex);
+            }
+            return INITIAL_RETRY_SECONDS;
+        }
+    }
+
+    /** The zone's serial according to the primary. */
+    private long primarySerial(Name origin) throws IOException {
+        SimpleResolver resolver = new SimpleResolver(primary);
+        resolver.setTimeout(QUERY_TIMEOUT);
+        Message response = resolver.send(Message.newQuery(org.xbill.DNS.Record.newRecord(origin, Type.SOA, DClass.IN)));
+        if (response.getRcode() != Rcode.NOERROR || !response.getHeader().getFlag(Flags.AA))
+            throw new IOException("primary is not authoritative for " + origin + " ("
+                    + Rcode.string(response.getRcode()) + ")");
+        for (org.xbill.DNS.Record r : response.getSection(Section.ANSWER))
+            if (r.getType() == Type.SOA && r.getName().equals(origin))
+                return ((SOARecord) r).getSerial();
+        throw new IOException("primary returned no SOA for " + origin);
+    }
+
+    /**
+     * Fetches the newer version of a zone: with IXFR if there is a copy to
+     * apply changes to, otherwise, or if that does not work out, with AXFR.
+     *
+     * @return the new version, or null if the copy turned out to be current
+     */
+    private JsonZone transfer(Name origin, JsonZone copy) throws IOException, ZoneTransferException {
+        if (copy != null) {
+            ZoneTransferIn ixfr = ZoneTransferIn.newIXFR(origin, copy.serial, true, primary, null);
+            ixfr.setTimeout(TRANSFER_TIMEOUT);
+            ixfr.run();
+            if (ixfr.isCurrent())
+                return null;
+            if (ixfr.isAXFR())
+                return received(origin, ixfr.getAXFR(), "IXFR (full)");
+            List<ZoneTransferIn.Delta> deltas = ixfr.getIXFR();
+            JsonZone next = applyChanges(copy, deltas);
+            if (next != null) {
+                metrics.recordSecondaryTransfer(true);
+                logger.info("IXFR of {} from {}: serial {} to {} in {} change(s)",
+                        origin, primary, copy.serial, next.serial, deltas.size());
+                return next;
+            }
+            logger.warn("IXFR of {} does not apply to our serial {}; transferring the whole zone", origin, copy.serial);
+        }
+        ZoneTransferIn axfr = ZoneTransferIn.newAXFR(origin, primary, null);
+        axfr.setTimeout(TRANSFER_TIMEOUT);
+        axfr.run();
+        return received(origin, axfr.getAXFR(), "AXFR");
+    }
+
+    private JsonZone received(Name origin, List<org.xbill.DNS.Record> records, String kind)
+            throws ZoneTransferException {
+        SOARecord soa = null;
+        List<org.xbill.DNS.Record> inZone = new ArrayList<>(records.size());
+        for (org.xbill.DNS.Record r : records) {
+            if (!r.getName().subdomain(origin))
+                continue;
+            if (r.getType() == Type.SOA && soa == null && r.getName().equals(origin))
+                soa = (SOARecord) r;
+            inZone.add(r);
+        }
+        if (soa == null)
+            throw new ZoneTransferException("no SOA in " + kind + " of " + origin);
+        metrics.recordSecondaryTransfer(false);
+        logger.info("{} of {} from {}: serial {}, {} records", kind, origin, primary, soa.getSerial(), inZone.size());
+        return JsonZone.fromRecords(soa, inZone);
+    }
+
+    /**
+     * The copy with IXFR changes applied; null if they do not start at its
+     * serial or delete records it does not have.
+     */
+    private static JsonZone applyChanges(JsonZone copy, List<ZoneTransferIn.Delta> deltas) throws IOException {
+        Map<ByteBuffer, org.xbill.DNS.Record> records = ZoneJournal.byWire(copy.toRecords());
+        long serial = copy.serial;
+        SOARecord soa = null;
+        for (ZoneTransferIn.Delta d : deltas) {
+            if (d.start != serial)
+                return null;
+            for (org.xbill.DNS.Record r : d.deletes)
+                if (r.getType() != Type.SOA && records.remove(ByteBuffer.wrap(r.toWireCanonical())) == null)
+                    return null;
+            for (org.xbill.DNS.Record r : d.adds) {
+                if (r.getType() == Type.SOA)
+                    soa = (SOARecord) r;
+                else
+                    records.put(ByteBuffer.wrap(r.toWireCanonical()), r);
+            }
+            serial = d.end;
+        }
+        return soa == null ? null : JsonZone.fromRecords(soa, records.values());
+    }
+
+    /**
+     * Parses {@code host[:port]} or {@code [v6-address]:port}; the port defaults to 53.
+     *
+     * @throws IllegalArgumentException if it is malformed or the host cannot be resolved
+     */
+    static InetSocketAddress parseAddress(String spec) {
+        String host = spec.trim();
+        int port = 53;
+        if (host.startsWith("[")) {
+            int end = host.indexOf(']');
+            if (end < 0 || (end + 1 < host.length() && host.charAt(end + 1) != ':'))
+                throw new IllegalArgumentException("bad address: " + spec);
+            if (end + 1 < host.length())
+                port = Integer.parseInt(host.substring(end + 2));
+            host = host.substring(1, end);
+        } else if (host.indexOf(':') >= 0 && host.indexOf(':') == host.lastIndexOf(':')) {
+            port = Integer.parseInt(host.substring(host.indexOf(':') + 1));
+            host = host.substring(0, host.indexOf(':'));
+        }
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved())
+            throw new IllegalArgumentException("cannot resolve " + host);
+        return address;
+    }
+
+    /**
+     * Parses a comma-separated list of zone origins.
+     *
+     * @throws IllegalArgumentException for names that are not valid
+     */
+    static List<Name> parseOrigins(String spec) {
+        List<Name> origins = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty())
+                continue;
+            try {
+                origins.add(Name.fromString(entry, Name.root));
+            } catch (TextParseException e) {
+                throw new IllegalArgumentException("not a zone name: " + entry, e);
+            }
+        }
+        return origins;
+    }
+
+    /** Refresh state of one secondary zone. */
+    private static final class Secondary {
+        final Name origin;
+        final String key;
+        final AtomicBoolean queued = new AtomicBoolean();
+        // Guarded by the instance
+        ScheduledFuture<?> timer;
+        volatile long expiresAt;
+
+        Secondary(Name origin) {
+            this.origin = origin;
+            this.key = ZoneStore.normalize(origin.toString());
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package de.herpersolutions;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.DNSOutput;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+
+import de.herpersolutions.Zones.JsonRecord;
+import de.herpersolutions.Zones.JsonZone;
+import de.herpersolutions.Zones.ZoneRecords;
+
+/**
+ * Binary image of a compiled zone, kept next to its JSON file as
+ * {@code <name>.zone.bin}. It holds the zone's JSON fields plus its records in
+ * wire format, so a cold start maps the file and builds records straight from
+ * rdata instead of parsing JSON, names and addresses again.
+ * <p>
+ * The image is only a cache: it records the size and modification time of
+ * the JSON file it was built from and is ignored (and rewritten) as soon as
+ * the JSON changes. Layout, all integers big-endian:
+ * <pre>
+ * int magic, int version, long jsonSize, long jsonMtimeNanos
+ * zone fields (strings as int length + UTF-8, -1 for null)
+ * int ownerCount, owner names as short length + wire bytes
+ * SOA, int nsCount + NS records, int count + other records;
+ *   each record: int owner index, short type, int ttl, short rdlength, rdata
+ * </pre>
+ */
+final class ZoneImage {
+    private static final Logger logger = LoggerFactory.getLogger(ZoneImage.class);
+    private static final int MAGIC = 0x4A445A31; // "JDZ1"
+    private static final int VERSION = 1;
+    private static final String JSON_SUFFIX = ".zone.json";
+    private static final String SUFFIX = ".zone.bin";
+
+    private ZoneImage() {
+    }
+
+    /**
+     * The image file belonging to a zone file.
+     */
+    static Path imageFor(Path json) {
+        String name = json.getFileName().toString();
+        if (name.endsWith(JSON_SUFFIX))
+            name = name.substring(0, name.length() - JSON_SUFFIX.length());
+        return json.resolveSibling(name + SUFFIX);
+    }
+
+    /**
+     * The zone file an image was built from.
+     */
+    static Path jsonFor(Path image) {
+        String name = image.getFileName().toString();
+        return image.resolveSibling(name.substring(0, name.length() - SUFFIX.length()) + JSON_SUFFIX);
+    }
+
+    /**
+     * Loads the zone from the image of the given zone file.
+     *
+     * @return the zone with its records already decoded, or null if there is
+     *         no image or it does not match the current zone file
+     */
+    static JsonZone read(Path json) {
+        Path image = imageFor(json);
+        try {
+            if (!Files.exists(image))
+                return null;
+            BasicFileAttributes attrs = Files.readAttributes(json, BasicFileAttributes.class);
+            try (FileChannel ch = FileChannel.open(image, StandardOpenOption.READ)) {
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                if (buf.getInt() != MAGIC || buf.getInt() != VERSION
+                        || buf.getLong() != attrs.size()
+                        || buf.getLong() != attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS))
+                    return null;
+                return decode(buf);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Unreadable or corrupt: fall back to the JSON file, which rewrites the image
+            logger.warn("Ignoring zone image " + image + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the image for a zone loaded from the given zone file. The file is
+     * replaced atomically, so readers never see a partial image.
+     *
+     * @param attrs attributes of the zone file as they were before it was read,
+     *              so a write racing with the load leaves the image stale
+     */
+    static void write(Path json, BasicFileAttributes attrs, JsonZone z, ZoneRecords records) throws IOException {
+        DNSOutput out = new DNSOutput(4096);
+        out.writeU32(MAGIC);
+        out.writeU32(VERSION);
+        writeLong(out, attrs.size());
+        writeLong(out, attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+        encodeFields(out, z);
+
+        // Keyed by presentation form, which keeps the case of each owner name
+        Map<String, Integer> owners = new HashMap<>();
+        List<Name> ownerList = new ArrayList<>();
+        owner(records.soa().getName(), owners, ownerList);
+        for (NSRecord ns : records.ns())
+            owner(ns.getName(), owners, ownerList);
+        for (org.xbill.DNS.Record r : records.records())
+            owner(r.getName(), owners, ownerList);
+        out.writeU32(ownerList.size());
+        for (Name n : ownerList) {
+            byte[] wire = n.toWire();
+            out.writeU16(wire.length);
+            out.writeByteArray(wire);
+        }
+
+        writeRecord(out, records.soa(), owners);
+        out.writeU32(records.ns().size());
+        for (NSRecord ns : records.ns())
+            writeRecord(out, ns, owners);
+        out.writeU32(records.records().size());
+        for (org.xbill.DNS.Record r : records.records())
+            writeRecord(out, r, owners);
+
+        Path image = imageFor(json);
+        Path tmp = image.resolveSibling(image.getFileName() + ".tmp");
+        Files.write(tmp, out.toByteArray());
+        try {
+            Files.move(tmp, image, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, image, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /* ------------------------ ENCODING ------------------------ */
+
+    private static void encodeFields(DNSOutput out, JsonZone z) {
+        writeString(out, z.origin);
+        writeLong(out, z.defaultTtl);
+        writeString(out, z.admin);
+        out.writeU32(z.ns.size());
+        for (String ns : z.ns)
+            writeString(out, ns);
+        writeLong(out, z.serial);
+        writeLong(out, z.refresh);
+        writeLong(out, z.retry);
+        writeLong(out, z.expire);
+        writeLong(out, z.minimum);
+        out.writeU32(z.records.size());
+        for (JsonRecord r : z.records) {
+            writeString(out, r.name);
+            writeString(out, r.type);
+            writeLong(out, r.ttl);
+            writeString(out, r.data);
+            out.writeU32((r.priority == null ? Integer.MIN_VALUE : r.priority) & 0xFFFFFFFFL);
+        }
+    }
+
+    private static void owner(Name n, Map<String, Integer> owners, List<Name> ownerList) {
+        if (owners.putIfAbsent(n.toString(), ownerList.size()) == null)
+            ownerList.add(n);
+    }
+
+    private static void writeRecord(DNSOutput out, org.xbill.DNS.Record r, Map<String, Integer> owners) {
+        // Uncompressed wire form: owner, type, class, ttl, rdlength, rdata
+        byte[] wire = r.toWire(Section.ANSWER);
+        int rdataStart = r.getName().length() + 10;
+        out.writeU32(owners.get(r.getName().toString()));
+        out.writeU16(r.getType());
+        out.writeU32(r.getTTL());
+        out.writeU16(wire.length - rdataStart);
+        out.writeByteArray(wire, rdataStart, wire.length - rdataStart);
+    }
+
+    private static void writeString(DNSOutput out, String s) {
+        if (s == null) {
+            out.writeU32(0xFFFFFFFFL);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeU32(b.length);
+        out.writeByteArray(b);
+    }
+
+    private static void writeLong(DNSOutput out, long v) {
+        out.writeU32(v >>> 32);
+        out.writeU32(v & 0xFFFFFFFFL);
+    }
+
+    /* ------------------------ DECODING ------------------------ */
+
+    private static JsonZone decode(ByteBuffer buf) throws IOException {
+        JsonZone z = new JsonZone();
+        z.origin = readString(buf);
+        z.defaultTtl = buf.getLong();
+        z.admin = readString(buf);
+        int nsCount = buf.getInt();
+        for (int i = 0; i < nsCount; i++)
+            z.ns.add(readString(buf));
+        z.serial = buf.getLong();
+        z.refresh = buf.getLong();
+        z.retry = buf.getLong();
+        z.expire = buf.getLong();
+        z.minimum = buf.getLong();
+        int recordCount = buf.getInt();
+        for (int i = 0; i < recordCount; i++) {
+            String name = readString(buf);
+            String type = readString(buf);
+            long ttl = buf.getLong();
+            String data = readString(buf);
+            int priority = buf.getInt();
+            z.records.add(new JsonRecord(name, type, ttl, data, priority == Integer.MIN_VALUE ? null : priority));
+        }
+
+        Name[] owners = new Name[buf.getInt()];
+        for (int i = 0; i < owners.length; i++) {
+            byte[] wire = new byte[buf.getShort() & 0xFFFF];
+            buf.get(wire);
+            owners[i] = new Name(wire);
+        }
+        SOARecord soa = (SOARecord) readRecord(buf, owners);
+        List<NSRecord> ns = new ArrayList<>();
+        for (int i = buf.getInt(); i > 0; i--)
+            ns.add((NSRecord) readRecord(buf, owners));
+        List<org.xbill.DNS.Record> records = new ArrayList<>();
+        for (int i = buf.getInt(); i > 0; i--)
+            records.add(readRecord(buf, owners));
+        if (buf.hasRemaining())
+            throw new IOException("trailing bytes");
+
+        z.setDecodedRecords(new ZoneRecords(soa, List.copyOf(ns), List.copyOf(records)));
+        return z;
+    }
+
+    private static org.xbill.DNS.Record readRecord(ByteBuffer buf, Name[] owners) {
+        Name owner = owners[buf.getInt()];
+        int type = buf.getShort() & 0xFFFF;
+        long ttl = buf.getInt() & 0xFFFFFFFFL;
+        byte[] rdata = new byte[buf.getShort() & 0xFFFF];
+        buf.get(rdata);
+        return org.xbill.DNS.Record.newRecord(owner, type, DClass.IN, ttl, rdata);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0)
+            return null;
+        if (len > buf.remaining())
+            throw new BufferUnderflowException();
+        byte[] b = new byte[len];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,288 @@
+package de.herpersolutions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.DNSInput;
+import org.xbill.DNS.DNSOutput;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.WireParseException;
+
+import de.herpersolutions.Zones.ZoneRecords;
+
+/**
+ * Serial-to-serial changes of one zone, so secondaries can catch up with an
+ * IXFR (RFC 1995) instead of transferring the whole zone. The journal is kept
+ * next to the zone file as {@code <name>.zone.jnl}; each change is appended
+ * and synced before it is served. Layout, all integers big-endian:
+ * <pre>
+ * int magic, int version
+ * per change: int length, SOA before, SOA after, int count + deleted records,
+ *   int count + added records; each record as short length + uncompressed wire form
+ * </pre>
+ * A change cut short by a crash is dropped when the journal is read. Once it
+ * holds half as many changes again as it should keep, the oldest are dropped
+ * by rewriting the file.
+ */
+public final class ZoneJournal {
+    private static final Logger logger = LoggerFactory.getLogger(ZoneJournal.class);
+    private static final int MAGIC = 0x4A444A31; // "JDJ1"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final String JSON_SUFFIX = ".zone.json";
+    private static final String SUFFIX = ".zone.jnl";
+
+    /**
+     * The change from one version of a zone to the next. Deleted and added
+     * records exclude the SOA, which {@code from} and {@code to} carry.
+     */
+    public record Diff(SOARecord from, SOARecord to, List<org.xbill.DNS.Record> deleted,
+            List<org.xbill.DNS.Record> added) {
+    }
+
+    private final Path file;
+    private final int maxDiffs;
+    // Oldest first, each starting at the serial the previous one ends at; replaced, never modified
+    private volatile List<Diff> diffs;
+
+    private ZoneJournal(Path file, int maxDiffs, List<Diff> diffs) {
+        this.file = file;
+        this.maxDiffs = maxDiffs;
+        this.diffs = diffs;
+    }
+
+    /**
+     * The journal file belonging to a zone file.
+     */
+    static Path journalFor(Path json) {
+        String name = json.getFileName().toString();
+        if (name.endsWith(JSON_SUFFIX))
+            name = name.substring(0, name.length() - JSON_SUFFIX.length());
+        return json.resolveSibling(name + SUFFIX);
+    }
+
+    /**
+     * The zone file a journal belongs to.
+     */
+    static Path jsonFor(Path journal) {
+        String name = journal.getFileName().toString();
+        return journal.resolveSibling(name.substring(0, name.length() - SUFFIX.length()) + JSON_SUFFIX);
+    }
+
+    /**
+     * Reads the journal of the given zone file; empty if there is none or it
+     * cannot be read.
+     *
+     * @param maxDiffs number of changes to keep
+     */
+    static ZoneJournal open(Path json, int maxDiffs) {
+        Path file = journalFor(json);
+        List<Diff> diffs = new ArrayList<>();
+        try {
+            if (Files.exists(file)) {
+                long valid = read(Files.readAllBytes(file), diffs);
+                if (valid < Files.size(file)) {
+                    logger.warn("Dropping incomplete change at the end of {}", file);
+                    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                        ch.truncate(valid);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring zone journal " + file + ": " + e);
+            diffs.clear();
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+            }
+        }
+        return new ZoneJournal(file, maxDiffs, Collections.unmodifiableList(diffs));
+    }
+
+    /**
+     * The changes from {@code serial} up to the newest version in the journal,
+     * oldest first; null if the journal does not reach back to that serial.
+     */
+    public List<Diff> since(long serial) {
+        List<Diff> all = diffs;
+        for (int i = all.size() - 1; i >= 0; i--)
+            if (all.get(i).from().getSerial() == serial)
+                return all.subList(i, all.size());
+        return null;
+    }
+
+    /**
+     * Records a change. If it does not continue from the newest change in
+     * the journal, the older changes are dropped, as they no longer lead to
+     * the current version.
+     */
+    synchronized void append(Diff d) throws IOException {
+        List<Diff> all = diffs;
+        if (!all.isEmpty() && all.get(all.size() - 1).to().getSerial() != d.from().getSerial()) {
+            rewrite(List.of(d));
+            return;
+        }
+        if (all.size() + 1 > maxDiffs + Math.max(1, maxDiffs / 2)) {
+            List<Diff> kept = new ArrayList<>(all.subList(all.size() + 1 - maxDiffs, all.size()));
+            kept.add(d);
+            rewrite(kept);
+            return;
+        }
+
+        DNSOutput out = new DNSOutput();
+        if (all.isEmpty()) {
+            out.writeU32(MAGIC);
+            out.writeU32(VERSION);
+        }
+        writeDiff(out, d);
+        StandardOpenOption mode = all.isEmpty() ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode)) {
+            ByteBuffer buf = ByteBuffer.wrap(out.toByteArray());
+            while (buf.hasRemaining())
+                ch.write(buf);
+            ch.force(false);
+        }
+        List<Diff> next = new ArrayList<>(all);
+        next.add(d);
+        diffs = Collections.unmodifiableList(next);
+    }
+
+    /**
+     * Forgets all changes, e.g. after the zone changed without a higher serial.
+     */
+    synchronized void clear() throws IOException {
+        diffs = List.of();
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * The change between two versions of a zone. Records count as changed
+     * if their wire form differs, TTL included.
+     */
+    static Diff diff(ZoneRecords from, ZoneRecords to) {
+        Map<ByteBuffer, org.xbill.DNS.Record> before = byWire(from);
+        Map<ByteBuffer, org.xbill.DNS.Record> after = byWire(to);
+        List<org.xbill.DNS.Record> deleted = new ArrayList<>();
+        for (Map.Entry<ByteBuffer, org.xbill.DNS.Record> e : before.entrySet())
+            if (!after.containsKey(e.getKey()))
+                deleted.add(e.getValue());
+        List<org.xbill.DNS.Record> added = new ArrayList<>();
+        for (Map.Entry<ByteBuffer, org.xbill.DNS.Record> e : after.entrySet())
+            if (!before.containsKey(e.getKey()))
+                added.add(e.getValue());
+        return new Diff(from.soa(), to.soa(), List.copyOf(deleted), List.copyOf(added));
+    }
+
+    /**
+     * The NS and other records of a zone keyed by their canonical wire form,
+     * the identity changes are computed and applied by.
+     */
+    static Map<ByteBuffer, org.xbill.DNS.Record> byWire(ZoneRecords zr) {
+        Map<ByteBuffer, org.xbill.DNS.Record> out = new LinkedHashMap<>();
+        for (org.xbill.DNS.Record r : zr.ns())
+            out.put(ByteBuffer.wrap(r.toWireCanonical()), r);
+        for (org.xbill.DNS.Record r : zr.records())
+            out.put(ByteBuffer.wrap(r.toWireCanonical()), r);
+        return out;
+    }
+
+    private void rewrite(List<Diff> kept) throws IOException {
+        DNSOutput out = new DNSOutput();
+        out.writeU32(MAGIC);
+        out.writeU32(VERSION);
+        for (Diff d : kept)
+            writeDiff(out, d);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(out.toByteArray());
+            while (buf.hasRemaining())
+                ch.write(buf);
+            ch.force(false);
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        diffs = Collections.unmodifiableList(new ArrayList<>(kept));
+    }
+
+    /* ------------------------ ENCODING ------------------------ */
+
+    private static void writeDiff(DNSOutput out, Diff d) {
+        DNSOutput change = new DNSOutput();
+        writeRecord(change, d.from());
+        writeRecord(change, d.to());
+        change.writeU32(d.deleted().size());
+        for (org.xbill.DNS.Record r : d.deleted())
+            writeRecord(change, r);
+        change.writeU32(d.added().size());
+        for (org.xbill.DNS.Record r : d.added())
+            writeRecord(change, r);
+        out.writeU32(change.current());
+        out.writeByteArray(change.toByteArray());
+    }
+
+    private static void writeRecord(DNSOutput out, org.xbill.DNS.Record r) {
+        byte[] wire = r.toWire(Section.ANSWER);
+        out.writeU16(wire.length);
+        out.writeByteArray(wire);
+    }
+
+    /* ------------------------ DECODING ------------------------ */
+
+    /**
+     * Reads all complete changes into {@code out}.
+     *
+     * @return length of the journal up to the end of the last complete change
+     */
+    private static long read(byte[] data, List<Diff> out) throws IOException {
+        DNSInput in = new DNSInput(data);
+        if (data.length < HEADER_LENGTH || in.readU32() != MAGIC || in.readU32() != VERSION)
+            throw new IOException("not a zone journal");
+        long valid = HEADER_LENGTH;
+        while (in.remaining() >= 4) {
+            long length = in.readU32();
+            if (length > in.remaining())
+                break;
+            in.setActive((int) length);
+            SOARecord from = (SOARecord) readRecord(in);
+            SOARecord to = (SOARecord) readRecord(in);
+            List<org.xbill.DNS.Record> deleted = readRecords(in);
+            List<org.xbill.DNS.Record> added = readRecords(in);
+            if (in.remaining() != 0)
+                throw new WireParseException("trailing bytes in change");
+            in.restoreActive(data.length);
+            out.add(new Diff(from, to, deleted, added));
+            valid = in.current();
+        }
+        return valid;
+    }
+
+    private static List<org.xbill.DNS.Record> readRecords(DNSInput in) throws IOException {
+        List<org.xbill.DNS.Record> records = new ArrayList<>();
+        for (long n = in.readU32(); n > 0; n--)
+            records.add(readRecord(in));
+        return List.copyOf(records);
+    }
+
+    private static org.xbill.DNS.Record readRecord(DNSInput in) throws IOException {
+        byte[] wire = in.readByteArray(in.readU16());
+        return org.xbill.DNS.Record.fromWire(wire, Section.ANSWER);
+    }
+}
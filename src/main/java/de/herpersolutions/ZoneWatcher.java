@@ -0,0 +1,116 @@
+package de.herpersolutions;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Name;
+
+import de.herpersolutions.Zones.JsonZone;
+import de.herpersolutions.Zones.ZoneStore;
+import de.herpersolutions.engine.AuthoritativeEngine;
+
+/**
+ * Watches the zone directory and applies created, modified and deleted zone
+ * files to the engine. Events are debounced, so a burst of writes (a deploy
+ * dropping many files, an editor saving twice) turns into one update that
+ * touches only the affected zones.
+ */
+public class ZoneWatcher {
+    private static final Logger logger = LoggerFactory.getLogger(ZoneWatcher.class);
+    private static final String SUFFIX = ".zone.json";
+    // Apply a batch after this long even if events keep coming
+    private static final long MAX_BATCH_DELAY_MS = 5000;
+
+    private final ZoneStore store;
+    private final AuthoritativeEngine engine;
+    private final long debounceMs;
+    private final WatchService watchService;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param debounceMs quiet period after the last event before changes are applied
+     */
+    public ZoneWatcher(ZoneStore store, AuthoritativeEngine engine, long debounceMs) throws IOException {
+        this.store = store;
+        this.engine = engine;
+        this.debounceMs = Math.max(1, debounceMs);
+        this.watchService = store.dir.getFileSystem().newWatchService();
+        store.dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+
+        thread = new Thread(this::watchLoop, "zone-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() {
+        running = false;
+        try {
+            watchService.close();
+        } catch (IOException ignored) {
+        }
+        thread.interrupt();
+    }
+
+    private void watchLoop() {
+        Set<Path> pending = new LinkedHashSet<>();
+        boolean overflow = false;
+        long batchStart = 0;
+        while (running) {
+            try {
+                boolean idle = pending.isEmpty() && !overflow;
+                WatchKey key = idle ? watchService.take() : watchService.poll(debounceMs, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    if (idle)
+                        batchStart = System.currentTimeMillis();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == OVERFLOW) {
+                            overflow = true; // events were lost; rescan everything
+                            continue;
+                        }
+                        Path name = (Path) event.context();
+                        if (name.toString().endsWith(SUFFIX))
+                            pending.add(store.dir.resolve(name));
+                    }
+                    key.reset();
+                    if (System.currentTimeMillis() - batchStart < MAX_BATCH_DELAY_MS)
+                        continue;
+                }
+                if (pending.isEmpty() && !overflow)
+                    continue;
+                apply(pending, overflow);
+                pending.clear();
+                overflow = false;
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+        }
+    }
+
+    private void apply(Set<Path> files, boolean overflow) {
+        try {
+            Map<Name, JsonZone> changes = overflow ? store.loadAll() : store.reloadFiles(files);
+            engine.updateZones(changes);
+            if (!changes.isEmpty())
+                logger.info("Applied {} zone change(s) from {}", changes.size(),
+                        overflow ? "a full rescan" : files.size() + " file(s)");
+        } catch (Exception e) {
+            logger.error("Failed to apply zone file changes", e);
+        }
+    }
+}
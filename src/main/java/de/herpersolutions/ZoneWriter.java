@@ -0,0 +1,948 @@
+package de.herpersolutions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Address;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Serial;
+import org.xbill.DNS.TextParseException;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import de.herpersolutions.Zones.JsonRecord;
+import de.herpersolutions.Zones.JsonZone;
+import de.herpersolutions.Zones.ZoneStore;
+import de.herpersolutions.engine.AuthoritativeEngine;
+
+/**
+ * Applies zone and record changes from the management API and dynamic
+ * updates. Zones are spread over a few lanes by their lock stripe; each lane
+ * queues the changes to its zones and applies them on its own thread in
+ * batches, so changes to one zone are applied in order while other zones
+ * change side by side. Each zone a batch touches gets one new version with
+ * its SOA serial incremented once, the batch is appended to a write-ahead
+ * log shared by all lanes and synced, and only then is the new version
+ * compiled and swapped into the store and the engine. Zone files are brought up to date in the
+ * background, after which the log segments they cover are deleted; segments
+ * left behind by a crash are replayed onto the zone files at startup.
+ * <p>
+ * The log lives in {@code wal/} under the data directory, one file per
+ * segment. Layout, all integers big-endian:
+ * <pre>
+ * int magic, int version
+ * per batch: int length, int CRC-32 of the batch, batch as UTF-8 JSON
+ * </pre>
+ */
+public class ZoneWriter {
+    private static final Logger logger = LoggerFactory.getLogger(ZoneWriter.class);
+    private static final int MAGIC = 0x4A445731; // "JDW1"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final String SUFFIX = ".wal";
+    // Compact early once the current segment grows this large
+    private static final long MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+    // A power of two, so each lane gets whole lock stripes of the store
+    private static final int LANES = Math.min(ZoneStore.STRIPES,
+            Integer.highestOneBit(Math.min(8, Runtime.getRuntime().availableProcessors())));
+
+    static final String PUT_ZONE = "put-zone";
+    static final String DELETE_ZONE = "delete-zone";
+    static final String ADD = "add";
+    static final String REPLACE = "replace";
+    static final String REMOVE = "remove";
+    static final String APEX = "apex";
+
+    /**
+     * One change to a zone, as submitted and as written to the log. Record
+     * changes address the records of one name and type (an RRset); their
+     * names are relative to the zone, {@code "@"} being the apex.
+     */
+    public static final class Change {
+        String action;
+        String origin;
+        JsonZone zone; // put-zone; apex: the SOA fields and name servers
+        String name;
+        String type;
+        List<JsonRecord> records; // add/replace: the records; remove: those to remove, empty for all
+
+        private Change(String action, String origin, JsonZone zone, String name, String type, List<JsonRecord> records) {
+            this.action = action;
+            this.origin = origin;
+            this.zone = zone;
+            this.name = name;
+            this.type = type;
+            this.records = records;
+        }
+
+        /**
+         * Creates a zone or replaces it as a whole. Its file is written right away.
+         *
+         * @throws IllegalArgumentException if the zone does not convert to records
+         */
+        public static Change putZone(JsonZone z) {
+            if (z.origin == null)
+                throw new IllegalArgumentException("zone without origin");
+            if (z.serial < 0 || z.serial > 0xFFFFFFFFL)
+                throw new IllegalArgumentException("serial out of range: " + z.serial);
+            JsonZone copy = z.copy();
+            copy.origin = ZoneStore.normalize(z.origin);
+            Name origin = originName(copy.origin);
+            copy.records.clear();
+            for (JsonRecord r : z.records)
+                copy.records.add(checked(origin, r, true));
+            try {
+                copy.toRecords();
+            } catch (IOException | IllegalArgumentException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+            return new Change(PUT_ZONE, copy.origin, copy, null, null, null);
+        }
+
+        public static Change deleteZone(String origin) {
+            return new Change(DELETE_ZONE, ZoneStore.normalize(origin), null, null, null, null);
+        }
+
+        /**
+         * Adds records; one that only differs in its TTL from a record already
+         * there replaces it.
+         *
+         * @throws IllegalArgumentException for records that do not convert or lie outside the zone
+         */
+        public static Change add(String origin, List<JsonRecord> records) {
+            String key = ZoneStore.normalize(origin);
+            Name name = originName(key);
+            List<JsonRecord> checked = new ArrayList<>();
+            for (JsonRecord r : records)
+                checked.add(checked(name, r, false));
+            if (checked.isEmpty())
+                throw new IllegalArgumentException("no records");
+            return new Change(ADD, key, null, null, null, checked);
+        }
+
+        /**
+         * Replaces all records of a name and type with the given ones.
+         *
+         * @throws IllegalArgumentException for records that do not convert or lie outside the zone
+         */
+        public static Change replace(String origin, String owner, String type, List<JsonRecord> records) {
+            return rrset(REPLACE, origin, owner, type, records);
+        }
+
+        /**
+         * Removes the given records of a name and type, matched by their data
+         * (and MX preference, if given); all of them if none are given.
+         */
+        public static Change remove(String origin, String owner, String type, List<JsonRecord> records) {
+            return rrset(REMOVE, origin, owner, type, records);
+        }
+
+        /**
+         * Sets the zone's SOA fields and name servers, its apex SOA and NS
+         * records, to those of {@code z}; its records are ignored. A serial
+         * newer than the zone's is taken as it is, otherwise the zone's serial
+         * is incremented as for any other change.
+         *
+         * @throws IllegalArgumentException for a serial out of range or invalid name server names
+         */
+        public static Change apex(JsonZone z) {
+            if (z.serial < 0 || z.serial > 0xFFFFFFFFL)
+                throw new IllegalArgumentException("serial out of range: " + z.serial);
+            JsonZone head = z.copy();
+            head.origin = ZoneStore.normalize(z.origin);
+            head.records = new ArrayList<>();
+            try {
+                head.toRecords();
+            } catch (IOException | IllegalArgumentException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+            return new Change(APEX, head.origin, head, null, null, null);
+        }
+
+        /**
+         * The changes that turn {@code before} into {@code after}, two versions
+         * of one zone: each RRset that differs is replaced, then the apex is
+         * set if the SOA fields or name servers differ. Records are taken as
+         * they are, since both versions already hold them.
+         */
+        public static List<Change> between(JsonZone before, JsonZone after) {
+            String origin = ZoneStore.normalize(after.origin);
+            Map<String, List<JsonRecord>> old = Working.sets(before.records, origin);
+            Map<String, List<JsonRecord>> now = Working.sets(after.records, origin);
+            List<Change> out = new ArrayList<>();
+            for (Map.Entry<String, List<JsonRecord>> e : now.entrySet())
+                if (!e.getValue().equals(old.get(e.getKey())))
+                    out.add(replaced(origin, e.getKey(), e.getValue()));
+            for (String key : old.keySet())
+                if (!now.containsKey(key))
+                    out.add(replaced(origin, key, List.of()));
+            if (!Objects.equals(before.admin, after.admin) || before.serial != after.serial
+                    || before.refresh != after.refresh || before.retry != after.retry
+                    || before.expire != after.expire || before.minimum != after.minimum
+                    || !Objects.equals(before.ns, after.ns))
+                out.add(apex(after));
+            return out;
+        }
+
+        private static Change replaced(String origin, String setKey, List<JsonRecord> records) {
+            int space = setKey.lastIndexOf(' ');
+            return new Change(REPLACE, origin, null, setKey.substring(0, space), setKey.substring(space + 1),
+                    new ArrayList<>(records));
+        }
+
+        private static Change rrset(String action, String origin, String owner, String type, List<JsonRecord> records) {
+            String key = ZoneStore.normalize(origin);
+            Name name = originName(key);
+            Name ownerName = ownerName(name, owner);
+            String setType = checkedType(name, ownerName, type, false);
+            String relative = JsonZone.toRelativeName(ownerName, name);
+            List<JsonRecord> checked = new ArrayList<>();
+            for (JsonRecord r : records)
+                checked.add(checked(name, new JsonRecord(relative, setType, r.ttl, r.data, r.priority), false));
+            return new Change(action, key, null, relative, setType, checked);
+        }
+
+        private static Name originName(String origin) {
+            try {
+                return Name.fromString(origin, Name.root);
+            } catch (TextParseException e) {
+                throw new IllegalArgumentException("invalid zone origin: " + origin);
+            }
+        }
+
+        /**
+         * The record with its name relative to the zone and its type in upper
+         * case, after checking it converts like the zone's records will.
+         */
+        private static JsonRecord checked(Name origin, JsonRecord r, boolean inZoneFile) {
+            Name owner = ownerName(origin, r.name);
+            String type = checkedType(origin, owner, r.type, inZoneFile);
+            if (r.data == null || r.data.isEmpty())
+                throw new IllegalArgumentException("record " + owner + " " + type + " without data");
+            // Names would be looked up when the zone is compiled; only addresses are accepted
+            if (type.equals("A") && Address.toByteArray(r.data, Address.IPv4) == null)
+                throw new IllegalArgumentException("not an IPv4 address: " + r.data);
+            if (type.equals("AAAA") && Address.toByteArray(r.data, Address.IPv6) == null)
+                throw new IllegalArgumentException("not an IPv6 address: " + r.data);
+            JsonRecord out = new JsonRecord(JsonZone.toRelativeName(owner, origin), type, r.ttl < 0 ? -1 : r.ttl,
+                    r.data, "MX".equals(type) ? r.priority : null);
+            if (!inZoneFile) {
+                JsonZone probe = new JsonZone();
+                probe.origin = origin.toString();
+                probe.records.add(out);
+                try {
+                    probe.toRecords();
+                } catch (IOException | IllegalArgumentException e) {
+                    throw new IllegalArgumentException("invalid record " + owner + " " + type + " " + r.data + ": "
+                            + e.getMessage(), e);
+                }
+            }
+            return out;
+        }
+
+        private static Name ownerName(Name origin, String name) {
+            Name owner;
+            try {
+                owner = JsonZone.toOwnerName(name, origin);
+            } catch (TextParseException e) {
+                throw new IllegalArgumentException("invalid name: " + name);
+            }
+            if (!owner.subdomain(origin))
+                throw new IllegalArgumentException(owner + " is not in zone " + origin);
+            return owner;
+        }
+
+        /**
+         * The type in upper case, if the JSON format can hold it. NS records at
+         * the apex are only accepted as part of a whole zone, which keeps them
+         * apart from its {@code ns} list.
+         */
+        private static String checkedType(Name origin, Name owner, String type, boolean inZoneFile) {
+            String t = type == null ? "A" : type.toUpperCase(Locale.ROOT);
+            switch (t) {
+                case "NS":
+                    if (owner.equals(origin) && !inZoneFile)
+                        throw new IllegalArgumentException("the apex NS records are the zone's name servers; put the zone to change them");
+                    break;
+                case "A":
+                case "AAAA":
+                case "CNAME":
+                case "MX":
+                case "TXT":
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported record type: " + t);
+            }
+            return t;
+        }
+    }
+
+    /** The changes applied together, and the serial each zone with record changes got. */
+    private static final class Batch {
+        Map<String, Long> serials = new TreeMap<>();
+        List<Change> changes = new ArrayList<>();
+    }
+
+    // Either changes or an edit that works them out
+    private record Request(String origin, List<Change> changes, Edit edit, CompletableFuture<JsonZone> result) {
+    }
+
+    /**
+     * Works out changes to a zone from the version they will be applied to,
+     * e.g. after checking conditions on it, so nothing can change the zone in
+     * between. Runs on the thread of the zone's lane.
+     */
+    public interface Edit {
+        /**
+         * @param current the zone as the changes will find it; must not be changed
+         * @return the changes to apply; none leaves the zone as it is
+         */
+        List<Change> changes(JsonZone current);
+    }
+
+    /**
+     * A zone being changed by a batch (or by replaying the log). Its records
+     * are grouped by name and type on first use, so each change touches only
+     * its own set however large the zone.
+     */
+    private static final class Working {
+        final JsonZone zone; // null once deleted
+        final boolean put;
+        private final String origin;
+        private LinkedHashMap<String, List<JsonRecord>> sets;
+
+        Working(JsonZone zone, boolean put) {
+            this.zone = zone;
+            this.put = put;
+            this.origin = zone == null ? null : ZoneStore.normalize(zone.origin);
+        }
+
+        /**
+         * @return true if the change set the zone's serial, so it is not incremented
+         */
+        boolean apply(Change c) {
+            if (sets == null)
+                sets = sets(zone.records, origin);
+            List<JsonRecord> set;
+            switch (c.action) {
+                case ADD:
+                    for (JsonRecord r : c.records) {
+                        set = sets.computeIfAbsent(setKey(r.name, r.type, origin), k -> new ArrayList<>());
+                        set.removeIf(old -> sameData(old, r));
+                        set.add(r);
+                    }
+                    break;
+                case REPLACE:
+                    set = sets.computeIfAbsent(setKey(c.name, c.type, origin), k -> new ArrayList<>());
+                    set.clear();
+                    set.addAll(c.records);
+                    break;
+                case REMOVE:
+                    set = sets.get(setKey(c.name, c.type, origin));
+                    if (set != null) {
+                        if (c.records.isEmpty())
+                            set.clear();
+                        else
+                            set.removeIf(old -> c.records.stream().anyMatch(r -> sameData(old, r)));
+                    }
+                    break;
+                case APEX:
+                    zone.admin = c.zone.admin;
+                    zone.refresh = c.zone.refresh;
+                    zone.retry = c.zone.retry;
+                    zone.expire = c.zone.expire;
+                    zone.minimum = c.zone.minimum;
+                    zone.ns = new ArrayList<>(c.zone.ns);
+                    if (Serial.compare(c.zone.serial, zone.serial) > 0) {
+                        zone.serial = c.zone.serial;
+                        return true;
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown change: " + c.action);
+            }
+            return false;
+        }
+
+        /** Records grouped by name and type, in the order the groups first appear. */
+        static LinkedHashMap<String, List<JsonRecord>> sets(List<JsonRecord> records, String origin) {
+            LinkedHashMap<String, List<JsonRecord>> out = new LinkedHashMap<>();
+            for (JsonRecord r : records)
+                out.computeIfAbsent(setKey(r.name, r.type, origin), k -> new ArrayList<>()).add(r);
+            return out;
+        }
+
+        /** The zone with the changed records written back. */
+        JsonZone finish() {
+            if (zone != null && sets != null) {
+                zone.records = new ArrayList<>();
+                for (List<JsonRecord> set : sets.values())
+                    zone.records.addAll(set);
+                sets = null;
+            }
+            return zone;
+        }
+
+        /** Owner name relative to the zone and in lower case, plus type; how sets are told apart. */
+        private static String setKey(String name, String type, String origin) {
+            String n = name == null ? "@" : name.toLowerCase(Locale.ROOT);
+            if (n.equals(origin))
+                n = "@";
+            else if (n.endsWith("." + origin))
+                n = n.substring(0, n.length() - origin.length() - 1);
+            return n + " " + (type == null ? "A" : type.toUpperCase(Locale.ROOT));
+        }
+
+        private static boolean sameData(JsonRecord old, JsonRecord r) {
+            return Objects.equals(old.data, r.data) && (r.priority == null || Objects.equals(old.priority, r.priority));
+        }
+    }
+
+    private final ZoneStore store;
+    private final AuthoritativeEngine engine;
+    private final int batchSize;
+    private final Path walDir;
+    private final Gson gson = new Gson();
+    private final Lane[] lanes = new Lane[LANES];
+    private final ScheduledExecutorService compactor;
+    private volatile boolean closed;
+
+    // Guards the log and which zones it holds changes for
+    private final Object walLock = new Object();
+    private FileChannel channel;
+    private long segment;
+    private long segmentBytes;
+    private Set<String> dirty = new HashSet<>(); // zones changed since the current segment began
+
+    /**
+     * Replays what the log holds beyond the zone files and starts accepting changes.
+     *
+     * @param batchSize most requests applied in one batch
+     * @param compactIntervalMs how often changed zones are written to their files
+     */
+    public ZoneWriter(ZoneStore store, AuthoritativeEngine engine, int batchSize, long compactIntervalMs)
+            throws IOException {
+        this.store = store;
+        this.engine = engine;
+        this.batchSize = Math.max(1, batchSize);
+        this.walDir = store.dir.resolve("wal");
+        Files.createDirectories(walDir);
+        replay();
+        openSegment(segment + 1);
+
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "zone-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = Math.max(100, compactIntervalMs);
+        compactor.scheduleWithFixedDelay(this::compact, interval, interval, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < lanes.length; i++)
+            lanes[i] = new Lane(i);
+    }
+
+    /**
+     * Queues changes to one zone, applied together or not at all. The result
+     * completes once they are in the log and being served: with the new
+     * version of the zone, null if it was deleted, or exceptionally with
+     * {@link NoSuchElementException} if there is no such zone.
+     */
+    public CompletableFuture<JsonZone> submit(String origin, List<Change> changes) {
+        CompletableFuture<JsonZone> result = new CompletableFuture<>();
+        if (closed)
+            result.completeExceptionally(new IllegalStateException("Shutting down"));
+        else
+            enqueue(new Request(ZoneStore.normalize(origin), List.copyOf(changes), null, result));
+        return result;
+    }
+
+    /**
+     * Queues an edit of an existing zone. The result completes like that of
+     * {@link #submit(String, List)}; if the edit makes no changes, with the
+     * zone as it was.
+     */
+    public CompletableFuture<JsonZone> submit(String origin, Edit edit) {
+        CompletableFuture<JsonZone> result = new CompletableFuture<>();
+        if (closed)
+            result.completeExceptionally(new IllegalStateException("Shutting down"));
+        else
+            enqueue(new Request(ZoneStore.normalize(origin), null, edit, result));
+        return result;
+    }
+
+    /**
+     * Applies what is queued, writes all changed zones to their files and
+     * closes the log.
+     */
+    public void close() {
+        closed = true;
+        try {
+            for (Lane lane : lanes)
+                lane.thread.join(CLOSE_TIMEOUT_MS);
+            compactor.shutdown();
+            compactor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Lane lane : lanes)
+            for (Request r; (r = lane.queue.poll()) != null;)
+                r.result.completeExceptionally(new IllegalStateException("Shutting down"));
+        compact();
+        synchronized (walLock) {
+            try {
+                if (channel != null)
+                    channel.close();
+                if (segmentBytes == HEADER_LENGTH)
+                    Files.deleteIfExists(segmentPath(segment));
+            } catch (IOException e) {
+                logger.warn("Failed to close the write-ahead log: {}", e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    /** Changes to the zones of some lock stripes, applied by one thread. */
+    private final class Lane {
+        final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+        final Thread thread;
+
+        Lane(int index) {
+            thread = new Thread(() -> writeLoop(queue), "zone-writer-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void enqueue(Request r) {
+        lanes[ZoneStore.stripeOf(r.origin) % lanes.length].queue.add(r);
+    }
+
+    private void writeLoop(BlockingQueue<Request> queue) {
+        List<Request> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed)
+                        break;
+                    continue;
+                }
+                // Whatever queued up while the last batch was synced goes into this one
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                write(batch);
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                logger.error("Failed to apply zone changes", e);
+                for (Request r : batch)
+                    r.result.completeExceptionally(e);
+            }
+            batch.clear();
+        }
+    }
+
+    private void write(List<Request> batch) {
+        // Only lanes hold more than one zone lock, each those of its own stripes, so any order is safe
+        Set<ReentrantLock> locks = new LinkedHashSet<>();
+        for (Request r : batch)
+            locks.add(store.lockFor(r.origin));
+        for (ReentrantLock lock : locks)
+            lock.lock();
+        try {
+            write(batch, new LinkedHashMap<>());
+        } finally {
+            for (ReentrantLock lock : locks)
+                lock.unlock();
+        }
+    }
+
+    private void write(List<Request> batch, Map<String, Working> working) {
+        Set<String> changed = new HashSet<>();
+        Set<String> bumped = new HashSet<>();
+        List<Request> accepted = new ArrayList<>();
+        Batch logged = new Batch();
+        for (Request r : batch) {
+            Working w = working.containsKey(r.origin) ? working.get(r.origin) : current(r.origin);
+            List<Change> changes = r.changes;
+            if (r.edit != null) {
+                if (w == null || w.zone == null) {
+                    r.result.completeExceptionally(new NoSuchElementException("No zone " + r.origin));
+                    continue;
+                }
+                try {
+                    changes = r.edit.changes(w.finish());
+                } catch (RuntimeException e) {
+                    r.result.completeExceptionally(e);
+                    continue;
+                }
+                if (changes.isEmpty()) {
+                    r.result.complete(w.zone);
+                    continue;
+                }
+            }
+            if (!applicable(w, changes)) {
+                r.result.completeExceptionally(new NoSuchElementException("No zone " + r.origin));
+                continue;
+            }
+            for (Change c : changes) {
+                switch (c.action) {
+                    case PUT_ZONE:
+                        w = new Working(c.zone.copy(), true);
+                        changed.remove(r.origin);
+                        bumped.remove(r.origin);
+                        break;
+                    case DELETE_ZONE:
+                        w = new Working(null, false);
+                        changed.remove(r.origin);
+                        bumped.remove(r.origin);
+                        break;
+                    default:
+                        changed.add(r.origin);
+                        if (w.apply(c))
+                            bumped.remove(r.origin);
+                        else
+                            bumped.add(r.origin);
+                }
+            }
+            working.put(r.origin, w);
+            logged.changes.addAll(changes);
+            accepted.add(r);
+        }
+        if (accepted.isEmpty())
+            return;
+        for (String origin : changed) {
+            JsonZone z = working.get(origin).zone;
+            if (bumped.contains(origin))
+                z.serial = Serial.increment(z.serial);
+            logged.serials.put(origin, z.serial);
+        }
+
+        synchronized (walLock) {
+            try {
+                append(logged);
+            } catch (IOException e) {
+                logger.error("Failed to write zone changes to the write-ahead log: {}", e.getMessage());
+                for (Request r : accepted)
+                    r.result.completeExceptionally(e);
+                return;
+            }
+            dirty.addAll(working.keySet());
+            if (segmentBytes > MAX_SEGMENT_BYTES)
+                compactSoon();
+        }
+        // In the log now, so it is safe to serve. Other lanes append meanwhile; compaction
+        // waits for the zone locks held here, so it writes out these versions
+        try {
+            engine.updateZones(publish(working));
+        } catch (IOException e) {
+            logger.error("Failed to index changed zones", e);
+        }
+        for (Request r : accepted)
+            r.result.complete(working.get(r.origin).zone);
+    }
+
+    /** False if a change would delete or edit a zone that does not exist at that point. */
+    private static boolean applicable(Working w, List<Change> changes) {
+        boolean exists = w != null && w.zone != null;
+        for (Change c : changes) {
+            if (PUT_ZONE.equals(c.action))
+                exists = true;
+            else if (!exists)
+                return false;
+            else if (DELETE_ZONE.equals(c.action))
+                exists = false;
+        }
+        return true;
+    }
+
+    /** A copy of the zone as the store has it to change, or null if there is none. */
+    private Working current(String origin) {
+        JsonZone z = store.getZone(origin);
+        return z == null ? null : new Working(z.copy(), false);
+    }
+
+    /**
+     * Swaps changed zones into the store: zones put as a whole are written to
+     * their files right away, so a reload does not lose them; deleted zones
+     * lose their files.
+     */
+    private Map<Name, JsonZone> publish(Map<String, Working> working) throws IOException {
+        Map<Name, JsonZone> changes = new HashMap<>();
+        List<JsonZone> updated = new ArrayList<>();
+        for (Map.Entry<String, Working> e : working.entrySet()) {
+            Working w = e.getValue();
+            JsonZone z = w.finish();
+            if (z == null)
+                changes.putAll(store.removeZone(e.getKey()));
+            else if (w.put)
+                changes.putAll(store.replaceZone(z));
+            else
+                updated.add(z);
+        }
+        changes.putAll(store.putZones(updated));
+        return changes;
+    }
+
+    /* ------------------------ LOG ------------------------ */
+
+    private Path segmentPath(long seq) {
+        return walDir.resolve(String.format("%016d", seq) + SUFFIX);
+    }
+
+    /** The log segments, oldest first. */
+    private TreeMap<Long, Path> segments() throws IOException {
+        TreeMap<Long, Path> out = new TreeMap<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(walDir, "*" + SUFFIX)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                try {
+                    out.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), p);
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unexpected file in the write-ahead log: {}", p);
+                }
+            }
+        }
+        return out;
+    }
+
+    private void openSegment(long seq) throws IOException {
+        Path p = segmentPath(seq);
+        FileChannel ch = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(VERSION).flip();
+            while (header.hasRemaining())
+                ch.write(header);
+            ch.force(false);
+            // The new file's directory entry too, or a crash could lose the batches synced into it
+            ZoneStore.syncDirectory(walDir);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        channel = ch;
+        segment = seq;
+        segmentBytes = HEADER_LENGTH;
+    }
+
+    /** Appends a batch to the current segment and syncs it. Call with {@code walLock} held. */
+    private void append(Batch b) throws IOException {
+        if (channel == null)
+            openSegment(segment + 1);
+        byte[] json = gson.toJson(b).getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(json);
+        ByteBuffer buf = ByteBuffer.allocate(8 + json.length).putInt(json.length).putInt((int) crc.getValue())
+                .put(json).flip();
+        try {
+            while (buf.hasRemaining())
+                channel.write(buf);
+            channel.force(false);
+        } catch (IOException e) {
+            // Part of the batch may be in the segment; leave it behind as its torn end
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+            throw e;
+        }
+        segmentBytes += buf.limit();
+    }
+
+    /**
+     * Reads the complete batches of a segment; a batch cut short by a crash
+     * ends it.
+     */
+    private List<Batch> read(Path p) throws IOException {
+        byte[] data = Files.readAllBytes(p);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        List<Batch> out = new ArrayList<>();
+        if (data.length < HEADER_LENGTH || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            logger.warn("Ignoring {}: not a write-ahead log segment", p);
+            return out;
+        }
+        while (buf.remaining() >= 8) {
+            int length = buf.getInt();
+            int crc = buf.getInt();
+            if (length < 0 || length > buf.remaining())
+                break;
+            byte[] json = new byte[length];
+            buf.get(json);
+            CRC32 check = new CRC32();
+            check.update(json);
+            if ((int) check.getValue() != crc)
+                break;
+            try {
+                out.add(gson.fromJson(new String(json, StandardCharsets.UTF_8), Batch.class));
+            } catch (JsonParseException e) {
+                break;
+            }
+        }
+        if (buf.position() < data.length)
+            logger.warn("Dropping incomplete batch at the end of {}", p);
+        return out;
+    }
+
+    /**
+     * Applies the batches in the log to the zones loaded from their files.
+     * Record changes for a zone whose file already has the serial they led
+     * to, or a later one, were written to the file before the crash and are
+     * skipped.
+     */
+    private void replay() throws IOException {
+        TreeMap<Long, Path> segments = segments();
+        if (segments.isEmpty())
+            return;
+        segment = segments.lastKey();
+        Map<String, Working> working = new LinkedHashMap<>();
+        int batches = 0;
+        for (Path p : segments.values()) {
+            for (Batch b : read(p)) {
+                batches++;
+                Map<String, Boolean> applies = new HashMap<>();
+                for (Change c : b.changes) {
+                    switch (c.action) {
+                        case PUT_ZONE:
+                            working.put(c.origin, new Working(c.zone.copy(), true));
+                            applies.put(c.origin, true);
+                            break;
+                        case DELETE_ZONE:
+                            working.put(c.origin, new Working(null, false));
+                            applies.put(c.origin, false);
+                            break;
+                        default: {
+                            Working w = working.containsKey(c.origin) ? working.get(c.origin) : current(c.origin);
+                            Long serial = b.serials.get(c.origin);
+                            if (!applies.containsKey(c.origin))
+                                applies.put(c.origin, w != null && w.zone != null && serial != null
+                                        && Serial.compare(serial, w.zone.serial) > 0);
+                            if (!applies.get(c.origin))
+                                break;
+                            working.put(c.origin, w);
+                            w.apply(c);
+                        }
+                    }
+                }
+                for (Map.Entry<String, Long> e : b.serials.entrySet())
+                    if (Boolean.TRUE.equals(applies.get(e.getKey())))
+                        working.get(e.getKey()).zone.serial = e.getValue();
+            }
+        }
+        if (working.isEmpty()) {
+            for (Path p : segments.values())
+                Files.deleteIfExists(p);
+            return;
+        }
+        // Zones put as a whole are written again by the next compaction, like the others
+        List<JsonZone> updated = new ArrayList<>();
+        Map<Name, JsonZone> changes = new HashMap<>();
+        for (Map.Entry<String, Working> e : working.entrySet()) {
+            JsonZone z = e.getValue().finish();
+            if (z == null)
+                changes.putAll(store.removeZone(e.getKey()));
+            else
+                updated.add(z);
+        }
+        changes.putAll(store.putZones(updated));
+        engine.updateZones(changes);
+        dirty.addAll(working.keySet());
+        logger.info("Replayed {} batch(es) from the write-ahead log, {} zone(s) changed", batches, changes.size());
+    }
+
+    /* ------------------------ COMPACTION ------------------------ */
+
+    private void compactSoon() {
+        try {
+            compactor.execute(this::compact);
+        } catch (RejectedExecutionException e) {
+            // Shutting down; close() compacts
+        }
+    }
+
+    /**
+     * Writes the zones changed since the last compaction to their files and
+     * deletes the segments that held their changes, once
+     * {@link ZoneStore#saveZone} has synced the files to disk. Changes
+     * arriving meanwhile go to a new segment, which is kept.
+     */
+    private void compact() {
+        Set<String> pending;
+        long covered;
+        synchronized (walLock) {
+            if (dirty.isEmpty())
+                return;
+            covered = segment;
+            try {
+                if (channel != null)
+                    channel.close();
+                channel = null;
+                openSegment(segment + 1);
+            } catch (IOException e) {
+                logger.error("Failed to start a new write-ahead log segment: {}", e.getMessage());
+                return;
+            }
+            pending = dirty;
+            dirty = new HashSet<>();
+        }
+        long start = System.nanoTime();
+        for (String origin : pending) {
+            // Under the zone's lock, so a newer version is never overwritten by this one
+            ReentrantLock lock = store.lockFor(origin);
+            lock.lock();
+            try {
+                JsonZone z = store.getZone(origin);
+                if (z != null) // else deleted, and its file with it
+                    store.saveZone(z);
+            } catch (IOException e) {
+                logger.error("Failed to write zone " + origin + ", keeping its changes in the write-ahead log: "
+                        + e.getMessage());
+                synchronized (walLock) {
+                    dirty.addAll(pending);
+                }
+                return;
+            } finally {
+                lock.unlock();
+            }
+        }
+        try {
+            for (Map.Entry<Long, Path> e : segments().headMap(covered, true).entrySet())
+                Files.deleteIfExists(e.getValue());
+        } catch (IOException e) {
+            logger.warn("Failed to delete write-ahead log segments: {}", e.getMessage());
+        }
+        logger.debug("Wrote {} changed zone(s) in {} ms", pending.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+}
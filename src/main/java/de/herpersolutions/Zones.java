@@ -1,29 +1,70 @@
 package de.herpersolutions;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Instant;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.MXRecord;
+import org.xbill.DNS.NSRecord;
 import org.xbill.DNS.Name;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Serial;
+import org.xbill.DNS.TXTRecord;
 import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
 
 public class Zones {
     public static Logger logger = LoggerFactory.getLogger(Zones.class);
@@ -39,10 +80,208 @@ public class Zones {
         long serial = 1;
         long refresh = 3600, retry = 900, expire = 1209600, minimum = 300;
         List<JsonRecord> records = new ArrayList<>();
+        // Records decoded from a binary zone image, so names and addresses need not be parsed again
+        @Getter(AccessLevel.NONE)
+        @ToString.Exclude
+        private final transient AtomicReference<ZoneRecords> decoded = new AtomicReference<>();
 
         public Name originName() throws TextParseException {
             return Name.fromString(origin, Name.root);
         }
+
+        /**
+         * This zone as dnsjava records: the ones decoded from its binary image
+         * if it was loaded from one, otherwise parsed from the JSON fields.
+         */
+        public ZoneRecords toRecords() throws IOException {
+            ZoneRecords r = decoded.get();
+            return r != null ? r : parseRecords();
+        }
+
+        void setDecodedRecords(ZoneRecords r) {
+            decoded.set(r);
+        }
+
+        /**
+         * Drops the decoded records once they were compiled into a form that no
+         * longer needs them; {@link #toRecords()} parses the fields again if asked.
+         */
+        public void releaseRecords() {
+            decoded.set(null);
+        }
+
+        /**
+         * Replaces the records with a read-only copy that holds them all in one
+         * array, for zones served from a form of their own that only need the
+         * records for changes, saving and the API. Each record is decoded when
+         * read; {@link #copy()} gives a zone with ordinary records again.
+         */
+        public void packRecords() {
+            if (!(records instanceof PackedRecords))
+                records = PackedRecords.of(records);
+        }
+
+        /**
+         * A copy whose fields and lists can be changed without affecting
+         * readers of this zone. Records are shared, so replace them rather
+         * than changing them.
+         */
+        public JsonZone copy() {
+            return new JsonZone(origin, defaultTtl, admin, new ArrayList<>(ns), serial, refresh, retry, expire, minimum,
+                    new ArrayList<>(records));
+        }
+
+        private ZoneRecords parseRecords() throws IOException {
+            Name origin = originName();
+            long ttl = Math.max(0, defaultTtl);
+
+            // SOA
+            Name mname = ns.isEmpty() ? Name.fromString("ns1." + this.origin, Name.root)
+                    : Name.fromString(ensureDot(ns.get(0)), Name.root);
+            Name rname = Name.fromString(ensureDot(admin), Name.root);
+            SOARecord soa = new SOARecord(origin, DClass.IN, ttl, mname, rname, serial, refresh, retry, expire, minimum);
+
+            // NS (authoritative)
+            List<NSRecord> nsRecs = new ArrayList<>();
+            for (String nsHost : ns)
+                nsRecs.add(new NSRecord(origin, DClass.IN, ttl, Name.fromString(ensureDot(nsHost), Name.root)));
+
+            // Other records
+            List<org.xbill.DNS.Record> out = new ArrayList<>();
+            for (JsonRecord jr : records) {
+                org.xbill.DNS.Record r = toRecord(jr, origin, ttl);
+                if (r != null)
+                    out.add(r);
+            }
+            return new ZoneRecords(soa, List.copyOf(nsRecs), List.copyOf(out));
+        }
+
+        /**
+         * One record of a zone as a dnsjava record; null for an SOA, which
+         * comes from the zone's own fields, and for unsupported types.
+         */
+        static org.xbill.DNS.Record toRecord(JsonRecord jr, Name origin, long defaultTtl) throws IOException {
+            long rttl = jr.getTtl() >= 0 ? jr.getTtl() : defaultTtl;
+            Name owner = toOwnerName(jr.getName(), origin);
+            String t = jr.getType() == null ? "A" : jr.getType().toUpperCase(Locale.ROOT);
+            switch (t) {
+                case "A":
+                    return new ARecord(owner, DClass.IN, rttl, InetAddress.getByName(jr.getData()));
+                case "AAAA":
+                    return new AAAARecord(owner, DClass.IN, rttl, InetAddress.getByName(jr.getData()));
+                case "CNAME":
+                    return new CNAMERecord(owner, DClass.IN, rttl, Name.fromString(ensureDot(jr.getData()), Name.root));
+                case "TXT":
+                    return new TXTRecord(owner, DClass.IN, rttl, jr.getData());
+                case "MX": {
+                    int pref = jr.getPriority() == null ? 10 : jr.getPriority();
+                    Name target = Name.fromString(ensureDot(jr.getData()), Name.root);
+                    return new MXRecord(owner, DClass.IN, rttl, pref, target);
+                }
+                case "NS": {
+                    Name target = Name.fromString(ensureDot(jr.getData()), Name.root);
+                    return new NSRecord(owner, DClass.IN, rttl, target);
+                }
+                case "SOA": // usually derived from zone; ignore explicit
+                    return null;
+                default:
+                    System.err.println("Unsupported RR type in JSON: " + t + ", skipping.");
+                    return null;
+            }
+        }
+
+        /**
+         * A zone holding the given records, e.g. as received by a zone
+         * transfer. Timers and the default TTL come from the SOA; apex NS
+         * records with that TTL become the zone's name servers, the SOA's
+         * MNAME first. TXT strings are joined, and record types the JSON
+         * format has no field for are left out.
+         */
+        public static JsonZone fromRecords(SOARecord soa, Collection<org.xbill.DNS.Record> records) {
+            Name origin = soa.getName();
+            JsonZone z = new JsonZone();
+            z.origin = origin.toString();
+            z.defaultTtl = soa.getTTL();
+            z.admin = soa.getAdmin().toString();
+            z.serial = soa.getSerial();
+            z.refresh = soa.getRefresh();
+            z.retry = soa.getRetry();
+            z.expire = soa.getExpire();
+            z.minimum = soa.getMinimum();
+            int skipped = 0;
+            for (org.xbill.DNS.Record r : records) {
+                if (r.getType() == Type.SOA)
+                    continue;
+                if (r.getType() == Type.NS && r.getName().equals(origin) && r.getTTL() == soa.getTTL()) {
+                    String target = ((NSRecord) r).getTarget().toString();
+                    if (((NSRecord) r).getTarget().equals(soa.getHost()))
+                        z.ns.add(0, target);
+                    else
+                        z.ns.add(target);
+                    continue;
+                }
+                JsonRecord jr = fromRecord(r, origin);
+                if (jr == null)
+                    skipped++;
+                else
+                    z.records.add(jr);
+            }
+            if (skipped > 0)
+                logger.warn("Zone " + z.origin + ": left out " + skipped + " record(s) of unsupported types");
+            return z;
+        }
+
+        /**
+         * A dnsjava record as a record of the zone at {@code origin}, with an
+         * explicit TTL; null for types the JSON format has no field for.
+         */
+        static JsonRecord fromRecord(org.xbill.DNS.Record r, Name origin) {
+            String name = toRelativeName(r.getName(), origin);
+            long ttl = r.getTTL();
+            switch (r.getType()) {
+                case Type.NS:
+                    return new JsonRecord(name, "NS", ttl, ((NSRecord) r).getTarget().toString(), null);
+                case Type.A:
+                    return new JsonRecord(name, "A", ttl, ((ARecord) r).getAddress().getHostAddress(), null);
+                case Type.AAAA:
+                    return new JsonRecord(name, "AAAA", ttl, ((AAAARecord) r).getAddress().getHostAddress(), null);
+                case Type.CNAME:
+                    return new JsonRecord(name, "CNAME", ttl, ((CNAMERecord) r).getTarget().toString(), null);
+                case Type.TXT:
+                    return new JsonRecord(name, "TXT", ttl, String.join("", ((TXTRecord) r).getStrings()), null);
+                case Type.MX: {
+                    MXRecord mx = (MXRecord) r;
+                    return new JsonRecord(name, "MX", ttl, mx.getTarget().toString(), mx.getPriority());
+                }
+                default:
+                    return null;
+            }
+        }
+
+        static String toRelativeName(Name name, Name origin) {
+            if (name.equals(origin))
+                return "@";
+            return name.subdomain(origin) ? name.relativize(origin).toString() : name.toString();
+        }
+
+        static Name toOwnerName(String name, Name origin) throws TextParseException {
+            if (name == null || name.equals("@"))
+                return origin;
+            if (name.endsWith("."))
+                return Name.fromString(name, Name.root);
+            return Name.fromString(name + "." + origin, Name.root);
+        }
+
+        private static String ensureDot(String s) {
+            return s.endsWith(".") ? s : s + ".";
+        }
+    }
+
+    /**
+     * The records of one zone, ready to index: its SOA, its own NS set (from
+     * {@link JsonZone#getNs()}) and all other records.
+     */
+    public record ZoneRecords(SOARecord soa, List<NSRecord> ns, List<org.xbill.DNS.Record> records) {
     }
 
     @Data
@@ -56,33 +295,170 @@ public class Zones {
         Integer priority; // MX preference (if type == MX)
     }
 
+    /**
+     * Records packed into one array: per record its TTL, MX preference
+     * ({@code Integer.MIN_VALUE} for none), then name, type and data as int
+     * length (-1 for null) and UTF-8. Immutable, so zones can swap it in while
+     * others read them.
+     */
+    private static final class PackedRecords extends AbstractList<JsonRecord> implements RandomAccess {
+        private final byte[] data;
+        private final int[] offsets;
+
+        private PackedRecords(byte[] data, int[] offsets) {
+            this.data = data;
+            this.offsets = offsets;
+        }
+
+        static PackedRecords of(List<JsonRecord> records) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int[] offsets = new int[records.size()];
+            try {
+                for (int i = 0; i < offsets.length; i++) {
+                    JsonRecord r = records.get(i);
+                    offsets[i] = out.size();
+                    out.writeLong(r.ttl);
+                    out.writeInt(r.priority == null ? Integer.MIN_VALUE : r.priority);
+                    writeString(out, r.name);
+                    writeString(out, r.type);
+                    writeString(out, r.data);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // not thrown by an in-memory stream
+            }
+            return new PackedRecords(bytes.toByteArray(), offsets);
+        }
+
+        @Override
+        public JsonRecord get(int index) {
+            ByteBuffer buf = ByteBuffer.wrap(data, offsets[index], data.length - offsets[index]);
+            long ttl = buf.getLong();
+            int priority = buf.getInt();
+            String name = readString(buf);
+            String type = readString(buf);
+            return new JsonRecord(name, type, ttl, readString(buf), priority == Integer.MIN_VALUE ? null : priority);
+        }
+
+        @Override
+        public int size() {
+            return offsets.length;
+        }
+
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+
+        private static String readString(ByteBuffer buf) {
+            int len = buf.getInt();
+            if (len < 0)
+                return null;
+            String s = new String(buf.array(), buf.position(), len, StandardCharsets.UTF_8);
+            buf.position(buf.position() + len);
+            return s;
+        }
+    }
+
     /* ------------------------ STORE ------------------------ */
     public static class ZoneStore {
+        private static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
         final Path dir;
         final Gson gson;
         public final Map<String, JsonZone> zones = new ConcurrentHashMap<>(); // key = origin (lowercase)
+        private volatile ZoneTree<JsonZone> tree = ZoneTree.build(Collections.emptyMap());
+        // origin -> file the zone was loaded from or saved to
+        private final Map<String, Path> files = new ConcurrentHashMap<>();
+        // origin -> version last read from or written to its file, so re-reading it does not undo newer changes
+        private final Map<String, JsonZone> saved = new ConcurrentHashMap<>();
+        // Serialise changes per zone; zones whose origins hash alike share a lock
+        static final int STRIPES = 64;
+        private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+        // origin -> changes between serials, for IXFR; opened on first use
+        private final Map<String, ZoneJournal> journals = new ConcurrentHashMap<>();
+        private final int journalSize;
 
-        ZoneStore(Path dir) {
+        public ZoneStore(Path dir) {
+            this(dir, 0);
+        }
+
+        /**
+         * @param journalSize changes kept per zone for IXFR; 0 keeps no journal
+         */
+        public ZoneStore(Path dir, int journalSize) {
             this.dir = dir;
             this.gson = new GsonBuilder().setPrettyPrinting().create();
+            this.journalSize = Math.max(0, journalSize);
+            for (int i = 0; i < stripes.length; i++)
+                stripes[i] = new ReentrantLock();
         }
 
-        public void loadAll() throws IOException {
+        /**
+         * The lock to hold while reading a zone, changing it and putting the new
+         * version back, so concurrent writers of the same zone don't lose each
+         * other's changes. Writers of different zones mostly get different
+         * locks and run side by side; readers never take it. Take it before
+         * calling methods of this store, never while in one.
+         */
+        public ReentrantLock lockFor(String origin) {
+            return stripes[stripeOf(origin)];
+        }
+
+        /** Which of the {@value #STRIPES} locks guards a zone. */
+        static int stripeOf(String origin) {
+            return (normalize(origin).hashCode() & 0x7fffffff) % STRIPES;
+        }
+
+        /**
+         * Re-reads every zone file in the data directory. Zones whose file is gone
+         * are dropped; a file that fails to parse keeps its previously loaded zone.
+         *
+         * @return the zones that were added or changed (new value) or removed (null)
+         */
+        public synchronized Map<Name, JsonZone> loadAll() throws IOException {
             if (!Files.exists(dir))
                 Files.createDirectories(dir);
+            Map<String, JsonZone> loaded = new HashMap<>();
+            Map<String, Path> loadedFiles = new HashMap<>();
+            Set<String> parsed = new HashSet<>();
+            Set<Path> failed = new HashSet<>();
             try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.zone.json")) {
                 for (Path p : ds) {
-                    try (Reader r = Files.newBufferedReader(p)) {
-                        JsonZone z = gson.fromJson(r, JsonZone.class);
-                        if (z != null && z.origin != null) {
-                            zones.put(normalize(z.origin), z);
-                        }
+                    try {
+                        JsonZone z = readZone(p);
+                        loaded.put(normalize(z.origin), z);
+                        loadedFiles.put(normalize(z.origin), p);
+                        parsed.add(normalize(z.origin));
                     } catch (Exception e) {
+                        failed.add(p);
                         logger.error("Failed to load zone file: " + p + ": " + e.getMessage());
                     }
                 }
             }
-            if (zones.isEmpty()) {
+            // Drop images and journals whose zone file was deleted
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.zone.bin")) {
+                for (Path p : ds)
+                    if (!Files.exists(ZoneImage.jsonFor(p)))
+                        Files.deleteIfExists(p);
+            }
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.zone.jnl")) {
+                for (Path p : ds)
+                    if (!Files.exists(ZoneJournal.jsonFor(p)))
+                        Files.deleteIfExists(p);
+            }
+            // Keep serving the last good version of files that are broken right now
+            for (Map.Entry<String, Path> e : files.entrySet()) {
+                if (failed.contains(e.getValue()) && !loaded.containsKey(e.getKey()) && zones.containsKey(e.getKey())) {
+                    loaded.put(e.getKey(), zones.get(e.getKey()));
+                    loadedFiles.put(e.getKey(), e.getValue());
+                }
+            }
+            if (loaded.isEmpty()) {
                 // Bootstrap a demo zone if none exists
                 JsonZone demo = new JsonZone();
                 demo.origin = "example.local.";
@@ -92,38 +468,698 @@ public class Zones {
                 demo.serial = Instant.now().getEpochSecond();
                 demo.records.add(new JsonRecord("@", "A", 60, "10.10.10.10", null));
                 demo.records.add(new JsonRecord("www", "CNAME", 300, "example.local.", null));
-                zones.put(normalize(demo.origin), demo);
+                loaded.put(normalize(demo.origin), demo);
+            }
+
+            Map<Name, JsonZone> changes = new HashMap<>();
+            for (String key : zones.keySet())
+                if (!loaded.containsKey(key))
+                    changed(key, null, changes);
+            for (Map.Entry<String, JsonZone> e : loaded.entrySet())
+                if (!e.getValue().equals(zones.get(e.getKey())) && !isOwnWrite(e.getKey(), e.getValue()))
+                    changed(e.getKey(), e.getValue(), changes);
+            for (String key : parsed)
+                saved.put(key, loaded.get(key));
+            files.putAll(loadedFiles);
+            apply(changes);
+            return changes;
+        }
+
+        /**
+         * Re-reads the file of a single zone. If the file is gone the zone is
+         * dropped; if it now declares another origin, that zone replaces this one.
+         *
+         * @return the zones that were added or changed (new value) or removed (null)
+         * @throws IOException if the file cannot be read; the loaded zone is kept
+         */
+        public synchronized Map<Name, JsonZone> reloadZone(String origin) throws IOException {
+            String key = normalize(origin);
+            Path p = files.getOrDefault(key, fileFor(key));
+            Map<Name, JsonZone> changes = new HashMap<>();
+            if (!Files.exists(p)) {
+                deleteImage(p);
+                if (zones.containsKey(key))
+                    changed(key, null, changes);
+            } else {
+                JsonZone z = readZone(p);
+                String loadedKey = normalize(z.origin);
+                if (!loadedKey.equals(key) && zones.containsKey(key))
+                    changed(key, null, changes);
+                if (!z.equals(zones.get(loadedKey)) && !isOwnWrite(loadedKey, z)) {
+                    changed(loadedKey, z, changes);
+                    files.put(loadedKey, p);
+                }
+                saved.put(loadedKey, z);
+            }
+            apply(changes);
+            return changes;
+        }
+
+        /**
+         * Re-reads the given zone files, parsing them in parallel. A missing file
+         * drops the zone loaded from it; a file that fails to parse keeps it.
+         *
+         * @return the zones that were added or changed (new value) or removed (null)
+         */
+        public Map<Name, JsonZone> reloadFiles(Collection<Path> paths) {
+            Map<Path, JsonZone> parsed = new ConcurrentHashMap<>();
+            Set<Path> gone = ConcurrentHashMap.newKeySet();
+            paths.parallelStream().forEach(p -> {
+                if (!Files.exists(p)) {
+                    gone.add(p);
+                    deleteImage(p);
+                    return;
+                }
+                try {
+                    parsed.put(p, readZone(p));
+                } catch (IOException e) {
+                    logger.error("Failed to load zone file: " + p + ": " + e.getMessage());
+                }
+            });
+
+            synchronized (this) {
+                Map<Path, String> loadedFrom = new HashMap<>();
+                for (Map.Entry<String, Path> e : files.entrySet())
+                    loadedFrom.put(e.getValue(), e.getKey());
+                Map<Name, JsonZone> changes = new HashMap<>();
+                // Removals first, so a zone that moved to another file in this batch survives
+                Set<String> removed = new HashSet<>();
+                for (Path p : paths) {
+                    String previous = loadedFrom.get(p);
+                    if (previous == null || !(gone.contains(p) || parsed.containsKey(p)))
+                        continue;
+                    JsonZone z = parsed.get(p);
+                    if (z == null || !normalize(z.origin).equals(previous)) {
+                        removed.add(previous);
+                        changed(previous, null, changes);
+                    }
+                }
+                for (Map.Entry<Path, JsonZone> e : parsed.entrySet()) {
+                    String key = normalize(e.getValue().origin);
+                    if (removed.contains(key)
+                            || (!e.getValue().equals(zones.get(key)) && !isOwnWrite(key, e.getValue()))) {
+                        changed(key, e.getValue(), changes);
+                        files.put(key, e.getKey());
+                    }
+                    saved.put(key, e.getValue());
+                }
+                apply(changes);
+                return changes;
+            }
+        }
+
+        /**
+         * Loads a zone file from its binary image if that is up to date, otherwise
+         * parses the JSON, checks that its records convert, and writes a new image.
+         */
+        private JsonZone readZone(Path p) throws IOException {
+            JsonZone z = ZoneImage.read(p);
+            if (z != null)
+                return z;
+            BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            ZoneRecords records;
+            try (Reader r = Files.newBufferedReader(p)) {
+                z = gson.fromJson(r, JsonZone.class);
+                if (z == null || z.origin == null)
+                    throw new IOException("no origin in " + p);
+                records = z.toRecords();
+            } catch (JsonParseException | IllegalArgumentException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            z.setDecodedRecords(records);
+            writeImage(p, attrs, z, records);
+            return z;
+        }
+
+        private static void writeImage(Path p, BasicFileAttributes attrs, JsonZone z, ZoneRecords records) {
+            try {
+                ZoneImage.write(p, attrs, z, records);
+            } catch (IOException e) {
+                logger.warn("Failed to write zone image for " + p + ": " + e.getMessage());
+            }
+        }
+
+        private static void deleteImage(Path p) {
+            try {
+                Files.deleteIfExists(ZoneImage.imageFor(p));
+            } catch (IOException e) {
+                logger.warn("Failed to delete zone image for " + p + ": " + e.getMessage());
             }
         }
 
+        /**
+         * True if a zone read from its file is the version last read from or
+         * saved there. The zone in memory may have changed since (see
+         * {@link #putZones(Collection)}) and is kept.
+         */
+        private boolean isOwnWrite(String key, JsonZone z) {
+            return zones.containsKey(key) && z.equals(saved.get(key));
+        }
+
+        private static void changed(String key, JsonZone z, Map<Name, JsonZone> changes) {
+            try {
+                changes.put(Name.fromString(key, Name.root), z);
+            } catch (TextParseException e) {
+                logger.error("Invalid zone origin: " + key + ": " + e.getMessage());
+            }
+        }
+
+        private void apply(Map<Name, JsonZone> changes) {
+            for (Map.Entry<Name, JsonZone> e : changes.entrySet()) {
+                String key = normalize(e.getKey().toString());
+                if (journalSize > 0)
+                    journal(key, zones.get(key), e.getValue());
+                if (e.getValue() == null) {
+                    zones.remove(key);
+                    files.remove(key);
+                    saved.remove(key);
+                } else {
+                    zones.put(key, e.getValue());
+                }
+            }
+            tree = tree.with(changes);
+        }
+
+        /**
+         * Records the change from one version of a zone to the next in its
+         * journal. A zone that changed without a higher serial (RFC 1982) or was
+         * removed loses its journal, since older serials no longer describe it.
+         */
+        private void journal(String key, JsonZone before, JsonZone after) {
+            if (before == null)
+                return; // newly loaded; a journal from an earlier run still applies
+            try {
+                ZoneJournal j = journalOf(key);
+                if (after == null) {
+                    j.clear();
+                    journals.remove(key);
+                } else if (Serial.compare(after.serial, before.serial) > 0) {
+                    j.append(ZoneJournal.diff(before.toRecords(), after.toRecords()));
+                } else {
+                    logger.warn("Zone " + key + " changed without a higher serial; secondaries need a full transfer");
+                    j.clear();
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.error("Failed to update the journal of " + key + ": " + e.getMessage());
+                try {
+                    journalOf(key).clear();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * Replaces a zone with a version that did not come from its file, such
+         * as a copy transferred from a primary, and writes it to that file.
+         *
+         * @return the zone if it changed, otherwise an empty map
+         */
+        public Map<Name, JsonZone> replaceZone(JsonZone z) throws IOException {
+            String key = normalize(z.origin);
+            Map<Name, JsonZone> changes = new HashMap<>();
+            ReentrantLock lock = lockFor(key);
+            lock.lock();
+            try {
+                if (z.equals(zones.get(key)))
+                    return changes;
+                // Written under the zone's lock only, so other zones can change meanwhile
+                saveZone(z);
+                synchronized (this) {
+                    changed(key, z, changes);
+                    apply(changes);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return changes;
+        }
+
+        /**
+         * Drops a zone and deletes its file, e.g. a secondary zone whose copy expired.
+         *
+         * @return the removed zone (as null), or an empty map if it was not loaded
+         */
+        public Map<Name, JsonZone> removeZone(String origin) throws IOException {
+            String key = normalize(origin);
+            Map<Name, JsonZone> changes = new HashMap<>();
+            ReentrantLock lock = lockFor(key);
+            lock.lock();
+            try {
+                Path p = files.get(key);
+                saved.remove(key);
+                if (p != null) {
+                    Files.deleteIfExists(p);
+                    deleteImage(p);
+                    syncDirectory(p.getParent());
+                }
+                synchronized (this) {
+                    if (zones.containsKey(key)) {
+                        changed(key, null, changes);
+                        apply(changes);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            return changes;
+        }
+
+        /**
+         * Replaces zones with new versions without writing their files, for
+         * changes that are kept durable elsewhere until {@link #saveZone(JsonZone)}
+         * catches up, like the write-ahead log of the write API.
+         *
+         * @return the zones that changed
+         */
+        public synchronized Map<Name, JsonZone> putZones(Collection<JsonZone> updated) {
+            Map<Name, JsonZone> changes = new HashMap<>();
+            for (JsonZone z : updated) {
+                String key = normalize(z.origin);
+                if (!z.equals(zones.get(key)))
+                    changed(key, z, changes);
+            }
+            apply(changes);
+            return changes;
+        }
+
+        public JsonZone getZone(String origin) {
+            return zones.get(normalize(origin));
+        }
+
+        private ZoneJournal journalOf(String key) {
+            return journals.computeIfAbsent(key,
+                    k -> ZoneJournal.open(files.getOrDefault(k, fileFor(k)), journalSize));
+        }
+
+        /**
+         * The changes that lead from {@code serial} to the newest journaled
+         * version of a zone, oldest first; null if the journal does not go back
+         * that far or journaling is off.
+         */
+        public List<ZoneJournal.Diff> changesSince(Name origin, long serial) {
+            String key = normalize(origin.toString());
+            if (journalSize == 0 || !zones.containsKey(key))
+                return null;
+            return journalOf(key).since(serial);
+        }
+
         void saveAll() throws IOException {
             for (JsonZone z : zones.values())
                 saveZone(z);
         }
 
-        synchronized void saveZone(JsonZone z) throws IOException {
-            Path p = dir.resolve(z.origin.replace('.', '_') + ".zone.json");
-            try (BufferedWriter w = Files.newBufferedWriter(p)) {
-                gson.toJson(z, w);
+        /**
+         * Writes a zone to its file and syncs it, and the directory, to disk.
+         * Holds the zone's lock rather than the store's, so writing a large
+         * zone does not hold up other zones.
+         */
+        public void saveZone(JsonZone z) throws IOException {
+            String key = normalize(z.origin);
+            ReentrantLock lock = lockFor(key);
+            lock.lock();
+            try {
+                Path p = files.computeIfAbsent(key, k -> fileFor(z.origin));
+                saved.put(key, z);
+                // Written aside and moved into place, so the zone watcher never reads half a file
+                Path tmp = p.resolveSibling(p.getFileName() + ".tmp");
+                try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    Writer w = new BufferedWriter(Channels.newWriter(ch, StandardCharsets.UTF_8));
+                    gson.toJson(z, w);
+                    w.flush();
+                    // On disk before the rename, so a crash never leaves an empty file in its place
+                    ch.force(true);
+                }
+                try {
+                    Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING);
+                }
+                // And the rename itself: callers such as the write-ahead log drop their copy once this returns
+                syncDirectory(p.getParent());
+                // Keep the image in step with the rewritten file, or the next start parses it again
+                try {
+                    writeImage(p, Files.readAttributes(p, BasicFileAttributes.class), z, z.toRecords());
+                } catch (IOException | IllegalArgumentException e) {
+                    logger.warn("Not writing zone image for " + z.origin + ": " + e.getMessage());
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Makes renames and deletions in a directory durable. Windows can't
+         * open a directory for this and commits them on its own.
+         */
+        static void syncDirectory(Path dir) throws IOException {
+            if (WINDOWS)
+                return;
+            try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+                ch.force(true);
             }
         }
 
+        private Path fileFor(String origin) {
+            return dir.resolve(origin.replace('.', '_') + ".zone.json");
+        }
+
         public JsonZone getZoneByName(Name qname) {
-            // Longest-suffix match
-            String name = qname.toString(true);
-            if (!name.endsWith(".")) name = name + ".";
-            String best = null;
-            for (String origin : zones.keySet()) {
-                if (name.endsWith(origin)) {
-                    if (best == null || origin.length() > best.length())
-                        best = origin;
-                }
-            }
-            return best != null ? zones.get(best) : null;
+            // Longest-suffix match on label boundaries
+            return tree.find(qname);
         }
 
         public static String normalize(String n) {
             return n.endsWith(".") ? n.toLowerCase() : (n + ".").toLowerCase();
         }
     }
+
+    /* ------------------------ LOOKUP ------------------------ */
+
+    /**
+     * Immutable reversed-label trie over zone origins (or the owner names of
+     * one zone). Finds the closest enclosing zone of a name with one walk over
+     * its labels, root first. Labels are compared case-insensitively as raw
+     * wire bytes.
+     */
+    public static final class ZoneTree<V> {
+        private static final byte[] WILDCARD = { '*' };
+
+        private final Node<V> root;
+        private final int size;
+
+        private ZoneTree(Node<V> root, int size) {
+            this.root = root;
+            this.size = size;
+        }
+
+        public static <V> ZoneTree<V> build(Map<Name, V> zones) {
+            Node<V> root = new Node<>(new byte[0], 0, 0);
+            int size = 0;
+            for (Map.Entry<Name, V> e : zones.entrySet())
+                if (insert(root, e.getKey().toWire(), e.getValue()))
+                    size++;
+            return new ZoneTree<>(root, size);
+        }
+
+        /**
+         * A copy of this tree with the given names set to new values, or removed
+         * where the value is null. Only nodes on the paths to changed names are
+         * copied, each once per call; everything else is shared, so readers of
+         * this tree are unaffected.
+         */
+        public ZoneTree<V> with(Map<Name, V> changes) {
+            if (changes.isEmpty())
+                return this;
+            Set<Node<V>> copied = Collections.newSetFromMap(new IdentityHashMap<>());
+            Node<V> rootCopy = root.copy();
+            int newSize = size;
+            copied.add(rootCopy);
+            for (Map.Entry<Name, V> e : changes.entrySet()) {
+                byte[] wire = e.getKey().toWire();
+                Node<V> node = rootCopy;
+                for (int depth = countLabels(wire, 0) - 1; depth >= 0 && node != null; depth--) {
+                    int lp = labelOffset(wire, 0, depth);
+                    int len = wire[lp] & 0xFF;
+                    Node<V> child = node.child(wire, lp + 1, len);
+                    if (child == null) {
+                        // Nothing to remove; otherwise the new node is private to the copy already
+                        child = e.getValue() == null ? null : node.getOrAdd(wire, lp + 1, len);
+                    } else if (!copied.contains(child)) {
+                        Node<V> c = child.copy();
+                        node.replace(child, c);
+                        child = c;
+                    }
+                    if (child != null)
+                        copied.add(child);
+                    node = child;
+                }
+                if (node == null)
+                    continue;
+                if (node.value == null && e.getValue() != null)
+                    newSize++;
+                else if (node.value != null && e.getValue() == null)
+                    newSize--;
+                node.value = e.getValue();
+            }
+            return new ZoneTree<>(rootCopy, newSize);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Value of the closest enclosing zone of {@code name}, or null; null
+         * for relative names.
+         */
+        public V find(Name name) {
+            if (!name.isAbsolute())
+                return null;
+            // dnsjava only hands out copies of labels, so read each one just
+            // until the walk falls off the tree rather than the whole name
+            Node<V> node = root;
+            V best = root.value;
+            for (int i = name.labels() - 2; i >= 0; i--) {
+                byte[] label = name.getLabel(i);
+                node = node.child(label, 1, label.length - 1);
+                if (node == null)
+                    break;
+                if (node.value != null)
+                    best = node.value;
+            }
+            return best;
+        }
+
+        /**
+         * Same as {@link #find(Name)} for an uncompressed wire-format name at
+         * {@code off}; does not allocate. Returns null for malformed names.
+         */
+        public V find(byte[] wire, int off) {
+            int labels = countLabels(wire, off);
+            if (labels < 0)
+                return null;
+
+            Node<V> node = root;
+            V best = root.value;
+            for (int depth = labels - 1; depth >= 0; depth--) {
+                int lp = labelOffset(wire, off, depth);
+                node = node.child(wire, lp + 1, wire[lp] & 0xFF);
+                if (node == null)
+                    break;
+                if (node.value != null)
+                    best = node.value;
+            }
+            return best;
+        }
+
+        /**
+         * Value stored at exactly this name, or null.
+         */
+        public V get(Name name) {
+            Node<V> node = node(name.toWire());
+            return node == null ? null : node.value;
+        }
+
+        /**
+         * Passes the values stored at the name and at every name below it to
+         * {@code action}, in no particular order.
+         */
+        public void forEachBelow(Name name, Consumer<? super V> action) {
+            Node<V> node = node(name.toWire());
+            if (node == null)
+                return;
+            Deque<Node<V>> pending = new ArrayDeque<>();
+            pending.push(node);
+            while (!pending.isEmpty()) {
+                Node<V> n = pending.pop();
+                if (n.value != null)
+                    action.accept(n.value);
+                if (n.table != null)
+                    for (Node<V> child : n.table)
+                        if (child != null)
+                            pending.push(child);
+            }
+        }
+
+        private Node<V> node(byte[] wire) {
+            Node<V> node = root;
+            for (int depth = countLabels(wire, 0) - 1; depth >= 0 && node != null; depth--) {
+                int lp = labelOffset(wire, 0, depth);
+                node = node.child(wire, lp + 1, wire[lp] & 0xFF);
+            }
+            return node;
+        }
+
+        /**
+         * Value stored at the name itself if it is in the tree; otherwise the
+         * value of the wildcard ({@code *}) child of its closest encloser
+         * (RFC 4592), or null. Names that exist must carry a value, including
+         * empty non-terminals, since those block wildcard matches. Does not
+         * allocate; returns null for malformed names.
+         */
+        public V match(byte[] wire, int off) {
+            int labels = countLabels(wire, off);
+            if (labels < 0)
+                return null;
+
+            Node<V> node = root;
+            for (int depth = labels - 1; depth >= 0; depth--) {
+                int lp = labelOffset(wire, off, depth);
+                Node<V> next = node.child(wire, lp + 1, wire[lp] & 0xFF);
+                if (next == null) {
+                    Node<V> wildcard = node.child(WILDCARD, 0, 1);
+                    return wildcard == null ? null : wildcard.value;
+                }
+                node = next;
+            }
+            return node.value;
+        }
+
+        /**
+         * Number of labels in the name at {@code off}, or -1 if it runs past the
+         * buffer or uses compression.
+         */
+        private static int countLabels(byte[] wire, int off) {
+            int labels = 0;
+            int pos = off;
+            while (true) {
+                if (pos >= wire.length)
+                    return -1;
+                int len = wire[pos] & 0xFF;
+                if (len == 0)
+                    return labels;
+                if (len > 63)
+                    return -1; // compression pointer or reserved label type
+                labels++;
+                pos += len + 1;
+            }
+        }
+
+        private static int labelOffset(byte[] wire, int off, int index) {
+            int lp = off;
+            for (int i = 0; i < index; i++)
+                lp += (wire[lp] & 0xFF) + 1;
+            return lp;
+        }
+
+        /**
+         * Sets the value of a name below {@code root} while the tree is being built.
+         *
+         * @return true if the name had no value before
+         */
+        private static <V> boolean insert(Node<V> root, byte[] wire, V value) {
+            // Collect label offsets so we can walk right to left
+            int[] starts = new int[128];
+            int labels = 0;
+            for (int pos = 0; (wire[pos] & 0xFF) != 0; pos += (wire[pos] & 0xFF) + 1)
+                starts[labels++] = pos;
+            Node<V> node = root;
+            for (int i = labels - 1; i >= 0; i--)
+                node = node.getOrAdd(wire, starts[i] + 1, wire[starts[i]] & 0xFF);
+            boolean added = node.value == null;
+            node.value = value;
+            return added;
+        }
+
+        private static int hash(byte[] b, int off, int len) {
+            int h = 0;
+            for (int i = 0; i < len; i++)
+                h = 31 * h + lower(b[off + i]);
+            return h ^ (h >>> 16);
+        }
+
+        private static int lower(byte c) {
+            return c >= 'A' && c <= 'Z' ? c + 32 : c;
+        }
+
+        private static final class Node<V> {
+            final byte[] label; // lowercase
+            final int hash;
+            Node<V>[] table; // open addressing, at most half full
+            int count;
+            V value;
+
+            Node(byte[] src, int off, int len) {
+                label = new byte[len];
+                for (int i = 0; i < len; i++)
+                    label[i] = (byte) lower(src[off + i]);
+                hash = ZoneTree.hash(src, off, len);
+            }
+
+            private Node(Node<V> other) {
+                label = other.label;
+                hash = other.hash;
+                table = other.table == null ? null : other.table.clone();
+                count = other.count;
+                value = other.value;
+            }
+
+            Node<V> copy() {
+                return new Node<>(this);
+            }
+
+            void replace(Node<V> old, Node<V> c) {
+                int mask = table.length - 1;
+                int i = old.hash & mask;
+                while (table[i] != old)
+                    i = (i + 1) & mask;
+                table[i] = c;
+            }
+
+            boolean matches(byte[] b, int off, int len) {
+                if (label.length != len)
+                    return false;
+                for (int i = 0; i < len; i++)
+                    if (label[i] != lower(b[off + i]))
+                        return false;
+                return true;
+            }
+
+            Node<V> child(byte[] b, int off, int len) {
+                Node<V>[] t = table;
+                if (t == null)
+                    return null;
+                int h = ZoneTree.hash(b, off, len);
+                int mask = t.length - 1;
+                for (int i = h & mask;; i = (i + 1) & mask) {
+                    Node<V> c = t[i];
+                    if (c == null)
+                        return null;
+                    if (c.hash == h && c.matches(b, off, len))
+                        return c;
+                }
+            }
+
+            Node<V> getOrAdd(byte[] b, int off, int len) {
+                Node<V> c = child(b, off, len);
+                if (c != null)
+                    return c;
+                if (table == null || (count + 1) * 2 > table.length)
+                    resize();
+                c = new Node<>(b, off, len);
+                place(table, c);
+                count++;
+                return c;
+            }
+
+            @SuppressWarnings("unchecked")
+            private void resize() {
+                Node<V>[] bigger = (Node<V>[]) new Node<?>[table == null ? 4 : table.length * 2];
+                if (table != null)
+                    for (Node<V> c : table)
+                        if (c != null)
+                            place(bigger, c);
+                table = bigger;
+            }
+
+            private static <V> void place(Node<V>[] t, Node<V> c) {
+                int mask = t.length - 1;
+                int i = c.hash & mask;
+                while (t[i] != null)
+                    i = (i + 1) & mask;
+                t[i] = c;
+            }
+        }
+    }
 }
@@ -1,31 +1,83 @@
 package de.herpersolutions.api;
 
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+
 import io.javalin.Javalin;
 import io.javalin.http.Context;
+import io.javalin.json.JsonMapper;
+import de.herpersolutions.ZoneWriter;
+import de.herpersolutions.ZoneWriter.Change;
+import de.herpersolutions.Zones.JsonRecord;
+import de.herpersolutions.Zones.JsonZone;
 import de.herpersolutions.Zones.ZoneStore;
 import de.herpersolutions.monitoring.DnsMetrics;
+import de.herpersolutions.monitoring.PrometheusExporter;
 import de.herpersolutions.engine.AuthoritativeEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Name;
 
 /**
  * REST API for DNS server management and monitoring
  */
 public class ManagementApi {
     private static final Logger logger = LoggerFactory.getLogger(ManagementApi.class);
+    private static final long WRITE_TIMEOUT_SECONDS = 30;
+    private static final Type RECORD_LIST = new TypeToken<List<JsonRecord>>() {}.getType();
     
     private final Javalin app;
+    private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
     private final ZoneStore zoneStore;
     private final DnsMetrics metrics;
     private final AuthoritativeEngine engine;
+    private final PrometheusExporter prometheus;
+    private final ZoneWriter zoneWriter;
+    private final byte[] token;
     
-    public ManagementApi(int port, ZoneStore zoneStore, DnsMetrics metrics, AuthoritativeEngine engine) {
+    /**
+     * @param zoneWriter applies zone and record changes; null rejects them
+     * @param token bearer token that zone and record changes must carry
+     */
+    public ManagementApi(int port, ZoneStore zoneStore, DnsMetrics metrics, AuthoritativeEngine engine,
+            PrometheusExporter prometheus, ZoneWriter zoneWriter, String token) {
         this.zoneStore = zoneStore;
         this.metrics = metrics;
         this.engine = engine;
+        this.prometheus = prometheus;
+        this.zoneWriter = zoneWriter;
+        this.token = ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
         
         this.app = Javalin.create(config -> {
             config.showJavalinBanner = false;
+            config.jsonMapper(new JsonMapper() {
+                @Override
+                public String toJsonString(Object obj, Type type) {
+                    // Most handlers build their JSON by hand
+                    return obj instanceof String ? (String) obj : gson.toJson(obj, type);
+                }
+
+                @Override
+                public <T> T fromJsonString(String json, Type targetType) {
+                    return gson.fromJson(json, targetType);
+                }
+            });
         }).start(port);
         
         setupRoutes();
@@ -37,6 +89,7 @@ public class ManagementApi {
         
         // Metrics
         app.get("/metrics", this::getMetrics);
+        app.get("/metrics/prometheus", this::getPrometheusMetrics);
         app.post("/metrics/reset", this::resetMetrics);
         
         // Zone management
@@ -44,6 +97,13 @@ public class ManagementApi {
         app.get("/zones/{origin}", this::getZone);
         app.post("/zones/{origin}/reload", this::reloadZone);
         
+        // Zone and record changes
+        app.put("/zones/{origin}", this::putZone);
+        app.delete("/zones/{origin}", this::deleteZone);
+        app.post("/zones/{origin}/records", this::addRecords);
+        app.put("/zones/{origin}/records/{name}/{type}", this::replaceRecords);
+        app.delete("/zones/{origin}/records/{name}/{type}", this::deleteRecords);
+        
         // Server management
         app.post("/reload", this::reloadAll);
     }
@@ -63,6 +123,12 @@ public class ManagementApi {
         ctx.result(metrics.getStatsJson());
     }
     
+    private void getPrometheusMetrics(Context ctx) throws IOException {
+        boolean openMetrics = PrometheusExporter.wantsOpenMetrics(ctx.header("Accept"));
+        ctx.contentType(openMetrics ? PrometheusExporter.OPENMETRICS_CONTENT_TYPE : PrometheusExporter.TEXT_CONTENT_TYPE);
+        prometheus.write(ctx.outputStream(), openMetrics);
+    }
+    
     private void resetMetrics(Context ctx) {
         metrics.reset();
         ctx.json("{\"message\": \"Metrics reset successfully\"}");
@@ -101,28 +167,140 @@ public class ManagementApi {
     }
     
     private void reloadZone(Context ctx) {
+        String origin = ZoneStore.normalize(ctx.pathParam("origin"));
         try {
-            engine.rebuildIndex();
-            ctx.json("{\"message\": \"Zone index rebuilt successfully\"}");
-            logger.info("Zone index rebuilt via API");
+            boolean known = zoneStore.zones.containsKey(origin);
+            Map<Name, JsonZone> changes = zoneStore.reloadZone(origin);
+            if (!known && changes.isEmpty()) {
+                ctx.status(404).json("{\"error\": \"Zone not found\"}");
+                return;
+            }
+            engine.updateZones(changes);
+            ctx.json("{\"message\": \"Zone reloaded successfully\", \"changed\": " + changes.size() + "}");
+            logger.info("Zone {} reloaded via API ({} changed)", origin, changes.size());
         } catch (Exception e) {
-            logger.error("Failed to rebuild zone index", e);
-            ctx.status(500).json("{\"error\": \"Failed to rebuild zone index: " + e.getMessage() + "\"}");
+            logger.error("Failed to reload zone " + origin, e);
+            ctx.status(500).json("{\"error\": \"Failed to reload zone: " + e.getMessage() + "\"}");
         }
     }
     
     private void reloadAll(Context ctx) {
         try {
-            zoneStore.loadAll();
-            engine.rebuildIndex();
-            ctx.json("{\"message\": \"All zones reloaded successfully\"}");
-            logger.info("All zones reloaded via API");
+            Map<Name, JsonZone> changes = zoneStore.loadAll();
+            engine.updateZones(changes);
+            ctx.json("{\"message\": \"All zones reloaded successfully\", \"changed\": " + changes.size() + "}");
+            logger.info("All zones reloaded via API ({} changed)", changes.size());
         } catch (Exception e) {
             logger.error("Failed to reload zones", e);
             ctx.status(500).json("{\"error\": \"Failed to reload zones: " + e.getMessage() + "\"}");
         }
     }
     
+    private void putZone(Context ctx) {
+        applyChanges(ctx, origin -> {
+            JsonZone zone = gson.fromJson(ctx.body(), JsonZone.class);
+            if (zone == null)
+                throw new IllegalArgumentException("no zone in request body");
+            if (zone.getOrigin() == null)
+                zone.setOrigin(origin);
+            else if (!ZoneStore.normalize(zone.getOrigin()).equals(origin))
+                throw new IllegalArgumentException("origin " + zone.getOrigin() + " does not match the path");
+            return List.of(Change.putZone(zone));
+        });
+    }
+    
+    private void deleteZone(Context ctx) {
+        applyChanges(ctx, origin -> List.of(Change.deleteZone(origin)));
+    }
+    
+    private void addRecords(Context ctx) {
+        applyChanges(ctx, origin -> List.of(Change.add(origin, parseRecords(ctx.body()))));
+    }
+    
+    private void replaceRecords(Context ctx) {
+        applyChanges(ctx, origin -> List.of(Change.replace(origin, ctx.pathParam("name"), ctx.pathParam("type"),
+                parseRecords(ctx.body()))));
+    }
+    
+    private void deleteRecords(Context ctx) {
+        applyChanges(ctx, origin -> {
+            // ?data=... picks single records of the set; without it the whole set goes
+            List<JsonRecord> records = new ArrayList<>();
+            for (String data : ctx.queryParams("data"))
+                records.add(new JsonRecord(null, null, -1, data, null));
+            return List.of(Change.remove(origin, ctx.pathParam("name"), ctx.pathParam("type"), records));
+        });
+    }
+    
+    /**
+     * A record or an array of records.
+     */
+    private List<JsonRecord> parseRecords(String body) {
+        JsonElement json = JsonParser.parseString(body);
+        if (json.isJsonArray())
+            return gson.fromJson(json, RECORD_LIST);
+        if (json.isJsonObject())
+            return List.of(gson.fromJson(json, JsonRecord.class));
+        throw new IllegalArgumentException("expected a record or an array of records");
+    }
+    
+    @FunctionalInterface
+    private interface ChangeRequest {
+        List<Change> changes(String origin);
+    }
+    
+    /**
+     * Submits the changes a request describes and answers once they are
+     * durable and served, with the zone's new serial.
+     */
+    private void applyChanges(Context ctx, ChangeRequest request) {
+        if (zoneWriter == null) {
+            ctx.status(503).json(Map.of("error", "Zone changes are disabled"));
+            return;
+        }
+        if (!authorized(ctx)) {
+            logger.warn("Refused zone change from {} without a valid token", ctx.ip());
+            ctx.header("WWW-Authenticate", "Bearer").status(401).json(Map.of("error", "Unauthorized"));
+            return;
+        }
+        String origin = ZoneStore.normalize(ctx.pathParam("origin"));
+        List<Change> changes;
+        try {
+            changes = request.changes(origin);
+        } catch (JsonParseException | IllegalArgumentException e) {
+            ctx.status(400).json(Map.of("error", String.valueOf(e.getMessage())));
+            return;
+        }
+        try {
+            JsonZone zone = zoneWriter.submit(origin, changes).get(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (zone == null)
+                ctx.json("{\"message\": \"Zone deleted\", \"origin\": \"" + origin + "\"}");
+            else
+                ctx.json("{\"origin\": \"" + origin + "\", \"serial\": " + zone.getSerial() + "}");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NoSuchElementException) {
+                ctx.status(404).json("{\"error\": \"Zone not found\"}");
+            } else if (cause instanceof IllegalStateException) {
+                ctx.status(503).json(Map.of("error", String.valueOf(cause.getMessage())));
+            } else {
+                logger.error("Failed to change zone " + origin, cause);
+                ctx.status(500).json(Map.of("error", "Failed to change zone: " + cause.getMessage()));
+            }
+        } catch (TimeoutException e) {
+            ctx.status(503).json(Map.of("error", "Timed out waiting for the change to be applied"));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ctx.status(503).json(Map.of("error", "Interrupted"));
+        }
+    }
+    
+    /** Compares in constant time, so the token can't be guessed byte by byte. */
+    private boolean authorized(Context ctx) {
+        String header = ctx.header("Authorization");
+        return header != null && MessageDigest.isEqual(token, header.getBytes(StandardCharsets.UTF_8));
+    }
+    
     public void stop() {
         if (app != null) {
             app.stop();
@@ -1,107 +1,239 @@
 package de.herpersolutions.cache;
 
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
-import org.xbill.DNS.Message;
+import org.xbill.DNS.Header;
 import org.xbill.DNS.Name;
 
+import de.herpersolutions.monitoring.DnsMetrics;
+
 /**
- * Simple DNS query cache to improve performance for repeated queries
+ * DNS response cache holding already-encoded wire-format answers. A hit hands
+ * out the stored bytes themselves; the caller sends them with the transaction
+ * ID and the question name exactly as the client spelled it. Lookups read the
+ * question straight from the query and allocate nothing.
  */
 public class DnsCache {
+    // Reused by each thread to look entries up without building a key
+    private static final ThreadLocal<CacheKey> PROBE = ThreadLocal.withInitial(CacheKey::new);
+
     private final ConcurrentMap<CacheKey, CacheEntry> cache = new ConcurrentHashMap<>();
     private final long defaultTtlMs;
     private final int maxEntries;
-    
-    public DnsCache(long defaultTtlMs, int maxEntries) {
+    private final DnsMetrics metrics;
+
+    public DnsCache(long defaultTtlMs, int maxEntries, DnsMetrics metrics) {
         this.defaultTtlMs = defaultTtlMs;
         this.maxEntries = maxEntries;
-        
+        this.metrics = metrics;
+
         // Cleanup thread
-        Thread cleanup = new Thread(this::cleanupExpiredEntries);
+        Thread cleanup = new Thread(this::cleanupLoop, "dns-cache-cleanup");
         cleanup.setDaemon(true);
         cleanup.start();
     }
-    
-    public Message get(Name qname, int qtype) {
-        CacheKey key = new CacheKey(qname.toString(), qtype);
-        CacheEntry entry = cache.get(key);
-        
-        if (entry != null && entry.expiryTime > System.currentTimeMillis()) {
-            return entry.response.clone();
+
+    /**
+     * Returns the cached response for this question, or null on a miss. The
+     * array is shared by all hits and must not be changed; it holds the ID
+     * and question name of the query it was stored for, which the caller
+     * replaces with those of {@code query} when sending it.
+     *
+     * @param query the raw query; the question name is read from it
+     */
+    public byte[] get(byte[] query, int qtype, int qclass, int ednsFlags) {
+        CacheKey key = PROBE.get();
+        CacheEntry entry = key.probe(query, qtype, qclass, ednsFlags) ? cache.get(key) : null;
+
+        if (entry == null) {
+            metrics.recordCacheMiss();
+            return null;
         }
-        
-        // Remove expired entry
-        if (entry != null) {
-            cache.remove(key);
+        if (entry.expiryTime <= System.currentTimeMillis()) {
+            // Remove expired entry
+            if (cache.remove(key, entry))
+                metrics.recordCacheEviction();
+            metrics.recordCacheMiss();
+            return null;
         }
-        
-        return null;
+
+        metrics.recordCacheHit();
+        metrics.recordZoneQuery(entry.zone);
+        return entry.wire;
     }
-    
-    public void put(Name qname, int qtype, Message response, long ttlMs) {
+
+    /**
+     * Stores an encoded response, the first {@code length} bytes of
+     * {@code wire}. They are copied, so the caller may keep using its buffer.
+     *
+     * @param zone  origin of the zone the answer came from, used for invalidation
+     * @param query the raw query the response is for, to read the question name from
+     */
+    public void put(Name zone, byte[] query, int qtype, int qclass, int ednsFlags, byte[] wire, int length,
+            long ttlMs) {
+        CacheKey key = CacheKey.of(query, qtype, qclass, ednsFlags);
+        if (key == null)
+            return;
         if (cache.size() >= maxEntries) {
-            // Simple eviction: remove oldest entries (not LRU but good enough)
             cleanupExpiredEntries();
-            if (cache.size() >= maxEntries) {
-                return; // Skip caching if still full
+            // Still full: drop an arbitrary entry to make room
+            Iterator<CacheKey> it = cache.keySet().iterator();
+            while (cache.size() >= maxEntries && it.hasNext()) {
+                it.next();
+                it.remove();
+                metrics.recordCacheEviction();
             }
         }
-        
-        CacheKey key = new CacheKey(qname.toString(), qtype);
+
         long expiryTime = System.currentTimeMillis() + (ttlMs > 0 ? ttlMs : defaultTtlMs);
-        cache.put(key, new CacheEntry(response.clone(), expiryTime));
+        cache.put(key, new CacheEntry(zone, Arrays.copyOf(wire, length), expiryTime));
     }
-    
+
+    /**
+     * Drops every entry that was answered from the given zone.
+     */
     public void invalidate(Name zone) {
-        String zoneStr = zone.toString();
-        cache.entrySet().removeIf(entry -> 
-            entry.getKey().qname.endsWith(zoneStr) || entry.getKey().qname.equals(zoneStr));
+        cache.values().removeIf(entry -> zone.equals(entry.zone));
+    }
+
+    /**
+     * Drops the responses of several zones in one pass over the cache.
+     */
+    public void invalidate(Set<Name> zones) {
+        if (!zones.isEmpty())
+            cache.values().removeIf(entry -> zones.contains(entry.zone));
     }
-    
+
     public void clear() {
         cache.clear();
     }
-    
+
     public int size() {
         return cache.size();
     }
-    
+
+    private void cleanupLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(60000); // Cleanup every minute
+                cleanupExpiredEntries();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
     private void cleanupExpiredEntries() {
         long now = System.currentTimeMillis();
-        cache.entrySet().removeIf(entry -> entry.getValue().expiryTime <= now);
+        cache.values().removeIf(entry -> {
+            if (entry.expiryTime > now)
+                return false;
+            metrics.recordCacheEviction();
+            return true;
+        });
+    }
+
+    /**
+     * Length of the uncompressed question name starting right after the header,
+     * or -1 if the message has no such name (compression pointer, bad label).
+     */
+    private static int questionNameLength(byte[] msg) {
+        int pos = Header.LENGTH;
+        while (pos < msg.length) {
+            int len = msg[pos] & 0xFF;
+            if (len == 0)
+                return pos + 1 - Header.LENGTH;
+            if (len > 63)
+                return -1;
+            pos += len + 1;
+        }
+        return -1;
     }
-    
+
+    /**
+     * Question of a cached response. Stored keys own a lowercased copy of the
+     * name; a thread's probe key points into the query being looked up, so
+     * names are compared ignoring ASCII case.
+     */
     private static class CacheKey {
-        final String qname;
-        final int qtype;
-        
-        CacheKey(String qname, int qtype) {
-            this.qname = qname.toLowerCase();
+        byte[] qname; // wire format
+        int qnameOffset, qnameLength;
+        int qtype;
+        int qclass;
+        int ednsFlags;
+        int hash;
+
+        /** Key for the question of a raw query, or null if its name cannot be read. */
+        static CacheKey of(byte[] query, int qtype, int qclass, int ednsFlags) {
+            CacheKey key = new CacheKey();
+            if (!key.probe(query, qtype, qclass, ednsFlags))
+                return null;
+            key.qname = Arrays.copyOfRange(query, Header.LENGTH, Header.LENGTH + key.qnameLength);
+            for (int i = 0; i < key.qname.length; i++)
+                key.qname[i] = (byte) lower(key.qname[i]);
+            key.qnameOffset = 0;
+            return key;
+        }
+
+        /**
+         * Points this key at the question of a raw query.
+         *
+         * @return false if its name cannot be read
+         */
+        boolean probe(byte[] query, int qtype, int qclass, int ednsFlags) {
+            int qlen = questionNameLength(query);
+            if (qlen < 0)
+                return false;
+            int h = 1;
+            for (int i = Header.LENGTH; i < Header.LENGTH + qlen; i++)
+                h = 31 * h + lower(query[i]);
+            this.qname = query;
+            this.qnameOffset = Header.LENGTH;
+            this.qnameLength = qlen;
             this.qtype = qtype;
+            this.qclass = qclass;
+            this.ednsFlags = ednsFlags;
+            this.hash = ((h * 31 + qtype) * 31 + qclass) * 31 + ednsFlags;
+            return true;
+        }
+
+        private static int lower(byte b) {
+            return b >= 'A' && b <= 'Z' ? b + 32 : b;
         }
-        
+
         @Override
         public boolean equals(Object obj) {
             if (this == obj) return true;
             if (!(obj instanceof CacheKey)) return false;
             CacheKey other = (CacheKey) obj;
-            return qtype == other.qtype && qname.equals(other.qname);
+            if (hash != other.hash || qtype != other.qtype || qclass != other.qclass || ednsFlags != other.ednsFlags
+                    || qnameLength != other.qnameLength)
+                return false;
+            for (int i = 0; i < qnameLength; i++)
+                if (lower(qname[qnameOffset + i]) != lower(other.qname[other.qnameOffset + i]))
+                    return false;
+            return true;
         }
-        
+
         @Override
         public int hashCode() {
-            return qname.hashCode() * 31 + qtype;
+            return hash;
         }
     }
-    
+
     private static class CacheEntry {
-        final Message response;
+        final Name zone;
+        final byte[] wire;
         final long expiryTime;
-        
-        CacheEntry(Message response, long expiryTime) {
-            this.response = response;
+
+        CacheEntry(Name zone, byte[] wire, long expiryTime) {
+            this.zone = zone;
+            this.wire = wire;
             this.expiryTime = expiryTime;
         }
     }
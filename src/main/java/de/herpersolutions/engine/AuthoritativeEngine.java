@@ -1,267 +1,922 @@
 package de.herpersolutions.engine;
 
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedHashSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.stream.Collectors;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.xbill.DNS.AAAARecord;
-import org.xbill.DNS.ARecord;
-import org.xbill.DNS.CNAMERecord;
-import org.xbill.DNS.DClass;
-import org.xbill.DNS.Flags;
+import org.xbill.DNS.ExtendedFlags;
 import org.xbill.DNS.Header;
-import org.xbill.DNS.MXRecord;
 import org.xbill.DNS.Message;
-import org.xbill.DNS.NSRecord;
 import org.xbill.DNS.Name;
+import org.xbill.DNS.Opcode;
 import org.xbill.DNS.Rcode;
 import org.xbill.DNS.SOARecord;
 import org.xbill.DNS.Section;
-import org.xbill.DNS.TXTRecord;
-import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Serial;
 import org.xbill.DNS.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import de.herpersolutions.Zones.JsonRecord;
+import de.herpersolutions.ZoneJournal;
 import de.herpersolutions.Zones.JsonZone;
 import de.herpersolutions.Zones.ZoneStore;
+import de.herpersolutions.cache.DnsCache;
+import de.herpersolutions.engine.CompiledZone.Owner;
+import de.herpersolutions.engine.CompiledZone.RRSet;
+import de.herpersolutions.engine.ZoneSnapshot.CnameChain;
 import de.herpersolutions.monitoring.DnsMetrics;
+import de.herpersolutions.monitoring.QueryLog;
+import de.herpersolutions.security.NetworkAcl;
 import de.herpersolutions.security.RateLimiter;
+import de.herpersolutions.security.ResponseRateLimiter;
 
 public class AuthoritativeEngine {
+    private static final Logger logger = LoggerFactory.getLogger(AuthoritativeEngine.class);
+    /** UDP payload every client can take (RFC 1035), and the EDNS minimum (RFC 6891). */
+    private static final int MIN_UDP_PAYLOAD = 512;
+    private static final int MAX_TCP_PAYLOAD = 65535;
+
     private final ZoneStore store;
     private final DnsMetrics metrics;
     private final RateLimiter rateLimiter;
-    // Index: fqdn -> list of records
-    private final ConcurrentMap<Name, List<org.xbill.DNS.Record>> recordIndex = new ConcurrentHashMap<>();
-    private final ConcurrentMap<Name, SOARecord> soaByZone = new ConcurrentHashMap<>();
-    private final ConcurrentMap<Name, List<NSRecord>> nsByZone = new ConcurrentHashMap<>();
+    private final DnsCache cache;
+    private final QueryLog queryLog;
+    private final ResponseRateLimiter responseRateLimiter;
+    private final int maxUdpPayload;
+    // Serve from OffHeapSnapshot/WireResponder instead of ZoneSnapshot/Message
+    private final boolean offHeap;
+    // Swapped by compare-and-set, so updates of different zones publish side by side
+    private final AtomicReference<ZoneSnapshot> snapshot = new AtomicReference<>(ZoneSnapshot.EMPTY);
+    private final AtomicReference<OffHeapSnapshot> offHeapSnapshot = new AtomicReference<>(OffHeapSnapshot.EMPTY);
+    // Serialise updates per zone, so an older version is never published over a newer one;
+    // zones whose origins hash alike share a lock
+    private final ReentrantLock[] publishLocks = new ReentrantLock[64];
+    // Encode every response with dnsjava as well and compare; for differential testing only
+    private volatile boolean verifyEncoder;
+    private final AtomicLong encoderMismatches = new AtomicLong();
+    // Clients allowed to transfer zones
+    private volatile NetworkAcl transferAcl = NetworkAcl.NONE;
+    // Secondary zone refreshes triggered by NOTIFY; null if this server has no secondary zones
+    private volatile NotifyHandler notifyHandler;
+    // Dynamic updates; null if no TSIG keys are configured
+    private volatile UpdateHandler updateHandler;
 
-    private static final Logger logger = LoggerFactory.getLogger(AuthoritativeEngine.class);
+    /**
+     * Receives the messages of a response that spans several, such as a zone
+     * transfer. The buffer is reused once the call returns.
+     */
+    public interface MessageSink {
+        void send(byte[] message, int length) throws IOException;
+    }
+
+    /**
+     * Acts on a NOTIFY message (RFC 1996) announcing that a zone changed on
+     * its primary.
+     */
+    public interface NotifyHandler {
+        /**
+         * @param serial the serial the NOTIFY announces, or -1 if it carried no SOA
+         * @return the RCODE to answer with: NOERROR if a refresh was scheduled,
+         *         NOTAUTH if the zone is not a secondary zone here, REFUSED if
+         *         the sender is not its primary
+         */
+        int notify(Name zone, long serial, InetAddress from);
+    }
+
+    /**
+     * Applies a dynamic UPDATE message (RFC 2136).
+     */
+    public interface UpdateHandler {
+        /**
+         * @param message the request; only the first {@code length} bytes are
+         *                valid and the buffer is reused once the call returns
+         * @return the complete response, or null if the message can't be parsed
+         */
+        byte[] update(byte[] message, int length, InetAddress from);
+    }
 
-    public AuthoritativeEngine(ZoneStore store, DnsMetrics metrics, RateLimiter rateLimiter) throws TextParseException, UnknownHostException {
+    public AuthoritativeEngine(ZoneStore store, DnsMetrics metrics, RateLimiter rateLimiter, DnsCache cache,
+            QueryLog queryLog, ResponseRateLimiter responseRateLimiter, int maxUdpPayload, boolean offHeapRecords)
+            throws IOException {
         this.store = store;
         this.metrics = metrics;
         this.rateLimiter = rateLimiter;
+        this.cache = cache;
+        this.queryLog = queryLog;
+        this.responseRateLimiter = responseRateLimiter;
+        this.maxUdpPayload = Math.max(MIN_UDP_PAYLOAD, Math.min(maxUdpPayload, MAX_TCP_PAYLOAD));
+        this.offHeap = offHeapRecords;
+        for (int i = 0; i < publishLocks.length; i++)
+            publishLocks[i] = new ReentrantLock();
         rebuildIndex();
     }
 
-    public void rebuildIndex() throws TextParseException, UnknownHostException {
-        recordIndex.clear();
-        soaByZone.clear();
-        nsByZone.clear();
-        for (JsonZone z : store.zones.values())
-            buildZone(z);
-    }
-
-    private void buildZone(JsonZone z) throws TextParseException, UnknownHostException {
-        Name origin = z.originName();
-        long ttl = Math.max(0, z.getDefaultTtl());
-
-        // SOA
-        Name mname = z.getNs().isEmpty() ? Name.fromString("ns1." + z.getOrigin(), Name.root)
-                : Name.fromString(ensureDot(z.getNs().get(0)), Name.root);
-        Name rname = Name.fromString(ensureDot(z.getAdmin()), Name.root);
-        SOARecord soa = new SOARecord(origin, DClass.IN, ttl, mname, rname, z.getSerial(), z.getRefresh(), z.getRetry(),
-                z.getExpire(),
-                z.getMinimum());
-        soaByZone.put(origin, soa);
-
-        // NS (authoritative)
-        List<NSRecord> nsRecs = new ArrayList<>();
-        for (String nsHost : z.getNs()) {
-            Name target = Name.fromString(ensureDot(nsHost), Name.root);
-            NSRecord ns = new NSRecord(origin, DClass.IN, ttl, target);
-            nsRecs.add(ns);
-            addRecord(ns);
-        }
-        nsByZone.put(origin, nsRecs);
-
-        // Other records
-        for (JsonRecord jr : z.getRecords()) {
-            long rttl = jr.getTtl() >= 0 ? jr.getTtl() : ttl;
-            Name owner = toOwnerName(jr.getName(), origin);
-            String t = jr.getType() == null ? "A" : jr.getType().toUpperCase(Locale.ROOT);
-            switch (t) {
-                case "A":
-                    addRecord(new ARecord(owner, DClass.IN, rttl, InetAddress.getByName(jr.getData())));
-                    break;
-                case "AAAA":
-                    addRecord(new AAAARecord(owner, DClass.IN, rttl, InetAddress.getByName(jr.getData())));
-                    break;
-                case "CNAME":
-                    addRecord(new CNAMERecord(owner, DClass.IN, rttl,
-                            Name.fromString(ensureDot(jr.getData()), Name.root)));
-                    break;
-                case "TXT":
-                    addRecord(new TXTRecord(owner, DClass.IN, rttl, jr.getData()));
-                    break;
-                case "MX": {
-                    int pref = jr.getPriority() == null ? 10 : jr.getPriority();
-                    Name target = Name.fromString(ensureDot(jr.getData()), Name.root);
-                    addRecord(new MXRecord(owner, DClass.IN, rttl, pref, target));
-                    break;
+    /**
+     * Compiles all zones from the store into a new snapshot and publishes it.
+     * Queries keep using the previous snapshot until the swap and never block.
+     */
+    public void rebuildIndex() throws IOException {
+        for (ReentrantLock lock : publishLocks)
+            lock.lock();
+        try {
+            if (offHeap)
+                offHeapSnapshot.set(OffHeapSnapshot.compile(store.zones.values()));
+            else
+                snapshot.set(ZoneSnapshot.compile(store.zones.values()));
+        } finally {
+            for (ReentrantLock lock : publishLocks)
+                lock.unlock();
+        }
+        // Every zone was rebuilt, so every cached answer is stale
+        if (cache != null)
+            cache.clear();
+    }
+
+    /**
+     * Recompiles only the given zones (a null value removes the zone) and
+     * publishes a snapshot that shares everything else with the current one.
+     * Cached responses are dropped for the changed zones, the zones enclosing
+     * them, and zones whose CNAME chains now lead somewhere else. Updates of
+     * different zones are compiled and published side by side; those of one
+     * zone one after another.
+     *
+     * @param changes as returned by {@link ZoneStore#loadAll()} or {@link ZoneStore#reloadZone(String)}
+     */
+    public void updateZones(Map<Name, JsonZone> changes) throws IOException {
+        if (changes.isEmpty())
+            return;
+        // In index order, so two updates never wait for each other's locks
+        SortedSet<Integer> stripes = new TreeSet<>();
+        for (Name origin : changes.keySet())
+            stripes.add((origin.hashCode() & 0x7fffffff) % publishLocks.length);
+        for (int i : stripes)
+            publishLocks[i].lock();
+        try {
+            publish(changes);
+        } finally {
+            for (int i : stripes)
+                publishLocks[i].unlock();
+        }
+    }
+
+    private void publish(Map<Name, JsonZone> changes) throws IOException {
+        List<JsonZone> present = new ArrayList<>();
+        for (JsonZone z : changes.values())
+            if (z != null)
+                present.add(z);
+        if (offHeap) {
+            updateOffHeapZones(changes.keySet(), present);
+            return;
+        }
+        Map<Name, CompiledZone> compiled = new HashMap<>();
+        for (Map.Entry<Name, JsonZone> e : changes.entrySet())
+            if (e.getValue() == null)
+                compiled.put(e.getKey(), null);
+        for (CompiledZone cz : ZoneSnapshot.compileAll(present))
+            compiled.put(cz.origin, cz);
+
+        ZoneSnapshot previous, next;
+        do {
+            previous = snapshot.get();
+            next = previous.with(compiled);
+        } while (!snapshot.compareAndSet(previous, next));
+
+        if (cache != null) {
+            Set<Name> stale = new HashSet<>(next.chainsChanged());
+            for (Name origin : compiled.keySet()) {
+                stale.add(origin);
+                // Names of an added or removed zone used to be answered by its parent zone
+                addEnclosingZone(previous, origin, stale);
+                addEnclosingZone(next, origin, stale);
+            }
+            cache.invalidate(stale);
+        }
+    }
+
+    private void updateOffHeapZones(Set<Name> origins, List<JsonZone> present) throws IOException {
+        Map<Name, OffHeapZone> compiled = new HashMap<>();
+        for (Name origin : origins)
+            compiled.put(origin, null);
+        for (OffHeapZone z : OffHeapSnapshot.compileAll(present))
+            compiled.put(z.origin, z);
+
+        OffHeapSnapshot previous, next;
+        do {
+            previous = offHeapSnapshot.get();
+            next = previous.with(compiled);
+        } while (!offHeapSnapshot.compareAndSet(previous, next));
+
+        if (cache != null) {
+            // Chains are followed per query here, so any zone with CNAMEs may now answer differently
+            Set<Name> stale = new HashSet<>(origins);
+            for (OffHeapZone z : next.zones.values())
+                if (z.hasCnames)
+                    stale.add(z.origin);
+            for (Name origin : origins) {
+                if (origin.labels() <= 1)
+                    continue;
+                Name parent = new Name(origin, 1);
+                for (OffHeapSnapshot snap : List.of(previous, next)) {
+                    OffHeapZone z = snap.findZone(parent);
+                    if (z != null)
+                        stale.add(z.origin);
                 }
-                case "NS": {
-                    Name target = Name.fromString(ensureDot(jr.getData()), Name.root);
-                    addRecord(new NSRecord(owner, DClass.IN, rttl, target));
-                    break;
+            }
+            cache.invalidate(stale);
+        }
+    }
+
+    private static void addEnclosingZone(ZoneSnapshot snap, Name origin, Set<Name> out) {
+        if (origin.labels() <= 1)
+            return;
+        CompiledZone parent = snap.findZone(new Name(origin, 1));
+        if (parent != null)
+            out.add(parent.origin);
+    }
+
+    /**
+     * Bytes held outside the Java heap by the off-heap record store; 0 when it is not used.
+     */
+    public long offHeapBytes() {
+        return offHeap ? offHeapSnapshot.get().offHeapBytes() : 0;
+    }
+
+    /**
+     * Also builds every response as a dnsjava {@link Message} and compares its
+     * encoding with the one {@link ResponseEncoder} wrote, counting and logging
+     * differences. Slow; meant for differential testing.
+     */
+    public void setVerifyEncoder(boolean verify) {
+        this.verifyEncoder = verify;
+    }
+
+    /** Responses whose encoding differed from dnsjava's while verification was on. */
+    public long encoderMismatches() {
+        return encoderMismatches.get();
+    }
+
+    /**
+     * Sets the clients allowed to transfer zones with AXFR and IXFR; nobody by default.
+     */
+    public void setTransferAcl(NetworkAcl acl) {
+        this.transferAcl = acl;
+    }
+
+    /**
+     * Sets who handles NOTIFY messages; without a handler they get NOTIMP.
+     */
+    public void setNotifyHandler(NotifyHandler handler) {
+        this.notifyHandler = handler;
+    }
+
+    /**
+     * Sets who handles UPDATE messages; without a handler they get NOTIMP.
+     */
+    public void setUpdateHandler(UpdateHandler handler) {
+        this.updateHandler = handler;
+    }
+
+    /**
+     * Drops cached responses for a single zone after its data changed.
+     */
+    public void invalidateZone(Name origin) {
+        if (cache != null)
+            cache.invalidate(origin);
+    }
+
+    /**
+     * Answers a query checked by {@link WireQuery#parse}. Rate limiting and
+     * the cache work on the raw query; dnsjava objects are only built where a
+     * response needs them. The response is not copied: {@code reply} refers to
+     * the thread's encoder buffer or the cached entry until the thread answers
+     * its next query, so answers from the cache or from compiled zones
+     * allocate nothing.
+     *
+     * @param udp whether the query came over UDP; UDP answers are sized to the
+     *            client's EDNS buffer and subject to RRL
+     * @return false if response rate limiting dropped the response
+     */
+    public boolean answer(WireQuery query, InetAddress clientIp, boolean udp, Reply reply) {
+        respond(query, clientIp, udp ? udpPayloadLimit(query) : MAX_TCP_PAYLOAD, reply);
+        if (udp && responseRateLimiter != null)
+            return applyResponseRateLimit(query, reply, clientIp);
+        return true;
+    }
+
+    /**
+     * Same as {@link #answer(WireQuery, InetAddress, boolean, Reply)}, returning a copy of the response.
+     *
+     * @return the response, or null if response rate limiting dropped it
+     */
+    public byte[] answer(WireQuery query, InetAddress clientIp, boolean udp) {
+        Reply reply = new Reply();
+        return answer(query, clientIp, udp, reply) ? reply.toArray() : null;
+    }
+
+    /**
+     * Whether the query asks for a zone transfer, which needs
+     * {@link #transfer} rather than {@link #answer} when it comes over TCP.
+     */
+    public static boolean isTransfer(WireQuery query) {
+        return query.qtype() == Type.AXFR || query.qtype() == Type.IXFR;
+    }
+
+    /**
+     * Serves an AXFR or IXFR query that came over TCP. The zone is written
+     * straight from the current snapshot as a series of messages; an IXFR gets
+     * the journaled changes since the client's serial, or the whole zone if
+     * the journal does not reach back that far (RFC 1995 4).
+     */
+    public void transfer(WireQuery query, InetAddress clientIp, MessageSink sink) throws IOException {
+        metrics.recordQuery(query.qtype());
+        int qtype = query.qtype();
+        if (!transferAcl.allows(clientIp)) {
+            metrics.recordTransferRefused();
+            logger.warn("Refused {} of {} to {}", Type.string(qtype), query.qname(), clientIp.getHostAddress());
+            sendError(query, Rcode.REFUSED, sink);
+            return;
+        }
+        if (qtype == Type.IXFR && query.soaSerial() < 0) {
+            sendError(query, Rcode.FORMERR, sink);
+            return;
+        }
+
+        Name origin = query.qname();
+        CompiledZone cz = null;
+        OffHeapZone oz = null;
+        if (offHeap)
+            oz = offHeapSnapshot.get().zones.get(origin);
+        else
+            cz = snapshot.get().zone(origin);
+        if (cz == null && oz == null) {
+            sendError(query, Rcode.NOTAUTH, sink);
+            return;
+        }
+
+        WireRecord soa = cz != null ? cz.soaWire : WireRecord.of(oz.soaRecord());
+        long serial = ((SOARecord) soa.record).getSerial();
+        ZoneTransfer t = new ZoneTransfer(query, sink, query.hasEdns() ? maxUdpPayload : -1,
+                query.ednsFlags() & ExtendedFlags.DO);
+        String kind = "AXFR";
+        if (qtype == Type.IXFR) {
+            long since = query.soaSerial();
+            List<ZoneJournal.Diff> diffs = Serial.compare(since, serial) >= 0 ? List.of()
+                    : store.changesSince(origin, since);
+            if (diffs != null && (diffs.isEmpty() || diffs.get(diffs.size() - 1).to().getSerial() == serial)) {
+                // Up to date: just our SOA; otherwise each change as old SOA, deletions, new SOA, additions
+                t.add(soa);
+                if (!diffs.isEmpty()) {
+                    for (ZoneJournal.Diff d : diffs) {
+                        t.add(WireRecord.of(d.from()));
+                        for (org.xbill.DNS.Record r : d.deleted())
+                            t.add(WireRecord.of(r));
+                        t.add(WireRecord.of(d.to()));
+                        for (org.xbill.DNS.Record r : d.added())
+                            t.add(WireRecord.of(r));
+                    }
+                    t.add(soa);
                 }
-                case "SOA": // usually derived from zone; ignore explicit
-                    break;
-                default:
-                    System.err.println("Unsupported RR type in JSON: " + t + ", skipping.");
+                t.finish();
+                metrics.recordTransfer(true);
+                logger.info("IXFR of {} from serial {} to {} for {}: {} change(s), {} records in {} message(s)",
+                        origin, since, serial, clientIp.getHostAddress(), diffs.size(), t.records(), t.messages());
+                return;
             }
+            kind = "IXFR (full)";
+        }
+
+        // Records outside the zone's own namespace are never transferred; the SOA only opens and closes it
+        t.add(soa);
+        if (cz != null) {
+            for (Map.Entry<Name, Owner> e : cz.owners.entrySet())
+                if (e.getKey().subdomain(origin))
+                    for (WireRecord r : e.getValue().any.wire)
+                        if (r.type != Type.SOA)
+                            t.add(r);
+        } else {
+            oz.forEachRecord(t::add);
         }
+        t.add(soa);
+        t.finish();
+        metrics.recordTransfer(false);
+        logger.info("{} of {} serial {} for {}: {} records in {} message(s)",
+                kind, origin, serial, clientIp.getHostAddress(), t.records(), t.messages());
     }
 
-    private static Name toOwnerName(String name, Name origin) throws TextParseException {
-        if (name == null || name.equals("@"))
-            return origin;
-        if (name.endsWith("."))
-            return Name.fromString(name, Name.root);
-        return Name.fromString(name + "." + origin, Name.root);
+    private void sendError(WireQuery query, int rcode, MessageSink sink) throws IOException {
+        byte[] wire = single(query, rcode, null);
+        sink.send(wire, wire.length);
     }
 
-    private static String ensureDot(String s) {
-        return s.endsWith(".") ? s : s + ".";
+    /**
+     * A one-message response with the given RCODE and, if not null, a single answer record.
+     */
+    private byte[] single(WireQuery query, int rcode, WireRecord answer) {
+        ResponseEncoder response = ResponseEncoder.get();
+        response.begin(query, false);
+        addOpt(query, response, 0);
+        response.rcode(rcode);
+        if (answer != null)
+            response.add(answer, Section.ANSWER);
+        return response.finish();
     }
 
-    private void addRecord(org.xbill.DNS.Record r) {
-        recordIndex.compute(r.getName(), (k, v) -> {
-            if (v == null)
-                v = new ArrayList<>();
-            v.add(r);
-            return v;
-        });
+    /**
+     * Transfer queries over UDP: AXFR is not defined there (RFC 5936 4.2); an
+     * IXFR gets just our SOA, which tells the client to come back over TCP if
+     * it is behind (RFC 1995 2).
+     */
+    private byte[] udpTransfer(WireQuery query, InetAddress clientIp) {
+        if (!transferAcl.allows(clientIp)) {
+            metrics.recordTransferRefused();
+            return single(query, Rcode.REFUSED, null);
+        }
+        if (query.qtype() == Type.AXFR)
+            return single(query, Rcode.FORMERR, null);
+        Name origin = query.qname();
+        WireRecord soa = null;
+        if (offHeap) {
+            OffHeapZone z = offHeapSnapshot.get().zones.get(origin);
+            if (z != null)
+                soa = WireRecord.of(z.soaRecord());
+        } else {
+            CompiledZone cz = snapshot.get().zone(origin);
+            if (cz != null)
+                soa = cz.soaWire;
+        }
+        return soa == null ? single(query, Rcode.NOTAUTH, null) : single(query, Rcode.NOERROR, soa);
+    }
+
+    /**
+     * Hands a NOTIFY to the secondary zone handler and acknowledges it with
+     * the question echoed (RFC 1996 4.7).
+     */
+    private byte[] notifyResponse(WireQuery query, InetAddress clientIp) {
+        NotifyHandler handler = notifyHandler;
+        int rcode = handler == null ? Rcode.NOTIMP : handler.notify(query.qname(), query.soaSerial(), clientIp);
+        metrics.recordNotify(rcode == Rcode.NOERROR);
+        ResponseEncoder response = ResponseEncoder.get();
+        response.begin(query, false);
+        response.opcode(Opcode.NOTIFY);
+        addOpt(query, response, 0);
+        response.rcode(rcode);
+        return response.finish();
+    }
+
+    /**
+     * Hands an UPDATE to the update handler; answers NOTIMP without one and
+     * FORMERR for a message it can't parse.
+     */
+    private byte[] updateResponse(WireQuery query, InetAddress clientIp) {
+        UpdateHandler handler = updateHandler;
+        byte[] wire = handler == null ? null : handler.update(query.wire(), query.length(), clientIp);
+        if (wire != null)
+            return wire;
+        if (handler != null)
+            metrics.recordUpdate(Rcode.FORMERR);
+        ResponseEncoder response = ResponseEncoder.get();
+        response.begin(query, false);
+        response.opcode(Opcode.UPDATE);
+        addOpt(query, response, 0);
+        response.rcode(handler == null ? Rcode.NOTIMP : Rcode.FORMERR);
+        return response.finish();
     }
 
-    public Message answer(Message query, InetAddress clientIp) {
-        metrics.recordQuery();
+    private void respond(WireQuery query, InetAddress clientIp, int limit, Reply reply) {
+        metrics.recordQuery(query.qtype());
         
         // Rate limiting check
         if (rateLimiter != null && !rateLimiter.isAllowed(clientIp)) {
             metrics.recordRateLimited();
-            Header qh = query.getHeader();
-            Message response = new Message();
-            response.setHeader(new Header(qh.getID()));
-            response.getHeader().setFlag(Flags.QR);
-            response.getHeader().setRcode(Rcode.REFUSED);
-            logger.warn("Rate limited query from {}", clientIp.getHostAddress());
-            return response;
-        }
-
-        Header qh = query.getHeader();
-        org.xbill.DNS.Record qrec = query.getQuestion();
-        Message response = new Message();
-        response.setHeader(new Header(qh.getID()));
-        response.getHeader().setFlag(Flags.QR);
-        response.getHeader().setFlag(Flags.AA); // authoritative
-        response.addRecord(qrec, Section.QUESTION);
+            queryLog.rateLimited(clientIp);
+            reply.set(refused(query));
+            return;
+        }
 
+        // Before the cache, which knows nothing of opcodes
+        if (query.opcode() == Opcode.NOTIFY) {
+            reply.set(notifyResponse(query, clientIp));
+            return;
+        }
+        if (query.opcode() == Opcode.UPDATE) {
+            reply.set(updateResponse(query, clientIp));
+            return;
+        }
+
+        // Only UDP transfer queries get here; TCP ones go to transfer()
+        if (isTransfer(query)) {
+            reply.set(udpTransfer(query, clientIp));
+            return;
+        }
+
+        byte[] queryWire = query.wire();
+        if (cache != null) {
+            byte[] hit = cache.get(queryWire, query.qtype(), query.qclass(), ednsKey(query));
+            if (hit != null) {
+                queryLog.log(queryWire, clientIp, query.qtype(), recordOutcome(hit));
+                reply.setCached(hit, query);
+                if (hit.length > limit)
+                    reply.set(truncateCached(reply.toArray(), limit));
+                return;
+            }
+        }
+
+        if (offHeap) {
+            respondOffHeap(query, clientIp, limit, reply);
+            return;
+        }
+
+        ZoneSnapshot snap = snapshot.get();
+        Name zone = resolve(snap, query, clientIp);
+        // The cache keeps the complete response; truncation depends on the client's buffer
+        ResponseEncoder response = ResponseEncoder.get();
+        byte[] wire = response.buffer();
+        int length = response.length();
+        if (zone != null)
+            metrics.recordZoneQuery(zone);
+        if (cache != null && zone != null && isCacheable(wire[3] & 0x0F)) {
+            cache.put(zone, queryWire, query.qtype(), query.qclass(), ednsKey(query), wire, length, 0);
+            // A reload may have swapped the snapshot while we resolved; don't leave a stale entry behind
+            if (snapshot.get() != snap)
+                cache.invalidate(zone);
+        }
+        deliver(wire, length, limit, reply);
+    }
+
+    /**
+     * Hands a response in a reused buffer to the reply, truncated to what the
+     * client accepts.
+     */
+    private void deliver(byte[] wire, int length, int limit, Reply reply) {
+        if (length <= limit)
+            reply.set(wire, length);
+        else
+            reply.set(truncateCached(Arrays.copyOf(wire, length), limit));
+    }
+
+    /**
+     * Answers from the off-heap store, writing the response straight from the
+     * stored record bytes. Queries it cannot handle (EDNS versions other than
+     * 0, unreadable questions) go through the regular path, which has no zones
+     * to offer them.
+     */
+    private void respondOffHeap(WireQuery query, InetAddress clientIp, int limit, Reply reply) {
+        if (query.hasEdns() && query.ednsVersion() != 0) {
+            resolve(ZoneSnapshot.EMPTY, query, clientIp);
+            ResponseEncoder response = ResponseEncoder.get();
+            deliver(response.buffer(), response.length(), limit, reply);
+            return;
+        }
+        byte[] queryWire = query.wire();
+        int qtype = query.qtype();
+        OffHeapSnapshot snap = offHeapSnapshot.get();
+        WireResponder responder = WireResponder.get();
+        int outcome;
         try {
-            Name qname = qrec.getName();
-            int qtype = qrec.getType();
+            outcome = responder.respond(snap, queryWire, qtype,
+                    query.hasEdns() ? query.ednsFlags() & ExtendedFlags.DO : -1, maxUdpPayload);
+        } catch (RuntimeException e) {
+            metrics.recordFailure();
+            queryLog.log(queryWire, clientIp, qtype, QueryLog.SERVFAIL);
+            reply.set(single(query, Rcode.SERVFAIL, null));
+            return;
+        }
+        if (outcome < 0) {
+            // WireQuery accepted the question, so this should not happen; don't leave the client waiting
+            metrics.recordMalformed();
+            reply.set(single(query, Rcode.FORMERR, null));
+            return;
+        }
+
+        switch (outcome) {
+            case QueryLog.SUCCESS:
+                metrics.recordSuccess();
+                break;
+            case QueryLog.NO_DATA:
+                metrics.recordNoData();
+                break;
+            default:
+                metrics.recordNxdomain();
+        }
+        queryLog.log(queryWire, clientIp, qtype, (byte) outcome);
+
+        byte[] wire = responder.buffer();
+        int length = responder.length();
+        OffHeapZone answeredFrom = responder.zone();
+        if (answeredFrom != null)
+            metrics.recordZoneQuery(answeredFrom.origin);
+        if (cache != null && answeredFrom != null) {
+            Name zone = answeredFrom.origin;
+            cache.put(zone, queryWire, qtype, query.qclass(), ednsKey(query), wire, length, 0);
+            if (offHeapSnapshot.get() != snap)
+                cache.invalidate(zone);
+        }
+        deliver(wire, length, limit, reply);
+    }
+
+    /**
+     * Largest UDP response the client accepts: its EDNS(0) buffer size, capped by
+     * our configured maximum, or 512 bytes without EDNS.
+     */
+    private int udpPayloadLimit(WireQuery query) {
+        if (!query.hasEdns())
+            return MIN_UDP_PAYLOAD;
+        return Math.max(MIN_UDP_PAYLOAD, Math.min(query.ednsPayload(), maxUdpPayload));
+    }
+
+    /**
+     * Encodes the response into at most {@code limit} bytes. Whole RRs are dropped
+     * from the end; TC is set unless only additional records had to go (RFC 2181 9).
+     * The header, question and OPT record are always kept.
+     */
+    private byte[] truncate(Message response, int limit) {
+        metrics.recordTruncated();
+        return response.toWire(limit);
+    }
+
+    private byte[] truncateCached(byte[] wire, int limit) {
+        try {
+            return truncate(new Message(wire), limit);
+        } catch (IOException e) {
+            return slip(wire); // our own encoding always parses; fall back to header and question
+        }
+    }
+
+    /**
+     * Echoes EDNS(0) to clients that sent an OPT record: our UDP buffer size and
+     * the DO bit (RFC 3225), plus the upper bits of an extended RCODE.
+     */
+    private void addOpt(WireQuery query, ResponseEncoder response, int extendedRcode) {
+        if (query.hasEdns())
+            response.opt(maxUdpPayload, extendedRcode >>> 4, query.ednsFlags() & ExtendedFlags.DO);
+    }
+
+    /**
+     * REFUSED for a rate-limited client: header and, if the query had one, our
+     * OPT record; no question.
+     */
+    private byte[] refused(WireQuery query) {
+        byte[] out = new byte[Header.LENGTH + (query.hasEdns() ? 11 : 0)];
+        out[0] = (byte) (query.id() >>> 8);
+        out[1] = (byte) query.id();
+        out[2] = (byte) 0x80; // QR
+        out[3] = (byte) Rcode.REFUSED;
+        if (query.hasEdns()) {
+            out[11] = 1; // ARCOUNT
+            int p = Header.LENGTH + 1; // root owner
+            out[p++] = (byte) (Type.OPT >>> 8);
+            out[p++] = (byte) Type.OPT;
+            out[p++] = (byte) (maxUdpPayload >>> 8);
+            out[p++] = (byte) maxUdpPayload;
+            p += 2; // extended RCODE, version
+            int flags = query.ednsFlags() & ExtendedFlags.DO;
+            out[p++] = (byte) (flags >>> 8);
+            out[p] = (byte) flags;
+        }
+        return out;
+    }
+
+    /**
+     * Encodes the response to a query in the thread's {@link ResponseEncoder}.
+     *
+     * @return the zone it was answered from, or null if none
+     */
+    private Name resolve(ZoneSnapshot snap, WireQuery query, InetAddress clientIp) {
+        byte[] queryWire = query.wire();
+        ResponseEncoder response = ResponseEncoder.get();
+        response.begin(query, verifyEncoder);
 
-            JsonZone z = store.getZoneByName(qname);
+        if (query.hasEdns() && query.ednsVersion() > 0) {
+            // Only EDNS version 0 is implemented (RFC 6891 6.1.3)
+            response.rcode(Rcode.BADVERS & 0xF);
+            addOpt(query, response, Rcode.BADVERS);
+            metrics.recordFailure();
+            return finish(response, null);
+        }
+        addOpt(query, response, 0);
+
+        int qtype = query.qtype();
+        try {
+            // Both lookups walk the question name in the raw query, starting right after the header
+            CompiledZone z = snap.findZone(queryWire, Header.LENGTH);
             if (z == null) {
-                response.getHeader().setRcode(Rcode.NXDOMAIN);
-                SOARecord soa = closestSoa(qname);
-                if (soa != null)
-                    response.addRecord(soa, Section.AUTHORITY);
+                response.rcode(Rcode.NXDOMAIN);
                 metrics.recordNxdomain();
-                logger.info("Query ({}) [{}] [{}] | FAILURE (no matching zone)", String.valueOf(qrec.getName()), clientIp.getHostAddress(), Type.string(qrec.getType()));
-                return response;
+                queryLog.log(queryWire, clientIp, qtype, QueryLog.NO_ZONE);
+                return finish(response, null);
             }
 
-            Name origin = z.originName();
-            List<org.xbill.DNS.Record> answers = match(qname, qtype);
+            Name origin = z.origin;
+            Owner owner = z.lookup(queryWire, Header.LENGTH);
+            if (owner == null) {
+                response.rcode(Rcode.NXDOMAIN);
+                response.add(z.soaWire, Section.AUTHORITY);
+                metrics.recordNxdomain();
+                queryLog.log(queryWire, clientIp, qtype, QueryLog.NO_NAME);
+                return finish(response, origin);
+            }
+            RRSet answers = owner.match(qtype);
 
-            if (answers.isEmpty()) {
+            if (answers == null) {
                 // NODATA
-                response.getHeader().setRcode(Rcode.NOERROR);
-                SOARecord soa = soaByZone.get(origin);
-                if (soa != null)
-                    response.addRecord(soa, Section.AUTHORITY);
+                response.add(z.soaWire, Section.AUTHORITY);
                 metrics.recordNoData();
-                logger.info("Query ({}) [{}] [{}] | FAILURE (no answer records)", String.valueOf(qrec.getName()), clientIp.getHostAddress(), Type.string(qrec.getType()));
-                return response;
+                queryLog.log(queryWire, clientIp, qtype, QueryLog.NO_DATA);
+                return finish(response, origin);
             }
 
-            for (org.xbill.DNS.Record r : answers)
-                response.addRecord(r, Section.ANSWER);
-
-            // Authority: zone NS
-            List<NSRecord> ns = nsByZone.getOrDefault(origin, Collections.emptyList());
-            for (NSRecord nr : ns)
-                response.addRecord(nr, Section.AUTHORITY);
-
-            // Additional: glue for NS and MX targets
-            Set<Name> extraNames = new LinkedHashSet<>();
-            for (org.xbill.DNS.Record r : answers)
-                collectAdditionalTargets(r, extraNames);
-            for (NSRecord nr : ns)
-                extraNames.add(nr.getTarget());
-            for (Name n : extraNames) {
-                for (org.xbill.DNS.Record rr : match(n, Type.A))
-                    response.addRecord(rr, Section.ADDITIONAL);
-                for (org.xbill.DNS.Record rr : match(n, Type.AAAA))
-                    response.addRecord(rr, Section.ADDITIONAL);
+            // Wildcard records take the query name, which the lookups already found readable in the raw query
+            for (WireRecord r : answers.wire) {
+                if (owner.wildcard)
+                    response.add(r, queryWire, Header.LENGTH, Section.ANSWER);
+                else
+                    response.add(r, Section.ANSWER);
             }
 
-            response.getHeader().setRcode(Rcode.NOERROR);
+            RRSet glue = answers;
+            CompiledZone authority = z;
+            if (answers == owner.cname && qtype != Type.CNAME) {
+                // Follow the chain through our own data so the resolver needs no second query
+                CnameChain chain = snap.chain(queryWire, Header.LENGTH, answers);
+                if (chain != null) {
+                    for (WireRecord r : chain.wire)
+                        response.add(r, Section.ANSWER);
+                    if (chain.zone != null) {
+                        RRSet last = chain.target == null ? null : chain.target.match(qtype);
+                        if (last == null) {
+                            // The final name has no such type, or does not exist (RFC 6604)
+                            boolean nx = chain.target == null;
+                            int rcode = nx ? Rcode.NXDOMAIN : Rcode.NOERROR;
+                            response.rcode(rcode);
+                            response.add(chain.zone.soaWire, Section.AUTHORITY);
+                            if (nx)
+                                metrics.recordNxdomain();
+                            else
+                                metrics.recordNoData();
+                            queryLog.log(queryWire, clientIp, qtype, nx ? QueryLog.NO_NAME : QueryLog.NO_DATA);
+                            return finish(response, origin);
+                        }
+                        for (WireRecord r : last.wire) {
+                            if (chain.target.wildcard)
+                                response.add(r, chain.nameWire, 0, Section.ANSWER);
+                            else
+                                response.add(r, Section.ANSWER);
+                        }
+                        glue = last;
+                        authority = chain.zone;
+                    }
+                }
+            }
+
+            // Authority: NS of the zone holding the final answer
+            for (WireRecord nr : authority.nsWire)
+                response.add(nr, Section.AUTHORITY);
+
+            // Additional: glue for NS and MX targets, resolved when the zone was compiled
+            for (WireRecord rr : glue.wireAdditional)
+                response.add(rr, Section.ADDITIONAL);
+            for (Name n : glue.remoteTargets)
+                addRemoteGlue(snap, n, response);
+
             metrics.recordSuccess();
-            logger.info("Query ({}) [{}] [{}] | SUCCESS", String.valueOf(qrec.getName()), clientIp.getHostAddress(), Type.string(qrec.getType()));
-            return response;
+            queryLog.log(queryWire, clientIp, qtype, QueryLog.SUCCESS);
+            return finish(response, origin);
         } catch (Exception e) {
             metrics.recordFailure();
-            logger.info("Query ({}) [{}] [{}] | FAILURE (exception)", String.valueOf(qrec.getName()), clientIp.getHostAddress(), Type.string(qrec.getType()));
-            response.getHeader().setRcode(Rcode.SERVFAIL);
-            return response;
-        }
-    }
-
-    private SOARecord closestSoa(Name qname) {
-        Name n = qname;
-        while (n.labels() > 1) {
-            SOARecord soa = soaByZone.get(n);
-            if (soa != null)
-                return soa;
-            n = new Name(n, 1); // strip leftmost label
-        }
-        return null;
-    }
-
-    private List<org.xbill.DNS.Record> match(Name name, int type) {
-        List<org.xbill.DNS.Record> list = recordIndex.getOrDefault(name, Collections.emptyList());
-        // handle ANY
-        if (type == Type.ANY)
-            return list;
-        // handle CNAME chain: if QTYPE not found but CNAME exists, return CNAME only
-        List<org.xbill.DNS.Record> exact = list.stream().filter(r -> r.getType() == type).collect(Collectors.toList());
-        if (!exact.isEmpty())
-            return exact;
-        for (org.xbill.DNS.Record r : list)
-            if (r.getType() == Type.CNAME)
-                return Collections.singletonList(r);
-        return Collections.emptyList();
-    }
-
-    private void collectAdditionalTargets(org.xbill.DNS.Record r, Set<Name> out) {
-        if (r instanceof MXRecord)
-            out.add(((MXRecord) r).getTarget());
-        if (r instanceof NSRecord)
-            out.add(((NSRecord) r).getTarget());
-        if (r instanceof CNAMERecord)
-            out.add(((CNAMERecord) r).getTarget());
+            queryLog.log(queryWire, clientIp, qtype, QueryLog.SERVFAIL);
+            // Start over; whatever was written before the failure is dropped
+            response.begin(query, verifyEncoder);
+            addOpt(query, response, 0);
+            response.rcode(Rcode.SERVFAIL);
+            return finish(response, null);
+        }
+    }
+
+    /**
+     * Completes the response and, with verification on, compares it with dnsjava's encoding.
+     *
+     * @return {@code zone}
+     */
+    private Name finish(ResponseEncoder response, Name zone) {
+        int length = response.complete();
+        byte[] expected = response.shadowWire();
+        byte[] wire = response.buffer();
+        if (expected != null && !Arrays.equals(wire, 0, length, expected, 0, expected.length)) {
+            encoderMismatches.incrementAndGet();
+            logger.warn("Encoded response differs from dnsjava's at byte {} ({} vs {} bytes)",
+                    Arrays.mismatch(wire, 0, length, expected, 0, expected.length), length, expected.length);
+        }
+        return zone;
+    }
+
+    /**
+     * Runs the encoded response through RRL: passes it on, drops it (false),
+     * or replaces it with a truncated header-plus-question reply.
+     */
+    private boolean applyResponseRateLimit(WireQuery query, Reply reply, InetAddress clientIp) {
+        int rcode = reply.headerByte(3) & 0x0F;
+        int ancount = (reply.headerByte(6) << 8) | reply.headerByte(7);
+        int kind;
+        if (rcode == Rcode.NOERROR)
+            kind = ancount > 0 ? ResponseRateLimiter.POSITIVE : ResponseRateLimiter.NODATA;
+        else if (rcode == Rcode.NXDOMAIN)
+            kind = ResponseRateLimiter.NXDOMAIN;
+        else
+            kind = ResponseRateLimiter.ERROR;
+
+        switch (responseRateLimiter.check(clientIp, query.nameHash(), query.qtype(), kind)) {
+            case DROP:
+                metrics.recordRrlDropped();
+                return false;
+            case SLIP:
+                metrics.recordRrlSlipped();
+                reply.set(slip(reply.toArray()));
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Header and question of {@code wire} with TC set and all other sections removed.
+     */
+    private static byte[] slip(byte[] wire) {
+        int end = Header.LENGTH;
+        int qdcount = ((wire[4] & 0xFF) << 8) | (wire[5] & 0xFF);
+        if (qdcount > 0) {
+            while (end < wire.length && wire[end] != 0)
+                end += (wire[end] & 0xFF) + 1;
+            end = Math.min(wire.length, end + 1 + 4); // root label, qtype, qclass
+            qdcount = 1;
+        }
+        byte[] out = Arrays.copyOf(wire, end);
+        out[2] |= (byte) 0x02; // TC
+        out[4] = 0;
+        out[5] = (byte) qdcount;
+        Arrays.fill(out, 6, Header.LENGTH, (byte) 0); // ANCOUNT, NSCOUNT, ARCOUNT
+        return out;
+    }
+
+    private static boolean isCacheable(int rcode) {
+        return rcode == Rcode.NOERROR || rcode == Rcode.NXDOMAIN;
+    }
+
+    /**
+     * Cache key component for the query's EDNS state: -1 without OPT,
+     * otherwise the EDNS version and the DO bit.
+     */
+    private static int ednsKey(WireQuery query) {
+        if (!query.hasEdns())
+            return -1;
+        return (query.ednsVersion() << 16) | (query.ednsFlags() & ExtendedFlags.DO);
+    }
+
+    /**
+     * Counts a cached response in the same buckets a freshly resolved one would use.
+     *
+     * @return the matching {@link QueryLog} outcome
+     */
+    private byte recordOutcome(byte[] wire) {
+        int rcode = wire[3] & 0x0F;
+        int ancount = ((wire[6] & 0xFF) << 8) | (wire[7] & 0xFF);
+        if (rcode == Rcode.NXDOMAIN) {
+            // Only in-zone answers are cached
+            metrics.recordNxdomain();
+            return QueryLog.NO_NAME;
+        }
+        if (ancount == 0) {
+            metrics.recordNoData();
+            return QueryLog.NO_DATA;
+        }
+        metrics.recordSuccess();
+        return QueryLog.SUCCESS;
+    }
+
+    /**
+     * Glue for a target that lives outside the answering zone, e.g. another hosted zone.
+     */
+    private static void addRemoteGlue(ZoneSnapshot snap, Name target, ResponseEncoder response) {
+        Owner owner = snap.owner(target);
+        if (owner == null)
+            return;
+        RRSet a = owner.get(Type.A);
+        if (a != null)
+            for (WireRecord rr : a.wire)
+                response.add(rr, Section.ADDITIONAL);
+        RRSet aaaa = owner.get(Type.AAAA);
+        if (aaaa != null)
+            for (WireRecord rr : aaaa.wire)
+                response.add(rr, Section.ADDITIONAL);
     }
 }
@@ -0,0 +1,244 @@
+package de.herpersolutions.engine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.MXRecord;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Type;
+
+import de.herpersolutions.Zones.JsonZone;
+import de.herpersolutions.Zones.ZoneRecords;
+import de.herpersolutions.Zones.ZoneTree;
+
+/**
+ * Immutable, query-ready form of a single {@link JsonZone}.
+ */
+final class CompiledZone {
+    final Name origin;
+    final SOARecord soa;
+    final List<NSRecord> ns;
+    // The SOA and NS records as the response encoder writes them
+    final WireRecord soaWire;
+    final WireRecord[] nsWire;
+    // Index: fqdn -> records grouped by type
+    final Map<Name, Owner> owners;
+    // Every name that exists in the zone, empty non-terminals included, for query lookups
+    private final ZoneTree<Owner> names;
+    // CNAME RRsets of this zone, the starting points of chains the snapshot resolves
+    final List<RRSet> cnames;
+
+    private CompiledZone(Name origin, SOARecord soa, List<NSRecord> ns, Map<Name, Owner> owners,
+            ZoneTree<Owner> names, Map<org.xbill.DNS.Record, WireRecord> encoded) {
+        this.origin = origin;
+        this.soa = soa;
+        this.ns = ns;
+        this.soaWire = encode(soa, encoded);
+        this.nsWire = encode(ns, encoded);
+        this.owners = owners;
+        this.names = names;
+        List<RRSet> cnames = new ArrayList<>();
+        for (Owner o : owners.values())
+            if (o.cname != null)
+                cnames.add(o.cname);
+        this.cnames = List.copyOf(cnames);
+    }
+
+    /**
+     * Owner answering a query name given in wire format: the exact name, or the
+     * wildcard its closest encloser synthesizes from. {@link Owner#EMPTY} for
+     * names that exist without records, null if the name does not exist.
+     */
+    Owner lookup(byte[] wire, int off) {
+        return names.match(wire, off);
+    }
+
+    /**
+     * An immutable RRset plus the additional section that goes with it when
+     * it is answered from this zone (A/AAAA for its NS, MX and CNAME targets
+     * and for the zone's NS hosts).
+     */
+    static final class RRSet {
+        final int type;
+        final List<org.xbill.DNS.Record> records;
+        final List<org.xbill.DNS.Record> additional;
+        // Additional targets not served by this zone; resolved against the snapshot per query
+        final List<Name> remoteTargets;
+        // records and additional, encoded
+        final WireRecord[] wire, wireAdditional;
+
+        RRSet(int type, List<org.xbill.DNS.Record> records, List<org.xbill.DNS.Record> additional, List<Name> remoteTargets,
+                WireRecord[] wire, WireRecord[] wireAdditional) {
+            this.type = type;
+            this.records = records;
+            this.additional = additional;
+            this.remoteTargets = remoteTargets;
+            this.wire = wire;
+            this.wireAdditional = wireAdditional;
+        }
+    }
+
+    /**
+     * All RRsets of one owner name. Types are kept in a small parallel int
+     * array since names rarely carry more than a handful of types.
+     */
+    static final class Owner {
+        /** An empty non-terminal: the name exists, but owns no records. */
+        static final Owner EMPTY = new Owner(new int[0], new RRSet[0], null, null, false);
+
+        private final int[] types;
+        private final RRSet[] sets;
+        final RRSet cname; // null if the name has no CNAME
+        final RRSet any;
+        // Records are owned by "*.<encloser>" and take the query name when answered
+        final boolean wildcard;
+
+        Owner(int[] types, RRSet[] sets, RRSet cname, RRSet any, boolean wildcard) {
+            this.types = types;
+            this.sets = sets;
+            this.cname = cname;
+            this.any = any;
+            this.wildcard = wildcard;
+        }
+
+        RRSet get(int type) {
+            for (int i = 0; i < types.length; i++)
+                if (types[i] == type)
+                    return sets[i];
+            return null;
+        }
+
+        /**
+         * RRset answering a query for {@code type}: the exact type, ANY, or the CNAME.
+         */
+        RRSet match(int type) {
+            if (type == Type.ANY)
+                return any;
+            RRSet exact = get(type);
+            return exact != null ? exact : cname;
+        }
+    }
+
+    static CompiledZone compile(JsonZone z) throws IOException {
+        ZoneRecords zr = z.toRecords();
+        Name origin = zr.soa().getName();
+        SOARecord soa = zr.soa();
+        List<NSRecord> nsRecs = zr.ns();
+        Map<Name, List<org.xbill.DNS.Record>> index = new HashMap<>();
+        // The SOA is answered at the apex like any other set (RFC 1035 3.3.13)
+        addRecord(index, soa);
+        for (NSRecord ns : nsRecs)
+            addRecord(index, ns);
+        for (org.xbill.DNS.Record r : zr.records())
+            addRecord(index, r);
+
+        // Group by type and resolve in-zone glue once; each record is encoded once, however many sets share it
+        Map<org.xbill.DNS.Record, WireRecord> encoded = new IdentityHashMap<>();
+        Map<Name, Owner> owners = new HashMap<>();
+        for (Map.Entry<Name, List<org.xbill.DNS.Record>> e : index.entrySet())
+            owners.put(e.getKey(), buildOwner(e.getKey(), e.getValue(), nsRecs, index, encoded));
+        return new CompiledZone(origin, soa, List.copyOf(nsRecs), Map.copyOf(owners),
+                ZoneTree.build(withEmptyNonTerminals(origin, owners)), encoded);
+    }
+
+    /**
+     * Adds every name between an owner and the origin that has no records of
+     * its own, so such names answer NODATA and are not covered by wildcards.
+     */
+    private static Map<Name, Owner> withEmptyNonTerminals(Name origin, Map<Name, Owner> owners) {
+        Map<Name, Owner> names = new HashMap<>(owners);
+        names.putIfAbsent(origin, Owner.EMPTY);
+        for (Name n : owners.keySet()) {
+            if (!n.subdomain(origin))
+                continue;
+            for (Name p = n; p.labels() > origin.labels(); ) {
+                p = new Name(p, 1);
+                if (names.putIfAbsent(p, Owner.EMPTY) != null)
+                    break;
+            }
+        }
+        return names;
+    }
+
+    private static Owner buildOwner(Name name, List<org.xbill.DNS.Record> list, List<NSRecord> zoneNs,
+            Map<Name, List<org.xbill.DNS.Record>> index, Map<org.xbill.DNS.Record, WireRecord> encoded) {
+        Map<Integer, List<org.xbill.DNS.Record>> byType = new LinkedHashMap<>();
+        for (org.xbill.DNS.Record r : list)
+            byType.computeIfAbsent(r.getType(), k -> new ArrayList<>()).add(r);
+
+        int[] types = new int[byType.size()];
+        RRSet[] sets = new RRSet[byType.size()];
+        RRSet cname = null;
+        int i = 0;
+        for (Map.Entry<Integer, List<org.xbill.DNS.Record>> e : byType.entrySet()) {
+            types[i] = e.getKey();
+            sets[i] = buildSet(e.getKey(), e.getValue(), zoneNs, index, encoded);
+            if (types[i] == Type.CNAME)
+                cname = sets[i];
+            i++;
+        }
+        return new Owner(types, sets, cname, buildSet(Type.ANY, list, zoneNs, index, encoded), name.isWild());
+    }
+
+    private static RRSet buildSet(int type, List<org.xbill.DNS.Record> records, List<NSRecord> zoneNs,
+            Map<Name, List<org.xbill.DNS.Record>> index, Map<org.xbill.DNS.Record, WireRecord> encoded) {
+        Set<Name> targets = new LinkedHashSet<>();
+        for (org.xbill.DNS.Record r : records)
+            collectAdditionalTargets(r, targets);
+        for (NSRecord nr : zoneNs)
+            targets.add(nr.getTarget());
+
+        List<org.xbill.DNS.Record> additional = new ArrayList<>();
+        List<Name> remote = new ArrayList<>();
+        for (Name n : targets) {
+            List<org.xbill.DNS.Record> target = index.get(n);
+            if (target == null) {
+                remote.add(n);
+                continue;
+            }
+            for (org.xbill.DNS.Record rr : target)
+                if (rr.getType() == Type.A)
+                    additional.add(rr);
+            for (org.xbill.DNS.Record rr : target)
+                if (rr.getType() == Type.AAAA)
+                    additional.add(rr);
+        }
+        return new RRSet(type, List.copyOf(records), List.copyOf(additional), List.copyOf(remote),
+                encode(records, encoded), encode(additional, encoded));
+    }
+
+    private static WireRecord[] encode(List<? extends org.xbill.DNS.Record> records,
+            Map<org.xbill.DNS.Record, WireRecord> encoded) {
+        WireRecord[] out = new WireRecord[records.size()];
+        for (int i = 0; i < out.length; i++)
+            out[i] = encode(records.get(i), encoded);
+        return out;
+    }
+
+    private static WireRecord encode(org.xbill.DNS.Record r, Map<org.xbill.DNS.Record, WireRecord> encoded) {
+        return encoded.computeIfAbsent(r, WireRecord::of);
+    }
+
+    private static void collectAdditionalTargets(org.xbill.DNS.Record r, Set<Name> out) {
+        if (r instanceof MXRecord)
+            out.add(((MXRecord) r).getTarget());
+        if (r instanceof NSRecord)
+            out.add(((NSRecord) r).getTarget());
+        if (r instanceof CNAMERecord)
+            out.add(((CNAMERecord) r).getTarget());
+    }
+
+    private static void addRecord(Map<Name, List<org.xbill.DNS.Record>> index, org.xbill.DNS.Record r) {
+        index.computeIfAbsent(r.getName(), k -> new ArrayList<>()).add(r);
+    }
+}
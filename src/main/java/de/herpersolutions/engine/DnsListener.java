@@ -1,42 +1,70 @@
 package de.herpersolutions.engine;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Arrays;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
-import org.xbill.DNS.Flags;
-import org.xbill.DNS.Header;
-import org.xbill.DNS.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.herpersolutions.Config;
 import de.herpersolutions.monitoring.DnsMetrics;
 
 public class DnsListener {
-     private final int port;
+     private static final Logger logger = LoggerFactory.getLogger(DnsListener.class);
+        private static final int UDP_RECEIVE_SIZE = 4096;
+        private static final int UDP_SEND_SIZE = 65535;
+
+        private final int port;
+        private final int udpWorkers;
+        private final int tcpIdleTimeoutMs;
+        private final int tcpReadTimeoutMs;
         private final AuthoritativeEngine engine;
         private final DnsMetrics metrics;
         private volatile boolean running = true;
-        private DatagramSocket udpSocket;
+        private final List<DatagramChannel> udpChannels = new ArrayList<>();
         private ServerSocket tcpSocket;
         private final ExecutorService pool = Executors.newCachedThreadPool();
+        // TCP connection handlers; virtual threads unless disabled in the config
+        private final ExecutorService tcpPool;
+        private final Semaphore tcpPermits;
 
-        public DnsListener(int port, AuthoritativeEngine engine, DnsMetrics metrics) { 
-            this.port = port; 
+        public DnsListener(Config cfg, AuthoritativeEngine engine, DnsMetrics metrics) { 
+            this.port = cfg.getPort(); 
+            this.udpWorkers = Math.max(1, cfg.getUdpWorkers());
+            this.tcpIdleTimeoutMs = cfg.getTcpIdleTimeoutMs();
+            this.tcpReadTimeoutMs = cfg.getTcpReadTimeoutMs();
             this.engine = engine; 
             this.metrics = metrics;
+            this.tcpPool = cfg.isTcpVirtualThreads() ? Executors.newVirtualThreadPerTaskExecutor() : pool;
+            this.tcpPermits = new Semaphore(Math.max(1, cfg.getTcpMaxConnections()));
         }
 
         public void run() throws IOException {
-            udpSocket = new DatagramSocket(port);
+            openUdpChannels();
             tcpSocket = new ServerSocket(port);
 
-            pool.submit(this::udpLoop);
+            for (int i = 0; i < udpWorkers; i++) {
+                DatagramChannel ch = udpChannels.get(i % udpChannels.size());
+                pool.submit(() -> udpLoop(ch));
+            }
             pool.submit(this::tcpLoop);
 
             // Block the main thread
@@ -45,33 +73,73 @@ public class DnsListener {
 
         public void close() {
             running = false;
-            try { if (udpSocket != null) udpSocket.close(); } catch (Exception ignored) {}
+            for (DatagramChannel ch : udpChannels)
+                try { ch.close(); } catch (Exception ignored) {}
             try { if (tcpSocket != null) tcpSocket.close(); } catch (Exception ignored) {}
             pool.shutdownNow();
+            tcpPool.shutdownNow();
+        }
+
+        /**
+         * Binds one channel per worker with SO_REUSEPORT so the kernel spreads
+         * packets across them, or a single shared channel where the option is
+         * not available.
+         */
+        private void openUdpChannels() throws IOException {
+            boolean reusePort = udpWorkers > 1 && supportsReusePort();
+            int count = reusePort ? udpWorkers : 1;
+            for (int i = 0; i < count; i++) {
+                DatagramChannel ch = DatagramChannel.open();
+                if (reusePort)
+                    ch.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                ch.bind(new InetSocketAddress(port));
+                udpChannels.add(ch);
+            }
+            logger.info("UDP: {} worker(s) on {} channel(s){}", udpWorkers, count, reusePort ? " with SO_REUSEPORT" : "");
         }
 
-        private void udpLoop() {
-            byte[] buf = new byte[4096];
+        private static boolean supportsReusePort() {
+            try (DatagramChannel probe = DatagramChannel.open()) {
+                return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private void udpLoop(DatagramChannel ch) {
+            // Per-worker buffers, reused for every packet
+            ByteBuffer in = ByteBuffer.allocateDirect(UDP_RECEIVE_SIZE);
+            ByteBuffer out = ByteBuffer.allocateDirect(UDP_SEND_SIZE);
+            byte[] queryWire = new byte[UDP_RECEIVE_SIZE];
+            WireQuery query = new WireQuery();
+            Reply reply = new Reply();
             while (running) {
                 try {
-                    DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                    udpSocket.receive(packet);
-
-                    byte[] in = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset()+packet.getLength());
+                    in.clear();
+                    SocketAddress sender = ch.receive(in);
+                    long received = System.nanoTime();
+                    in.flip();
+                    int length = in.remaining();
+                    in.get(queryWire, 0, length);
 
                     metrics.recordUdp();
-                    Message query = new Message(in);
-                    Message resp = engine.answer(query, packet.getAddress());
-
-                    byte[] out = resp.toWire();
-                    if (out.length > 512) {
-                        // Truncate for UDP per RFC 1035 and set TC flag
-                        Header h = resp.getHeader();
-                        h.setFlag(Flags.TC);
-                        out = trimTo512(out);
+                    // Junk is dropped here, before rate limiting, the cache or any dnsjava parsing
+                    if (!query.parse(queryWire, length)) {
+                        metrics.recordMalformed();
+                        continue;
                     }
-                    DatagramPacket reply = new DatagramPacket(out, out.length, packet.getAddress(), packet.getPort());
-                    udpSocket.send(reply);
+                    InetAddress addr = ((InetSocketAddress) sender).getAddress();
+                    if (!engine.answer(query, addr, true, reply))
+                        continue; // dropped by response rate limiting
+
+                    // Already sized to the client's UDP buffer by the engine
+                    out.clear();
+                    reply.writeTo(out);
+                    out.flip();
+                    ch.send(out, sender);
+                    metrics.recordLatency(true, System.nanoTime() - received);
+                } catch (ClosedChannelException e) {
+                    break;
                 } catch (IOException e) {
                     if (running) e.printStackTrace();
                 } catch (Exception e) {
@@ -80,16 +148,22 @@ public class DnsListener {
             }
         }
 
-        private byte[] trimTo512(byte[] data) {
-            if (data.length <= 512) return data;
-            return Arrays.copyOf(data, 512);
-        }
-
         private void tcpLoop() {
             while (running) {
                 try {
                     Socket s = tcpSocket.accept();
-                    pool.submit(() -> handleTcp(s));
+                    if (!tcpPermits.tryAcquire()) {
+                        // Over the connection limit: close right away instead of queueing
+                        metrics.recordTcpRefused();
+                        try { s.close(); } catch (IOException ignored) {}
+                        continue;
+                    }
+                    metrics.recordTcpOpened();
+                    try {
+                        tcpPool.submit(() -> handleTcp(s));
+                    } catch (RejectedExecutionException e) {
+                        releaseTcp(s);
+                    }
                 } catch (IOException e) {
                     if (running) e.printStackTrace();
                 }
@@ -97,24 +171,47 @@ public class DnsListener {
         }
 
         private void handleTcp(Socket s) {
-            try (DataInputStream in = new DataInputStream(s.getInputStream());
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
                  DataOutputStream out = new DataOutputStream(s.getOutputStream())) {
+                WireQuery query = new WireQuery();
+                Reply reply = new Reply();
                 while (running && !s.isClosed()) {
-                    // TCP DNS: 2-byte length prefix
+                    // TCP DNS: 2-byte length prefix; idle clients time out here
+                    s.setSoTimeout(tcpIdleTimeoutMs);
                     int len;
                     try { len = in.readUnsignedShort(); } catch (EOFException eof) { break; }
+                    s.setSoTimeout(tcpReadTimeoutMs);
                     byte[] msg = in.readNBytes(len);
+                    if (msg.length < len) break;
+                    long received = System.nanoTime();
                     metrics.recordTcp();
-                    Message query = new Message(msg);
-                    Message resp = engine.answer(query, s.getInetAddress());
-                    byte[] wire = resp.toWire();
-                    out.writeShort(wire.length);
-                    out.write(wire);
+                    if (!query.parse(msg, len)) {
+                        metrics.recordMalformed();
+                        break;
+                    }
+                    if (AuthoritativeEngine.isTransfer(query)) {
+                        // AXFR/IXFR: as many messages as the zone needs, each written as soon as it is full
+                        engine.transfer(query, s.getInetAddress(), (message, length) -> {
+                            out.writeShort(length);
+                            out.write(message, 0, length);
+                        });
+                    } else {
+                        engine.answer(query, s.getInetAddress(), false, reply);
+                        out.writeShort(reply.length());
+                        reply.writeTo(out);
+                    }
                     out.flush();
+                    metrics.recordLatency(false, System.nanoTime() - received);
                 }
             } catch (IOException ignored) {
             } finally {
-                try { s.close(); } catch (IOException ignored) {}
+                releaseTcp(s);
             }
         }
+
+        private void releaseTcp(Socket s) {
+            try { s.close(); } catch (IOException ignored) {}
+            tcpPermits.release();
+            metrics.recordTcpClosed();
+        }
 }
@@ -0,0 +1,80 @@
+package de.herpersolutions.engine;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xbill.DNS.Name;
+
+import de.herpersolutions.Zones.JsonZone;
+import de.herpersolutions.Zones.ZoneTree;
+
+/**
+ * Immutable view of all served zones in off-heap form; the counterpart of
+ * {@link ZoneSnapshot} for the off-heap record store. CNAME chains are not
+ * precomputed here but followed per query by {@link WireResponder}.
+ */
+final class OffHeapSnapshot {
+    static final OffHeapSnapshot EMPTY = new OffHeapSnapshot(Collections.emptyMap());
+
+    // origin -> zone
+    final Map<Name, OffHeapZone> zones;
+    private final ZoneTree<OffHeapZone> tree;
+
+    private OffHeapSnapshot(Map<Name, OffHeapZone> zones) {
+        this(zones, ZoneTree.build(zones));
+    }
+
+    private OffHeapSnapshot(Map<Name, OffHeapZone> zones, ZoneTree<OffHeapZone> tree) {
+        this.zones = zones;
+        this.tree = tree;
+    }
+
+    static OffHeapSnapshot compile(Collection<JsonZone> zones) throws IOException {
+        Map<Name, OffHeapZone> byOrigin = new HashMap<>();
+        for (OffHeapZone z : compileAll(zones))
+            byOrigin.put(z.origin, z);
+        return new OffHeapSnapshot(Map.copyOf(byOrigin));
+    }
+
+    static List<OffHeapZone> compileAll(Collection<JsonZone> zones) throws IOException {
+        return ZoneSnapshot.compileAll(zones, OffHeapZone::build);
+    }
+
+    /**
+     * A snapshot with the given zones replaced or added, or removed where the
+     * value is null.
+     */
+    OffHeapSnapshot with(Map<Name, OffHeapZone> changes) {
+        Map<Name, OffHeapZone> next = new HashMap<>(zones);
+        for (Map.Entry<Name, OffHeapZone> e : changes.entrySet()) {
+            if (e.getValue() == null)
+                next.remove(e.getKey());
+            else
+                next.put(e.getKey(), e.getValue());
+        }
+        return new OffHeapSnapshot(Collections.unmodifiableMap(next), tree.with(changes));
+    }
+
+    /**
+     * Closest enclosing zone for a wire-format name, or null if none is served.
+     */
+    OffHeapZone findZone(byte[] wire, int off) {
+        return tree.find(wire, off);
+    }
+
+    OffHeapZone findZone(Name name) {
+        return tree.find(name);
+    }
+
+    /** Off-heap bytes held by all zones. */
+    long offHeapBytes() {
+        long total = 0;
+        for (OffHeapZone z : zones.values())
+            total += z.offHeapBytes();
+        return total;
+    }
+}
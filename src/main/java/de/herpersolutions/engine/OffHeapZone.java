@@ -0,0 +1,328 @@
+package de.herpersolutions.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import de.herpersolutions.Zones.JsonZone;
+import de.herpersolutions.Zones.ZoneRecords;
+
+/**
+ * A zone kept outside the Java heap: every owner name with its RRsets is one
+ * entry in a {@link RecordArena}, found through an open-addressing hash index
+ * (also off-heap) over the lowercased wire-format name. Records are stored as
+ * their wire form minus the owner name, so {@link WireResponder} can copy them
+ * into a response as they are.
+ * <p>
+ * Entry layout: {@code u8 nameLength, name, u16 setCount} followed by the sets,
+ * each {@code u16 type, u16 recordCount, u32 byteLength} and the records as
+ * {@code type, class, ttl, rdlength, rdata}. Names between an owner and the
+ * origin that own nothing are stored with no sets, so they exist for lookups.
+ */
+final class OffHeapZone {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final byte[] WILDCARD = { 1, '*' };
+
+    final Name origin;
+    /** Length of the origin in wire format. */
+    final int originLength;
+    final RecordArena arena;
+    // Slots of 8 bytes holding entry address + 1; 0 marks a free slot
+    private final ByteBuffer index;
+    private final int mask;
+    /** SOA record and the zone's own NS set, each laid out like a set. */
+    final long soa, ns;
+    /** Whether any name in the zone owns a CNAME, i.e. answers may depend on other zones. */
+    final boolean hasCnames;
+
+    private OffHeapZone(Name origin, RecordArena arena, ByteBuffer index, long soa, long ns, boolean hasCnames) {
+        this.origin = origin;
+        this.originLength = origin.length();
+        this.arena = arena;
+        this.index = index;
+        this.mask = index.capacity() / 8 - 1;
+        this.soa = soa;
+        this.ns = ns;
+        this.hasCnames = hasCnames;
+    }
+
+    static OffHeapZone build(JsonZone z) throws IOException {
+        ZoneRecords zr = z.toRecords();
+        Name origin = zr.soa().getName();
+
+        // Group by owner, then type, in the order records appear (the SOA and the zone's NS first)
+        Map<Name, Map<Integer, List<org.xbill.DNS.Record>>> owners = new LinkedHashMap<>();
+        add(owners, zr.soa());
+        for (NSRecord r : zr.ns())
+            add(owners, r);
+        for (org.xbill.DNS.Record r : zr.records())
+            add(owners, r);
+        owners.putIfAbsent(origin, new LinkedHashMap<>());
+        for (Name n : new ArrayList<>(owners.keySet())) {
+            if (!n.subdomain(origin))
+                continue;
+            for (Name p = n; p.labels() > origin.labels(); ) {
+                p = new Name(p, 1);
+                if (owners.putIfAbsent(p, new LinkedHashMap<>()) != null)
+                    break;
+            }
+        }
+
+        // Encode first, so the arena can be sized exactly
+        List<byte[]> names = new ArrayList<>(owners.size());
+        List<List<byte[]>> encoded = new ArrayList<>(owners.size());
+        long total = 0;
+        boolean hasCnames = false;
+        for (Map.Entry<Name, Map<Integer, List<org.xbill.DNS.Record>>> e : owners.entrySet()) {
+            byte[] name = e.getKey().toWire();
+            List<byte[]> sets = new ArrayList<>();
+            total += 1 + name.length + 2;
+            for (List<org.xbill.DNS.Record> set : e.getValue().values()) {
+                byte[] bytes = encodeSet(set);
+                sets.add(bytes);
+                total += bytes.length;
+                hasCnames |= set.get(0).getType() == Type.CNAME;
+            }
+            names.add(name);
+            encoded.add(sets);
+        }
+        byte[] soaSet = encodeSet(List.of(zr.soa()));
+        byte[] nsSet = encodeSet(new ArrayList<>(zr.ns()));
+        total += soaSet.length + nsSet.length;
+
+        int slots = Integer.highestOneBit(Math.max(8, owners.size() * 2 - 1)) << 1;
+        ByteBuffer index = ByteBuffer.allocateDirect(slots * 8);
+        RecordArena arena = new RecordArena(total);
+        for (int i = 0; i < names.size(); i++) {
+            byte[] name = names.get(i);
+            List<byte[]> sets = encoded.get(i);
+            int size = 1 + name.length + 2;
+            for (byte[] set : sets)
+                size += set.length;
+            long entry = arena.allocate(size);
+            arena.put(entry, new byte[] { (byte) name.length }, 0, 1);
+            arena.put(entry + 1, name, 0, name.length);
+            arena.putShort(entry + 1 + name.length, sets.size());
+            long p = entry + 1 + name.length + 2;
+            for (byte[] set : sets) {
+                arena.put(p, set, 0, set.length);
+                p += set.length;
+            }
+            insert(index, slots - 1, hash(FNV_OFFSET, name, 0, name.length), entry);
+        }
+
+        long soa = store(arena, soaSet);
+        long ns = store(arena, nsSet);
+        // Everything lives in the arena now; don't keep the record objects on the heap as well, and keep
+        // the JSON records, which only changes, saving and the API read, in one array
+        z.releaseRecords();
+        z.packRecords();
+        return new OffHeapZone(origin, arena, index, soa, ns, hasCnames);
+    }
+
+    /** Receives records one at a time. */
+    interface RecordSink {
+        void accept(WireRecord r) throws IOException;
+    }
+
+    /** The zone's SOA record, decoded from the arena. */
+    SOARecord soaRecord() {
+        return (SOARecord) record(origin, records(soa));
+    }
+
+    /**
+     * Passes every record at or below the origin to {@code sink}, the SOA
+     * excepted, in no particular order; for zone transfers. Records are
+     * decoded from the arena as they are passed on, so the zone is never
+     * held on the heap as a whole.
+     */
+    void forEachRecord(RecordSink sink) throws IOException {
+        for (int slot = 0; slot <= mask; slot++) {
+            long v = index.getLong(slot * 8);
+            if (v == 0)
+                continue;
+            long entry = v - 1;
+            byte[] wire = new byte[arena.get(entry)];
+            arena.get(entry + 1, wire, 0, wire.length);
+            Name name = new Name(wire);
+            if (!name.subdomain(origin))
+                continue;
+            long set = firstSet(entry);
+            for (int i = setCount(entry); i > 0; i--, set = nextSet(set)) {
+                if (setType(set) == Type.SOA)
+                    continue;
+                long r = records(set);
+                for (int j = recordCount(set); j > 0; j--) {
+                    sink.accept(WireRecord.of(record(name, r)));
+                    r += 10 + arena.getShort(r + 8);
+                }
+            }
+        }
+    }
+
+    /** The record stored at {@code r}: type, class, ttl, rdlength, rdata. */
+    private org.xbill.DNS.Record record(Name owner, long r) {
+        byte[] rdata = new byte[arena.getShort(r + 8)];
+        arena.get(r + 10, rdata, 0, rdata.length);
+        return org.xbill.DNS.Record.newRecord(owner, arena.getShort(r), arena.getShort(r + 2),
+                arena.getInt(r + 4) & 0xFFFFFFFFL, rdata);
+    }
+
+    /** Off-heap bytes held by this zone. */
+    long offHeapBytes() {
+        return arena.capacity() + index.capacity();
+    }
+
+    /**
+     * Entry answering a query name in wire format: the name itself, or the
+     * wildcard its closest encloser synthesizes from (RFC 4592). The name must
+     * be at or below the origin; returns -1 if it does not exist.
+     */
+    long lookup(byte[] wire, int off) {
+        int len = WireResponder.nameLength(wire, off);
+        if (len < 0)
+            return -1;
+        long entry = find(false, wire, off, len);
+        if (entry >= 0)
+            return entry;
+        // Closest encloser: the longest existing ancestor; empty non-terminals count
+        for (int p = off + (wire[off] & 0xFF) + 1; p < off + len; p += (wire[p] & 0xFF) + 1) {
+            int rest = off + len - p;
+            if (find(false, wire, p, rest) >= 0)
+                return find(true, wire, p, rest);
+        }
+        return -1;
+    }
+
+    /**
+     * Entry of exactly this name, or -1.
+     */
+    long find(byte[] wire, int off, int len) {
+        return find(false, wire, off, len);
+    }
+
+    int setCount(long entry) {
+        return arena.getShort(entry + 1 + arena.get(entry));
+    }
+
+    long firstSet(long entry) {
+        return entry + 1 + arena.get(entry) + 2;
+    }
+
+    long nextSet(long set) {
+        return set + 8 + (arena.getInt(set + 4) & 0xFFFFFFFFL);
+    }
+
+    int setType(long set) {
+        return arena.getShort(set);
+    }
+
+    int recordCount(long set) {
+        return arena.getShort(set + 2);
+    }
+
+    /** Address of the first record of a set. */
+    long records(long set) {
+        return set + 8;
+    }
+
+    /**
+     * The set of {@code type} owned by an entry, or -1.
+     */
+    long set(long entry, int type) {
+        long s = firstSet(entry);
+        for (int i = setCount(entry); i > 0; i--, s = nextSet(s))
+            if (setType(s) == type)
+                return s;
+        return -1;
+    }
+
+    private long find(boolean wildcard, byte[] wire, int off, int len) {
+        long h = wildcard ? hash(FNV_OFFSET, WILDCARD, 0, WILDCARD.length) : FNV_OFFSET;
+        h = hash(h, wire, off, len);
+        for (int slot = slot(h, mask); ; slot = (slot + 1) & mask) {
+            long v = index.getLong(slot * 8);
+            if (v == 0)
+                return -1;
+            if (nameEquals(v - 1, wildcard, wire, off, len))
+                return v - 1;
+        }
+    }
+
+    private boolean nameEquals(long entry, boolean wildcard, byte[] wire, int off, int len) {
+        int stored = arena.get(entry);
+        int skip = wildcard ? WILDCARD.length : 0;
+        if (stored != len + skip)
+            return false;
+        long p = entry + 1;
+        if (wildcard && (arena.get(p) != 1 || arena.get(p + 1) != '*'))
+            return false;
+        p += skip;
+        for (int i = 0; i < len; i++)
+            if (WireResponder.lower(arena.get(p + i)) != WireResponder.lower(wire[off + i] & 0xFF))
+                return false;
+        return true;
+    }
+
+    private static void insert(ByteBuffer index, int mask, long h, long entry) {
+        int slot = slot(h, mask);
+        while (index.getLong(slot * 8) != 0)
+            slot = (slot + 1) & mask;
+        index.putLong(slot * 8, entry + 1);
+    }
+
+    private static int slot(long h, int mask) {
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /** FNV-1a over the name with ASCII letters folded to lower case. */
+    private static long hash(long h, byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            h ^= WireResponder.lower(b[i] & 0xFF);
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static byte[] encodeSet(List<? extends org.xbill.DNS.Record> records) {
+        List<byte[]> tails = new ArrayList<>(records.size());
+        int size = 8;
+        for (org.xbill.DNS.Record r : records) {
+            // Uncompressed wire form without the owner name
+            byte[] wire = r.toWire(Section.ANSWER);
+            int owner = r.getName().length();
+            byte[] tail = new byte[wire.length - owner];
+            System.arraycopy(wire, owner, tail, 0, tail.length);
+            tails.add(tail);
+            size += tail.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putShort((short) (records.isEmpty() ? 0 : records.get(0).getType()));
+        out.putShort((short) records.size());
+        out.putInt(size - 8);
+        for (byte[] t : tails)
+            out.put(t);
+        return out.array();
+    }
+
+    private static long store(RecordArena arena, byte[] bytes) {
+        long addr = arena.allocate(bytes.length);
+        arena.put(addr, bytes, 0, bytes.length);
+        return addr;
+    }
+
+    private static void add(Map<Name, Map<Integer, List<org.xbill.DNS.Record>>> owners, org.xbill.DNS.Record r) {
+        owners.computeIfAbsent(r.getName(), k -> new LinkedHashMap<>())
+                .computeIfAbsent(r.getType(), k -> new ArrayList<>()).add(r);
+    }
+}
@@ -0,0 +1,85 @@
+package de.herpersolutions.engine;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only memory outside the Java heap, made of direct buffers of up to
+ * {@link #MAX_CHUNK} bytes each, sized to what the caller expects to store.
+ * Addresses are longs with the chunk index in the upper and the offset in the
+ * lower 32 bits; an allocation never spans chunks. Once written, the arena is only read, which
+ * is safe from any thread since reads use absolute positions.
+ */
+final class RecordArena {
+    private static final int MAX_CHUNK = 64 * 1024 * 1024;
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer[] view = new ByteBuffer[0];
+    private int used; // bytes used in the last chunk
+    private long capacity;
+    private final long expected;
+
+    /**
+     * @param expected bytes the caller is going to allocate, to avoid over-reserving
+     */
+    RecordArena(long expected) {
+        this.expected = expected;
+    }
+
+    /**
+     * Reserves {@code size} contiguous bytes.
+     *
+     * @return the address of the first byte
+     */
+    long allocate(int size) {
+        ByteBuffer last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (last == null || last.capacity() - used < size) {
+            int next = (int) Math.min(MAX_CHUNK, Math.max(expected - capacity, 1024));
+            last = ByteBuffer.allocateDirect(Math.max(next, size));
+            chunks.add(last);
+            view = chunks.toArray(new ByteBuffer[0]);
+            capacity += last.capacity();
+            used = 0;
+        }
+        long addr = ((long) (chunks.size() - 1) << 32) | used;
+        used += size;
+        return addr;
+    }
+
+    /** Off-heap bytes reserved by this arena. */
+    long capacity() {
+        return capacity;
+    }
+
+    void put(long addr, byte[] src, int off, int len) {
+        view[(int) (addr >>> 32)].put((int) addr, src, off, len);
+    }
+
+    void putShort(long addr, int v) {
+        view[(int) (addr >>> 32)].putShort((int) addr, (short) v);
+    }
+
+    void putInt(long addr, int v) {
+        view[(int) (addr >>> 32)].putInt((int) addr, v);
+    }
+
+    int get(long addr) {
+        return view[(int) (addr >>> 32)].get((int) addr) & 0xFF;
+    }
+
+    int getShort(long addr) {
+        return view[(int) (addr >>> 32)].getShort((int) addr) & 0xFFFF;
+    }
+
+    int getInt(long addr) {
+        return view[(int) (addr >>> 32)].getInt((int) addr);
+    }
+
+    /**
+     * Copies {@code len} bytes starting at {@code addr} into {@code dst}.
+     */
+    void get(long addr, byte[] dst, int off, int len) {
+        view[(int) (addr >>> 32)].get((int) addr, dst, off, len);
+    }
+}
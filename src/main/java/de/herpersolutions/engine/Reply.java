@@ -0,0 +1,87 @@
+package de.herpersolutions.engine;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.xbill.DNS.Header;
+
+/**
+ * A response ready to send, held without copying it: it refers to the
+ * thread's encoder buffer, a cached response or an array of its own, and is
+ * valid until the thread answers its next query. A cached response is stored
+ * with the ID and question name of the query it was made for; those of the
+ * current query are patched in as it is written out. One instance is reused
+ * per worker or connection.
+ */
+public final class Reply {
+    private byte[] wire;
+    private int length;
+    // The query to take the ID and question name from, or null if wire already has them
+    private byte[] query;
+    private int qnameLength;
+
+    void set(byte[] wire, int length) {
+        this.wire = wire;
+        this.length = length;
+        this.query = null;
+    }
+
+    void set(byte[] wire) {
+        set(wire, wire.length);
+    }
+
+    /**
+     * A cached response for {@code query}. The names are the same but for
+     * case, so the question name has the same length in both.
+     */
+    void setCached(byte[] wire, WireQuery query) {
+        set(wire, wire.length);
+        this.query = query.wire();
+        this.qnameLength = query.qnameLength();
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * A byte of the header past the ID, e.g. flags or section counts; those
+     * are never patched.
+     */
+    int headerByte(int i) {
+        return wire[i] & 0xFF;
+    }
+
+    /** Appends the response at the buffer's position. */
+    public void writeTo(ByteBuffer out) {
+        int start = out.position();
+        out.put(wire, 0, length);
+        if (query != null) {
+            out.put(start, query, 0, 2);
+            out.put(start + Header.LENGTH, query, Header.LENGTH, qnameLength);
+        }
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        if (query == null) {
+            out.write(wire, 0, length);
+            return;
+        }
+        out.write(query, 0, 2);
+        out.write(wire, 2, Header.LENGTH - 2);
+        out.write(query, Header.LENGTH, qnameLength);
+        out.write(wire, Header.LENGTH + qnameLength, length - Header.LENGTH - qnameLength);
+    }
+
+    /** A copy of the response as it would be sent. */
+    public byte[] toArray() {
+        byte[] out = Arrays.copyOf(wire, length);
+        if (query != null) {
+            System.arraycopy(query, 0, out, 0, 2);
+            System.arraycopy(query, Header.LENGTH, out, Header.LENGTH, qnameLength);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,380 @@
+package de.herpersolutions.engine;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Header;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+/**
+ * Encodes a response straight into a per-thread buffer from pre-encoded
+ * {@link WireRecord}s, instead of building a {@link Message} and calling
+ * {@code toWire()}. The output is the same, byte for byte: names are
+ * compressed the way dnsjava does it (owners, and NS, CNAME, MX and SOA
+ * targets; each suffix is remembered once, if it starts below offset
+ * 0x4000), and the OPT record comes first in the additional section, where
+ * the engine adds it.
+ * <p>
+ * Records must be added in section order. With verification on, every call
+ * is mirrored into a dnsjava {@link Message} so {@link #shadowWire()} can be
+ * compared against {@link #finish()}.
+ * <p>
+ * The buffer and the compression table start small and grow with the largest
+ * response a thread has written, so the encoders of short-lived threads (one
+ * virtual thread per TCP connection) cost a few kilobytes, not 256.
+ */
+final class ResponseEncoder {
+    private static final int MAX_LENGTH = 65535;
+    private static final int INITIAL_LENGTH = 4096;
+    // Compression pointers reach 0x3FFF and every entry covers at least two bytes
+    private static final int MAX_TABLE_SIZE = 1 << 14;
+    private static final int INITIAL_TABLE_SIZE = 64;
+    private static final ThreadLocal<ResponseEncoder> LOCAL = ThreadLocal.withInitial(ResponseEncoder::new);
+
+    private byte[] buf = new byte[INITIAL_LENGTH];
+    private int pos;
+    private int id, opcode, rcode, questions;
+    private final int[] counts = new int[4];
+    private int section;
+    // Pending OPT record, written as the first additional record
+    private boolean optPending;
+    private int optPayload, optExtendedRcode, optFlags;
+
+    // Compression table: hash of a name and the offset it was written at (+1, 0 = free); at most half full
+    private int[] tableHash = new int[INITIAL_TABLE_SIZE];
+    private int[] tableOffset = new int[INITIAL_TABLE_SIZE];
+    private int[] usedSlots = new int[INITIAL_TABLE_SIZE / 2];
+    private int used;
+
+    private Message shadow;
+
+    static ResponseEncoder get() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Starts a response to {@code query}: header with QR and AA set, and the
+     * question copied from the raw query.
+     *
+     * @param verify also build the response as a dnsjava message, for {@link #shadowWire()}
+     */
+    void begin(WireQuery query, boolean verify) {
+        reset(query);
+        questions = 1;
+        writeName(query.wire(), Header.LENGTH);
+        putShort(query.qtype());
+        putShort(query.qclass());
+        if (verify) {
+            shadow = new Message();
+            shadow.setHeader(new Header(id));
+            shadow.getHeader().setFlag(Flags.QR);
+            shadow.getHeader().setFlag(Flags.AA);
+            shadow.addRecord(org.xbill.DNS.Record.newRecord(query.qname(), query.qtype(), query.qclass()),
+                    Section.QUESTION);
+        }
+    }
+
+    /**
+     * Starts a further message of a multi-message response such as a zone
+     * transfer: same ID and flags, no question (RFC 5936 2.2).
+     */
+    void beginContinuation(WireQuery query) {
+        reset(query);
+        questions = 0;
+    }
+
+    private void reset(WireQuery query) {
+        for (int i = 0; i < used; i++)
+            tableOffset[usedSlots[i]] = 0;
+        used = 0;
+        Arrays.fill(counts, 0);
+        section = Section.QUESTION;
+        optPending = false;
+        opcode = 0;
+        rcode = 0;
+        id = query.id();
+        pos = Header.LENGTH;
+        shadow = null;
+    }
+
+    /**
+     * Sets the opcode the response echoes, e.g. NOTIFY; responses are QUERY otherwise.
+     */
+    void opcode(int opcode) {
+        this.opcode = opcode;
+        if (shadow != null)
+            shadow.getHeader().setOpcode(opcode);
+    }
+
+    void rcode(int rcode) {
+        this.rcode = rcode;
+        if (shadow != null)
+            shadow.getHeader().setRcode(rcode);
+    }
+
+    /**
+     * Adds an OPT record; it is written ahead of all other additional records.
+     */
+    void opt(int payload, int extendedRcode, int flags) {
+        optPending = true;
+        optPayload = payload;
+        optExtendedRcode = extendedRcode;
+        optFlags = flags;
+        if (shadow != null)
+            shadow.addRecord(new OPTRecord(payload, extendedRcode, 0, flags), Section.ADDITIONAL);
+    }
+
+    void add(WireRecord r, int section) {
+        add(r, r.owner, 0, section);
+        if (shadow != null)
+            shadow.addRecord(r.record, section);
+    }
+
+    /**
+     * Adds a record under another owner name, e.g. the query name a wildcard
+     * answers for.
+     *
+     * @param owner uncompressed wire-format name at {@code ownerOff}
+     */
+    void add(WireRecord r, byte[] owner, int ownerOff, int section) {
+        enter(section);
+        writeName(owner, ownerOff);
+        ensure(10);
+        putShort(r.type);
+        putShort(r.dclass);
+        putInt(r.ttl);
+        int lengthAt = pos;
+        pos += 2;
+        int done = 0;
+        for (int n : r.names) {
+            copy(r.rdata, done, n - done);
+            writeName(r.rdata, n);
+            done = n + WireResponder.nameLength(r.rdata, n);
+        }
+        copy(r.rdata, done, r.rdata.length - done);
+        buf[lengthAt] = (byte) ((pos - lengthAt - 2) >>> 8);
+        buf[lengthAt + 1] = (byte) (pos - lengthAt - 2);
+        counts[section]++;
+        if (shadow != null && owner != r.owner)
+            shadow.addRecord(r.record.withName(nameAt(owner, ownerOff)), section);
+    }
+
+    /**
+     * Whether the record can still be added without the message growing past
+     * 64 KB, counting it uncompressed and any pending OPT record.
+     */
+    boolean fits(WireRecord r) {
+        return pos + r.owner.length + 10 + r.rdata.length + (optPending ? 11 : 0) <= MAX_LENGTH;
+    }
+
+    /** Records added to the message so far, in all sections. */
+    int recordCount() {
+        return counts[Section.ANSWER] + counts[Section.AUTHORITY] + counts[Section.ADDITIONAL];
+    }
+
+    /**
+     * Completes the header and returns a copy of the response.
+     */
+    byte[] finish() {
+        return Arrays.copyOf(buf, complete());
+    }
+
+    /**
+     * Completes the header and returns the length of the response, which
+     * stays in {@link #buffer()} until the next {@code begin}.
+     */
+    int complete() {
+        enter(Section.ADDITIONAL);
+        buf[0] = (byte) (id >>> 8);
+        buf[1] = (byte) id;
+        buf[2] = (byte) (0x84 | (opcode << 3)); // QR, AA, opcode
+        buf[3] = (byte) (rcode & 0x0F);
+        putShortAt(4, questions);
+        putShortAt(6, counts[Section.ANSWER]);
+        putShortAt(8, counts[Section.AUTHORITY]);
+        putShortAt(10, counts[Section.ADDITIONAL]);
+        return pos;
+    }
+
+    /** Bytes written so far; after {@link #complete()}, the length of the response. */
+    int length() {
+        return pos;
+    }
+
+    /**
+     * The buffer holding the response; may be replaced by a larger one while
+     * writing, so ask for it after {@link #complete()}.
+     */
+    byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     * The same response encoded by dnsjava, or null unless verification is on.
+     */
+    byte[] shadowWire() {
+        return shadow == null ? null : shadow.toWire();
+    }
+
+    private void enter(int next) {
+        if (next < section)
+            throw new IllegalStateException("records must be added in section order");
+        if (next == Section.ADDITIONAL && optPending) {
+            // Root owner, then type, payload size, extended RCODE, version, flags and no options
+            optPending = false;
+            ensure(11);
+            buf[pos++] = 0;
+            putShort(Type.OPT);
+            putShort(optPayload);
+            buf[pos++] = (byte) optExtendedRcode;
+            buf[pos++] = 0;
+            putShort(optFlags);
+            putShort(0);
+            counts[Section.ADDITIONAL]++;
+        }
+        section = next;
+    }
+
+    /**
+     * Writes the uncompressed name at {@code off}, replacing its longest suffix
+     * already in the message with a pointer, and remembers each new suffix.
+     */
+    private void writeName(byte[] src, int off) {
+        // Compressed it is never longer, so this agrees with fits()
+        int length = WireResponder.nameLength(src, off);
+        ensure(length < 0 ? 256 : length);
+        int p = off;
+        while (true) {
+            int len = src[p] & 0xFF;
+            if (len == 0) {
+                buf[pos++] = 0;
+                return;
+            }
+            int h = hash(src, p);
+            int at = lookup(h, src, p);
+            if (at >= 0) {
+                putShort(0xC000 | at);
+                return;
+            }
+            if (pos <= 0x3FFF)
+                remember(h, pos);
+            System.arraycopy(src, p, buf, pos, len + 1);
+            pos += len + 1;
+            p += len + 1;
+        }
+    }
+
+    private int lookup(int h, byte[] src, int p) {
+        int mask = tableOffset.length - 1;
+        for (int slot = h & mask; tableOffset[slot] != 0; slot = (slot + 1) & mask)
+            if (tableHash[slot] == h && equalsAt(src, p, tableOffset[slot] - 1))
+                return tableOffset[slot] - 1;
+        return -1;
+    }
+
+    private void remember(int h, int offset) {
+        if (used == usedSlots.length)
+            growTable();
+        usedSlots[used++] = place(tableHash, tableOffset, h, offset + 1);
+    }
+
+    /** Doubles the compression table; it never needs more than {@link #MAX_TABLE_SIZE} slots. */
+    private void growTable() {
+        int size = Math.min(MAX_TABLE_SIZE, tableOffset.length * 2);
+        int[] hashes = new int[size];
+        int[] offsets = new int[size];
+        int[] slots = new int[size / 2];
+        for (int i = 0; i < used; i++)
+            slots[i] = place(hashes, offsets, tableHash[usedSlots[i]], tableOffset[usedSlots[i]]);
+        tableHash = hashes;
+        tableOffset = offsets;
+        usedSlots = slots;
+    }
+
+    private static int place(int[] hashes, int[] offsets, int h, int offset) {
+        int mask = offsets.length - 1;
+        int slot = h & mask;
+        while (offsets[slot] != 0)
+            slot = (slot + 1) & mask;
+        hashes[slot] = h;
+        offsets[slot] = offset;
+        return slot;
+    }
+
+    /** Compares the name at {@code src[p]} with the one in the buffer at {@code q}, following pointers. */
+    private boolean equalsAt(byte[] src, int p, int q) {
+        while (true) {
+            int lq = buf[q] & 0xFF;
+            if ((lq & 0xC0) == 0xC0) {
+                q = ((lq & 0x3F) << 8) | (buf[q + 1] & 0xFF);
+                continue;
+            }
+            int ls = src[p] & 0xFF;
+            if (ls != lq)
+                return false;
+            if (ls == 0)
+                return true;
+            for (int i = 1; i <= ls; i++)
+                if (WireResponder.lower(src[p + i] & 0xFF) != WireResponder.lower(buf[q + i] & 0xFF))
+                    return false;
+            p += ls + 1;
+            q += lq + 1;
+        }
+    }
+
+    private static int hash(byte[] src, int p) {
+        int h = 1;
+        for (int len = src[p] & 0xFF; len != 0; len = src[p] & 0xFF) {
+            for (int i = 0; i <= len; i++)
+                h = 31 * h + WireResponder.lower(src[p + i] & 0xFF);
+            p += len + 1;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static Name nameAt(byte[] src, int off) {
+        try {
+            return new Name(Arrays.copyOfRange(src, off, off + WireResponder.nameLength(src, off)));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private void copy(byte[] src, int off, int len) {
+        ensure(len);
+        System.arraycopy(src, off, buf, pos, len);
+        pos += len;
+    }
+
+    private void putShort(int v) {
+        ensure(2);
+        buf[pos++] = (byte) (v >>> 8);
+        buf[pos++] = (byte) v;
+    }
+
+    private void putShortAt(int at, int v) {
+        buf[at] = (byte) (v >>> 8);
+        buf[at + 1] = (byte) v;
+    }
+
+    private void putInt(long v) {
+        ensure(4);
+        buf[pos++] = (byte) (v >>> 24);
+        buf[pos++] = (byte) (v >>> 16);
+        buf[pos++] = (byte) (v >>> 8);
+        buf[pos++] = (byte) v;
+    }
+
+    private void ensure(int n) {
+        if (pos + n <= buf.length)
+            return;
+        if (pos + n > MAX_LENGTH)
+            throw new IllegalStateException("response exceeds " + MAX_LENGTH + " bytes");
+        buf = Arrays.copyOf(buf, Math.min(MAX_LENGTH, Math.max(buf.length * 2, pos + n)));
+    }
+}
@@ -0,0 +1,201 @@
+package de.herpersolutions.engine;
+
+import java.io.IOException;
+
+import org.xbill.DNS.DNSInput;
+import org.xbill.DNS.Header;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Type;
+
+/**
+ * What the engine needs from a query, read straight from the received bytes:
+ * ID, flags, the question and the EDNS OPT record. Parsing allocates nothing,
+ * so floods of junk and rate-limited clients never cost a dnsjava
+ * {@link org.xbill.DNS.Message}. One instance is reused per worker or
+ * connection; it refers to the caller's buffer until the next {@link #parse}.
+ */
+public final class WireQuery {
+    private static final int QR = 0x8000;
+
+    private byte[] wire;
+    private int length;
+    private int id, flags, qtype, qclass, qnameLength, nameHash;
+    private boolean edns;
+    private int ednsPayload, ednsVersion, ednsFlags;
+    private long soaSerial;
+
+    /**
+     * Reads the query in {@code wire[0, length)}. Rejects anything that is not
+     * a single-question query with an uncompressed name, sections that run
+     * past the end, and OPT records that are misplaced or repeated.
+     *
+     * @return false if the packet is malformed; the accessors are then undefined
+     */
+    public boolean parse(byte[] wire, int length) {
+        this.wire = wire;
+        this.length = length;
+        edns = false;
+        soaSerial = -1;
+        if (length < Header.LENGTH || length > wire.length)
+            return false;
+        id = u16(0);
+        flags = u16(2);
+        if ((flags & QR) != 0 || u16(4) != 1)
+            return false;
+
+        // Question name: plain labels only, case-insensitive hash on the way
+        int p = Header.LENGTH;
+        int h = 1;
+        while (true) {
+            if (p >= length)
+                return false;
+            int len = wire[p] & 0xFF;
+            if (len > 63 || p + len >= length)
+                return false;
+            for (int i = 0; i <= len; i++)
+                h = 31 * h + WireResponder.lower(wire[p + i] & 0xFF);
+            p += len + 1;
+            if (len == 0)
+                break;
+        }
+        qnameLength = p - Header.LENGTH;
+        if (qnameLength > 255 || p + 4 > length)
+            return false;
+        nameHash = h;
+        qtype = u16(p);
+        qclass = u16(p + 2);
+        p += 4;
+
+        // Walk the other sections for the OPT record, which may only appear once, owned by the root, in additional,
+        // and for the SOA an IXFR query carries in authority and a NOTIFY in answer
+        int answers = u16(6) + u16(8);
+        int records = answers + u16(10);
+        for (int i = 0; i < records; i++) {
+            int owner = p;
+            p = skipName(p);
+            if (p < 0 || p + 10 > length)
+                return false;
+            int type = u16(p);
+            int rdlength = u16(p + 8);
+            if (type == Type.OPT) {
+                if (i < answers || edns || wire[owner] != 0)
+                    return false;
+                edns = true;
+                ednsPayload = u16(p + 2);
+                ednsVersion = wire[p + 5] & 0xFF;
+                ednsFlags = u16(p + 6);
+            } else if (type == Type.SOA && i < answers && soaSerial < 0 && rdlength > 0) {
+                // (an UPDATE deleting the SOA RRset carries one without rdata)
+                // MNAME and RNAME, then the serial
+                int end = p + 10 + rdlength;
+                int q = skipName(p + 10);
+                q = q < 0 ? -1 : skipName(q);
+                if (q < 0 || q + 4 > end)
+                    return false;
+                soaSerial = ((long) u16(q) << 16) | u16(q + 2);
+            }
+            p += 10 + rdlength;
+            if (p > length)
+                return false;
+        }
+        return true;
+    }
+
+    /** The buffer the query was parsed from. */
+    public byte[] wire() {
+        return wire;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public int opcode() {
+        return (flags >>> 11) & 0xF;
+    }
+
+    public int qtype() {
+        return qtype;
+    }
+
+    public int qclass() {
+        return qclass;
+    }
+
+    /** Length of the question name in wire format; it starts right after the header. */
+    public int qnameLength() {
+        return qnameLength;
+    }
+
+    /** Hash of the question name, ignoring ASCII case. */
+    public int nameHash() {
+        return nameHash;
+    }
+
+    public boolean hasEdns() {
+        return edns;
+    }
+
+    /** The client's UDP buffer size from its OPT record. */
+    public int ednsPayload() {
+        return ednsPayload;
+    }
+
+    public int ednsVersion() {
+        return ednsVersion;
+    }
+
+    /** EDNS flags from the OPT record, e.g. the DO bit. */
+    public int ednsFlags() {
+        return ednsFlags;
+    }
+
+    /**
+     * Serial of the first SOA record in the answer or authority section: the
+     * version an IXFR client has (RFC 1995), or the new version a NOTIFY
+     * announces (RFC 1996); -1 if there is none.
+     */
+    public long soaSerial() {
+        return soaSerial;
+    }
+
+    /**
+     * The question name as a dnsjava {@link Name}; allocates, so only for
+     * paths that need one.
+     */
+    public Name qname() {
+        try {
+            DNSInput in = new DNSInput(wire);
+            in.jump(Header.LENGTH);
+            return new Name(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("question name was validated by parse", e);
+        }
+    }
+
+    /**
+     * End of the possibly compressed name at {@code p}, or -1 if it is
+     * invalid or runs past the end.
+     */
+    private int skipName(int p) {
+        while (p < length) {
+            int len = wire[p] & 0xFF;
+            if (len == 0)
+                return p + 1;
+            if ((len & 0xC0) == 0xC0)
+                return p + 2 <= length ? p + 2 : -1;
+            if (len > 63)
+                return -1;
+            p += len + 1;
+        }
+        return -1;
+    }
+
+    private int u16(int p) {
+        return ((wire[p] & 0xFF) << 8) | (wire[p + 1] & 0xFF);
+    }
+}
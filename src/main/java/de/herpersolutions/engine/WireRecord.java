@@ -0,0 +1,66 @@
+package de.herpersolutions.engine;
+
+import java.util.List;
+
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.MXRecord;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.PTRRecord;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+
+/**
+ * A record encoded once when its zone is compiled: owner and rdata in
+ * uncompressed wire form, plus where the rdata holds names that dnsjava
+ * compresses (NS, CNAME, MX and SOA targets), so {@link ResponseEncoder} can
+ * write it with the same compression without touching the record again.
+ */
+final class WireRecord {
+    private static final int[] NO_NAMES = new int[0];
+
+    final org.xbill.DNS.Record record;
+    final byte[] owner;
+    final int type, dclass;
+    final long ttl;
+    final byte[] rdata;
+    // Offsets of compressible names in rdata, ascending
+    final int[] names;
+
+    private WireRecord(org.xbill.DNS.Record record, byte[] owner, byte[] rdata, int[] names) {
+        this.record = record;
+        this.owner = owner;
+        this.type = record.getType();
+        this.dclass = record.getDClass();
+        this.ttl = record.getTTL();
+        this.rdata = rdata;
+        this.names = names;
+    }
+
+    static WireRecord of(org.xbill.DNS.Record r) {
+        byte[] wire = r.toWire(Section.ANSWER);
+        int ownerLength = r.getName().length();
+        byte[] owner = new byte[ownerLength];
+        System.arraycopy(wire, 0, owner, 0, ownerLength);
+        byte[] rdata = new byte[wire.length - ownerLength - 10];
+        System.arraycopy(wire, ownerLength + 10, rdata, 0, rdata.length);
+        return new WireRecord(r, owner, rdata, compressedNames(r));
+    }
+
+    static WireRecord[] of(List<? extends org.xbill.DNS.Record> records) {
+        WireRecord[] out = new WireRecord[records.size()];
+        for (int i = 0; i < out.length; i++)
+            out[i] = of(records.get(i));
+        return out;
+    }
+
+    /** Mirrors which names dnsjava's rrToWire passes a compression table for. */
+    private static int[] compressedNames(org.xbill.DNS.Record r) {
+        if (r instanceof NSRecord || r instanceof CNAMERecord || r instanceof PTRRecord)
+            return new int[] { 0 };
+        if (r instanceof MXRecord)
+            return new int[] { 2 };
+        if (r instanceof SOARecord)
+            return new int[] { 0, ((SOARecord) r).getHost().length() };
+        return NO_NAMES;
+    }
+}
@@ -0,0 +1,317 @@
+package de.herpersolutions.engine;
+
+import java.util.Arrays;
+
+import org.xbill.DNS.Header;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Type;
+
+import de.herpersolutions.monitoring.QueryLog;
+
+/**
+ * Writes responses for the off-heap record store straight into a per-thread
+ * buffer: the question is copied from the query, records are copied from the
+ * arena with their owner written as a pointer to a name already in the
+ * message, and no dnsjava objects are created. Answers follow the same rules
+ * as the heap path: wildcards, empty non-terminals, CNAME chains through
+ * local zones, NS authority and A/AAAA glue for NS, MX and CNAME targets.
+ * Like {@link ResponseEncoder}, the buffer starts small and grows to the
+ * largest response the thread has written.
+ */
+final class WireResponder {
+    private static final int MAX_RESPONSE = 65535;
+    private static final int INITIAL_LENGTH = 4096;
+    private static final int MAX_TARGETS = 64;
+    private static final ThreadLocal<WireResponder> LOCAL = ThreadLocal.withInitial(WireResponder::new);
+
+    private byte[] out = new byte[INITIAL_LENGTH];
+    private int pos, answers, authority, additional;
+    // Positions of NS, MX and CNAME target names in the response, for glue
+    private final int[] targets = new int[MAX_TARGETS];
+    private int targetCount;
+    private boolean collectTargets;
+    // Position of the rdata of the first record the last writeSet call wrote
+    private int firstRdata;
+    // Positions of the names a CNAME chain went through, for loop detection
+    private final int[] chain = new int[ZoneSnapshot.MAX_CNAME_CHAIN + 1];
+    // Zone the last response came from, null if none
+    private OffHeapZone zone;
+
+    static WireResponder get() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Answers a query from the snapshot. The response stays in
+     * {@link #buffer()} until the thread's next call.
+     *
+     * @param query      raw query; its question name must not be compressed
+     * @param optFlags   EDNS flags to echo (the DO bit), or -1 if the query had no OPT record
+     * @param udpPayload our UDP buffer size, advertised in the OPT record
+     * @return the {@link QueryLog} outcome, or -1 if the question cannot be read from {@code query}
+     */
+    int respond(OffHeapSnapshot snap, byte[] query, int qtype, int optFlags, int udpPayload) {
+        int qnameLength = nameLength(query, Header.LENGTH);
+        if (qnameLength < 0 || Header.LENGTH + qnameLength + 4 > query.length)
+            return -1;
+        pos = Header.LENGTH + qnameLength + 4;
+        System.arraycopy(query, Header.LENGTH, out, Header.LENGTH, pos - Header.LENGTH);
+        answers = authority = additional = 0;
+        targetCount = 0;
+
+        OffHeapZone zone = snap.findZone(query, Header.LENGTH);
+        if (zone == null)
+            return finish(query, Rcode.NXDOMAIN, optFlags, udpPayload, null, QueryLog.NO_ZONE);
+        long entry = zone.lookup(query, Header.LENGTH);
+        if (entry < 0) {
+            authority += writeSet(zone, zone.soa, originOf(zone, Header.LENGTH, qnameLength));
+            return finish(query, Rcode.NXDOMAIN, optFlags, udpPayload, zone, QueryLog.NO_NAME);
+        }
+
+        int namePos = Header.LENGTH;
+        int nameLength = qnameLength;
+        OffHeapZone authZone = zone;
+        collectTargets = true;
+        if (qtype == Type.ANY) {
+            if (zone.setCount(entry) == 0)
+                return noData(query, zone, zone, namePos, nameLength, optFlags, udpPayload);
+            long s = zone.firstSet(entry);
+            for (int i = zone.setCount(entry); i > 0; i--, s = zone.nextSet(s))
+                answers += writeSet(zone, s, namePos);
+        } else {
+            long set = zone.set(entry, qtype);
+            if (set < 0)
+                set = zone.set(entry, Type.CNAME);
+            if (set < 0)
+                return noData(query, zone, zone, namePos, nameLength, optFlags, udpPayload);
+            answers += writeSet(zone, set, namePos);
+
+            if (zone.setType(set) == Type.CNAME && qtype != Type.CNAME) {
+                // Follow the chain through our own data so the resolver needs no second query
+                collectTargets = false;
+                int seen = 0;
+                chain[seen++] = Header.LENGTH;
+                int cur = firstRdata;
+                for (int length = 1; length < ZoneSnapshot.MAX_CNAME_CHAIN && !seenBefore(cur, seen); length++) {
+                    chain[seen++] = cur;
+                    int curLength = nameLength(out, cur);
+                    OffHeapZone z = curLength < 0 ? null : snap.findZone(out, cur);
+                    if (z == null)
+                        break;
+                    long e = z.lookup(out, cur);
+                    long cname = e < 0 ? -1 : z.set(e, Type.CNAME);
+                    if (cname >= 0) {
+                        answers += writeSet(z, cname, cur);
+                        cur = firstRdata;
+                        continue;
+                    }
+                    long last = e < 0 ? -1 : z.set(e, qtype);
+                    if (e < 0) {
+                        // The final name does not exist (RFC 6604)
+                        authority += writeSet(z, z.soa, originOf(z, cur, curLength));
+                        return finish(query, Rcode.NXDOMAIN, optFlags, udpPayload, zone, QueryLog.NO_NAME);
+                    }
+                    if (last < 0)
+                        return noData(query, zone, z, cur, curLength, optFlags, udpPayload);
+                    targetCount = 0;
+                    collectTargets = true;
+                    answers += writeSet(z, last, cur);
+                    namePos = cur;
+                    nameLength = curLength;
+                    authZone = z;
+                    break;
+                }
+            }
+        }
+
+        // Authority: NS of the zone holding the final answer; their targets get glue too
+        collectTargets = true;
+        authority += writeSet(authZone, authZone.ns, originOf(authZone, namePos, nameLength));
+        collectTargets = false;
+        writeGlue(snap);
+        return finish(query, Rcode.NOERROR, optFlags, udpPayload, zone, QueryLog.SUCCESS);
+    }
+
+    private byte noData(byte[] query, OffHeapZone zone, OffHeapZone soaZone, int namePos, int nameLength,
+            int optFlags, int udpPayload) {
+        authority += writeSet(soaZone, soaZone.soa, originOf(soaZone, namePos, nameLength));
+        return finish(query, Rcode.NOERROR, optFlags, udpPayload, zone, QueryLog.NO_DATA);
+    }
+
+    /**
+     * A and AAAA records for each distinct target name collected while writing,
+     * from whichever served zone holds them.
+     */
+    private void writeGlue(OffHeapSnapshot snap) {
+        for (int i = 0; i < targetCount; i++) {
+            int t = targets[i];
+            boolean duplicate = false;
+            for (int j = 0; j < i && !duplicate; j++)
+                duplicate = namesEqual(out, targets[j], t);
+            int length = nameLength(out, t);
+            if (duplicate || length < 0)
+                continue;
+            OffHeapZone z = snap.findZone(out, t);
+            if (z == null)
+                continue;
+            long e = z.find(out, t, length);
+            if (e < 0)
+                continue;
+            long a = z.set(e, Type.A);
+            if (a >= 0)
+                additional += writeSet(z, a, t);
+            long aaaa = z.set(e, Type.AAAA);
+            if (aaaa >= 0)
+                additional += writeSet(z, aaaa, t);
+        }
+    }
+
+    /**
+     * Copies every record of a set, each owned by the name at {@code owner}
+     * in the response.
+     *
+     * @return the number of records written
+     */
+    private int writeSet(OffHeapZone z, long set, int owner) {
+        RecordArena arena = z.arena;
+        int count = z.recordCount(set);
+        long r = z.records(set);
+        for (int i = 0; i < count; i++) {
+            int length = 10 + arena.getShort(r + 8);
+            writeNameRef(owner);
+            ensure(length);
+            arena.get(r, out, pos, length);
+            if (i == 0)
+                firstRdata = pos + 10;
+            if (collectTargets && targetCount < MAX_TARGETS) {
+                int type = arena.getShort(r);
+                if (type == Type.NS || type == Type.CNAME)
+                    targets[targetCount++] = pos + 10;
+                else if (type == Type.MX)
+                    targets[targetCount++] = pos + 12; // after the preference
+            }
+            pos += length;
+            r += length;
+        }
+        return count;
+    }
+
+    /**
+     * Writes a compression pointer to the uncompressed name at {@code at}, or
+     * the name itself if it lies beyond what a pointer can reach.
+     */
+    private void writeNameRef(int at) {
+        if (at < 0x4000) {
+            ensure(2);
+            out[pos++] = (byte) (0xC0 | (at >>> 8));
+            out[pos++] = (byte) at;
+            return;
+        }
+        int length = nameLength(out, at);
+        ensure(length);
+        System.arraycopy(out, at, out, pos, length);
+        pos += length;
+    }
+
+    private byte finish(byte[] query, int rcode, int optFlags, int udpPayload, OffHeapZone zone, byte outcome) {
+        if (optFlags >= 0) {
+            ensure(11);
+            out[pos++] = 0; // root
+            putShort(pos, Type.OPT);
+            putShort(pos + 2, udpPayload);
+            out[pos + 4] = 0; // extended RCODE
+            out[pos + 5] = 0; // version
+            putShort(pos + 6, optFlags);
+            putShort(pos + 8, 0);
+            pos += 10;
+            additional++;
+        }
+        out[0] = query[0];
+        out[1] = query[1];
+        out[2] = (byte) 0x84; // QR, AA
+        out[3] = (byte) rcode;
+        putShort(4, 1);
+        putShort(6, answers);
+        putShort(8, authority);
+        putShort(10, additional);
+        this.zone = zone;
+        return outcome;
+    }
+
+    /** The buffer holding the last response. */
+    byte[] buffer() {
+        return out;
+    }
+
+    /** Length of the last response. */
+    int length() {
+        return pos;
+    }
+
+    /** Zone the last response came from, or null if none. */
+    OffHeapZone zone() {
+        return zone;
+    }
+
+    private boolean seenBefore(int name, int seen) {
+        for (int i = 0; i < seen; i++)
+            if (namesEqual(out, chain[i], name))
+                return true;
+        return false;
+    }
+
+    private void ensure(int n) {
+        if (pos + n <= out.length)
+            return;
+        if (pos + n > MAX_RESPONSE)
+            throw new IllegalStateException("response exceeds " + MAX_RESPONSE + " bytes");
+        out = Arrays.copyOf(out, Math.min(MAX_RESPONSE, Math.max(out.length * 2, pos + n)));
+    }
+
+    private void putShort(int at, int v) {
+        out[at] = (byte) (v >>> 8);
+        out[at + 1] = (byte) v;
+    }
+
+    /** Where the zone's origin starts within the name at {@code name}. */
+    private static int originOf(OffHeapZone z, int name, int nameLength) {
+        return name + nameLength - z.originLength;
+    }
+
+    /**
+     * Length of the uncompressed wire-format name at {@code off}, root label
+     * included, or -1 if it is compressed, too long or runs past the buffer.
+     */
+    static int nameLength(byte[] wire, int off) {
+        int p = off;
+        while (p < wire.length) {
+            int len = wire[p] & 0xFF;
+            if (len == 0)
+                return p + 1 - off <= 255 ? p + 1 - off : -1;
+            if ((len & 0xC0) != 0)
+                return -1;
+            p += len + 1;
+        }
+        return -1;
+    }
+
+    /** ASCII letters folded to lower case, as DNS compares names. */
+    static int lower(int b) {
+        return b >= 'A' && b <= 'Z' ? b + 32 : b;
+    }
+
+    private static boolean namesEqual(byte[] b, int p1, int p2) {
+        while (true) {
+            int l1 = b[p1] & 0xFF;
+            if (l1 != (b[p2] & 0xFF))
+                return false;
+            if (l1 == 0)
+                return true;
+            for (int i = 1; i <= l1; i++)
+                if (lower(b[p1 + i] & 0xFF) != lower(b[p2 + i] & 0xFF))
+                    return false;
+            p1 += l1 + 1;
+            p2 += l1 + 1;
+        }
+    }
+}
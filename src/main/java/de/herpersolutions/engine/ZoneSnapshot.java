@@ -0,0 +1,319 @@
+package de.herpersolutions.engine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.Name;
+
+import de.herpersolutions.Zones.JsonZone;
+import de.herpersolutions.Zones.ZoneTree;
+import de.herpersolutions.engine.CompiledZone.Owner;
+import de.herpersolutions.engine.CompiledZone.RRSet;
+
+/**
+ * Immutable view of all served zones. The engine publishes a new snapshot with a
+ * single reference swap, so queries never observe a half-built index.
+ */
+final class ZoneSnapshot {
+    static final ZoneSnapshot EMPTY = new ZoneSnapshot(ZoneTree.build(Map.of()), ZoneTree.build(Map.of()), Set.of());
+    /** Longest CNAME chain followed through local data, counting the queried CNAME. */
+    static final int MAX_CNAME_CHAIN = 8;
+
+    // origin -> compiled zone and where its CNAMEs lead; chains may cross zones, so they live here
+    private final ZoneTree<Served> tree;
+    // name a CNAME chain looked up -> origins of the zones those chains start in
+    private final ZoneTree<Set<Name>> lookups;
+    // Zones whose chains resolve differently than in the snapshot this one was made from
+    private final Set<Name> chainsChanged;
+
+    private ZoneSnapshot(ZoneTree<Served> tree, ZoneTree<Set<Name>> lookups, Set<Name> chainsChanged) {
+        this.tree = tree;
+        this.lookups = lookups;
+        this.chainsChanged = chainsChanged;
+    }
+
+    /**
+     * A zone as served by one snapshot: its CNAME RRsets mapped to where they
+     * lead, and every name they looked up on the way.
+     */
+    private record Served(CompiledZone zone, Map<RRSet, CnameChain> chains, Set<Name> lookups) {
+    }
+
+    /**
+     * The rest of a CNAME chain after its first record, followed through the
+     * zones of this snapshot.
+     */
+    static final class CnameChain {
+        // Further CNAME records, in order
+        final List<org.xbill.DNS.Record> records;
+        final WireRecord[] wire;
+        // Zone authoritative for the final name, or null if the chain leaves our data, loops or is too long
+        final CompiledZone zone;
+        // Owner of the final name; null if it does not exist in that zone (NXDOMAIN)
+        final Owner target;
+        final Name name;
+        // The final name in wire format, the owner of wildcard answers
+        final byte[] nameWire;
+
+        CnameChain(List<org.xbill.DNS.Record> records, WireRecord[] wire, CompiledZone zone, Owner target, Name name) {
+            this.records = records;
+            this.wire = wire;
+            this.zone = zone;
+            this.target = target;
+            this.name = name;
+            this.nameWire = name.toWire();
+        }
+
+        /**
+         * True if both chains answer the same: dnsjava's record equality
+         * ignores TTLs, so the records are compared as they are sent.
+         */
+        static boolean same(CnameChain a, CnameChain b) {
+            if (a == null || b == null)
+                return a == b;
+            if (a.zone != b.zone || a.target != b.target || a.wire.length != b.wire.length)
+                return false;
+            for (int i = 0; i < a.wire.length; i++) {
+                WireRecord x = a.wire[i], y = b.wire[i];
+                if (x.type != y.type || x.dclass != y.dclass || x.ttl != y.ttl || !Arrays.equals(x.owner, y.owner)
+                        || !Arrays.equals(x.rdata, y.rdata))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Compiles all zones in parallel on the common fork-join pool.
+     */
+    static ZoneSnapshot compile(Collection<JsonZone> zones) throws IOException {
+        Map<Name, CompiledZone> byOrigin = new HashMap<>();
+        for (CompiledZone cz : compileAll(zones))
+            byOrigin.put(cz.origin, cz);
+        return EMPTY.with(byOrigin);
+    }
+
+    static List<CompiledZone> compileAll(Collection<JsonZone> zones) throws IOException {
+        return compileAll(zones, CompiledZone::compile);
+    }
+
+    /**
+     * Converts zones in parallel on the common fork-join pool.
+     */
+    static <T> List<T> compileAll(Collection<JsonZone> zones, ZoneCompiler<T> compiler) throws IOException {
+        JsonZone[] all = zones.toArray(new JsonZone[0]);
+        try {
+            return ForkJoinPool.commonPool().invoke(new CompileTask<>(all, 0, all.length, compiler));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /** One way of turning a zone into its query-ready form. */
+    interface ZoneCompiler<T> {
+        T compile(JsonZone z) throws IOException;
+    }
+
+    /**
+     * A snapshot with the given zones replaced or added, or removed where the
+     * value is null. Unchanged zones, their chains and most of the lookup tree
+     * are shared; only chains that start in a changed zone, or looked up a
+     * name that a changed zone may now answer differently, are followed again.
+     */
+    ZoneSnapshot with(Map<Name, CompiledZone> changes) {
+        if (changes.isEmpty())
+            return this;
+        // A zone only answers for names at or below its origin
+        Set<Name> touched = new HashSet<>(changes.keySet());
+        for (Name origin : changes.keySet())
+            lookups.forEachBelow(origin, touched::addAll);
+
+        Map<Name, Served> placed = new HashMap<>();
+        for (Map.Entry<Name, CompiledZone> e : changes.entrySet())
+            placed.put(e.getKey(), e.getValue() == null ? null : new Served(e.getValue(), Map.of(), Set.of()));
+        ZoneTree<Served> next = tree.with(placed);
+
+        Map<Name, Served> chased = new HashMap<>();
+        Set<Name> changed = new HashSet<>();
+        Map<Name, Set<Name>> edits = new HashMap<>();
+        for (Name origin : touched) {
+            Served old = tree.get(origin);
+            Served current = next.get(origin);
+            Served s = current == null ? null : chaseAll(current.zone, next);
+            if (s != null) {
+                chased.put(origin, s);
+                if (!sameChains(old, s))
+                    changed.add(origin);
+            }
+            if (old != null)
+                for (Name n : old.lookups)
+                    originsLookingUp(n, edits).remove(origin);
+            if (s != null)
+                for (Name n : s.lookups)
+                    originsLookingUp(n, edits).add(origin);
+        }
+        Map<Name, Set<Name>> index = new HashMap<>();
+        for (Map.Entry<Name, Set<Name>> e : edits.entrySet())
+            index.put(e.getKey(), e.getValue().isEmpty() ? null : Set.copyOf(e.getValue()));
+        return new ZoneSnapshot(next.with(chased), lookups.with(index), Set.copyOf(changed));
+    }
+
+    private Set<Name> originsLookingUp(Name name, Map<Name, Set<Name>> edits) {
+        return edits.computeIfAbsent(name, n -> {
+            Set<Name> origins = lookups.get(n);
+            return origins == null ? new HashSet<>() : new HashSet<>(origins);
+        });
+    }
+
+    private static boolean sameChains(Served a, Served b) {
+        if (a == null || a.zone != b.zone)
+            return false;
+        for (RRSet cname : b.zone.cnames)
+            if (!CnameChain.same(a.chains.get(cname), b.chains.get(cname)))
+                return false;
+        return true;
+    }
+
+    /**
+     * Origins of zones whose CNAME chains resolve differently than in the
+     * snapshot this one was made from, e.g. because a zone they lead into
+     * changed. Zones that were themselves replaced count as changed.
+     */
+    Set<Name> chainsChanged() {
+        return chainsChanged;
+    }
+
+    /**
+     * The zone with exactly this origin, or null if it is not served.
+     */
+    CompiledZone zone(Name origin) {
+        Served s = tree.get(origin);
+        return s == null ? null : s.zone;
+    }
+
+    /**
+     * Closest enclosing zone for a name, or null if none is served.
+     */
+    CompiledZone findZone(Name name) {
+        Served s = tree.find(name);
+        return s == null ? null : s.zone;
+    }
+
+    /**
+     * Same as {@link #findZone(Name)} for a wire-format name; does not allocate.
+     */
+    CompiledZone findZone(byte[] wire, int off) {
+        Served s = tree.find(wire, off);
+        return s == null ? null : s.zone;
+    }
+
+    /**
+     * RRsets owned by a name, looked up in the zone that is authoritative for it.
+     */
+    Owner owner(Name name) {
+        CompiledZone z = findZone(name);
+        return z == null ? null : z.owners.get(name);
+    }
+
+    /**
+     * Where a CNAME RRset leads in local data, or null if its target is not
+     * ours. {@code wire} at {@code off} is the name it was found for, which
+     * also finds the zone that holds it; does not allocate.
+     */
+    CnameChain chain(byte[] wire, int off, RRSet cname) {
+        Served s = tree.find(wire, off);
+        return s == null ? null : s.chains.get(cname);
+    }
+
+    private static Served chaseAll(CompiledZone z, ZoneTree<Served> tree) {
+        Map<RRSet, CnameChain> chains = new IdentityHashMap<>();
+        Set<Name> lookedUp = new HashSet<>();
+        for (RRSet cname : z.cnames) {
+            CnameChain chain = chase((CNAMERecord) cname.records.get(0), tree, lookedUp);
+            if (chain != null)
+                chains.put(cname, chain);
+        }
+        return new Served(z, Collections.unmodifiableMap(chains), Set.copyOf(lookedUp));
+    }
+
+    private static CnameChain chase(CNAMERecord first, ZoneTree<Served> tree, Set<Name> lookedUp) {
+        List<org.xbill.DNS.Record> records = new ArrayList<>();
+        List<WireRecord> wire = new ArrayList<>();
+        Set<Name> seen = new HashSet<>();
+        seen.add(first.getName());
+        Name name = first.getTarget();
+        for (int length = 1; length < MAX_CNAME_CHAIN && seen.add(name); length++) {
+            lookedUp.add(name);
+            Served s = tree.find(name);
+            if (s == null)
+                break;
+            CompiledZone z = s.zone;
+            Owner owner = z.lookup(name.toWire(), 0);
+            if (owner == null || owner.cname == null)
+                return new CnameChain(List.copyOf(records), wire.toArray(new WireRecord[0]), z, owner, name);
+            CNAMERecord next = (CNAMERecord) owner.cname.records.get(0);
+            if (owner.wildcard) {
+                next = (CNAMERecord) next.withName(name);
+                wire.add(WireRecord.of(next));
+            } else {
+                wire.add(owner.cname.wire[0]);
+            }
+            records.add(next);
+            name = next.getTarget();
+        }
+        // Left our data, looped or too long: answer with the CNAMEs we have
+        return records.isEmpty() ? null
+                : new CnameChain(List.copyOf(records), wire.toArray(new WireRecord[0]), null, null, name);
+    }
+
+    private static final class CompileTask<T> extends RecursiveTask<List<T>> {
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD = 16;
+        // Fork-join tasks are never serialized
+        private final transient JsonZone[] zones;
+        private final int from, to;
+        private final transient ZoneCompiler<T> compiler;
+
+        CompileTask(JsonZone[] zones, int from, int to, ZoneCompiler<T> compiler) {
+            this.zones = zones;
+            this.from = from;
+            this.to = to;
+            this.compiler = compiler;
+        }
+
+        @Override
+        protected List<T> compute() {
+            if (to - from <= THRESHOLD) {
+                List<T> out = new ArrayList<>(to - from);
+                for (int i = from; i < to; i++) {
+                    try {
+                        out.add(compiler.compile(zones[i]));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return out;
+            }
+            int mid = (from + to) >>> 1;
+            CompileTask<T> left = new CompileTask<>(zones, from, mid, compiler);
+            left.fork();
+            List<T> right = new CompileTask<>(zones, mid, to, compiler).compute();
+            List<T> out = new ArrayList<>(left.join());
+            out.addAll(right);
+            return out;
+        }
+    }
+}
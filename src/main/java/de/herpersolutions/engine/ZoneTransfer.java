@@ -0,0 +1,65 @@
+package de.herpersolutions.engine;
+
+import java.io.IOException;
+
+import org.xbill.DNS.Section;
+
+import de.herpersolutions.engine.AuthoritativeEngine.MessageSink;
+
+/**
+ * Writes the records of an AXFR or IXFR response as a series of messages of
+ * at most 64 KB (RFC 5936 2.2). Each message is encoded in the thread's
+ * {@link ResponseEncoder} and handed to the sink as soon as the next record
+ * would not fit, so a transfer never holds more than one message.
+ */
+final class ZoneTransfer {
+    private final WireQuery query;
+    private final MessageSink sink;
+    private final ResponseEncoder encoder = ResponseEncoder.get();
+    // Our UDP payload size for the OPT record of each message, or -1 if the query had no EDNS
+    private final int optPayload, optFlags;
+    private int messages, records;
+
+    ZoneTransfer(WireQuery query, MessageSink sink, int optPayload, int optFlags) {
+        this.query = query;
+        this.sink = sink;
+        this.optPayload = optPayload;
+        this.optFlags = optFlags;
+        encoder.begin(query, false);
+        opt();
+    }
+
+    void add(WireRecord r) throws IOException {
+        if (!encoder.fits(r) && encoder.recordCount() > 0) {
+            send();
+            encoder.beginContinuation(query);
+            opt();
+        }
+        encoder.add(r, Section.ANSWER);
+        records++;
+    }
+
+    /** Sends the last message. */
+    void finish() throws IOException {
+        send();
+    }
+
+    int messages() {
+        return messages;
+    }
+
+    int records() {
+        return records;
+    }
+
+    private void opt() {
+        if (optPayload >= 0)
+            encoder.opt(optPayload, 0, optFlags);
+    }
+
+    private void send() throws IOException {
+        int length = encoder.complete();
+        sink.send(encoder.buffer(), length);
+        messages++;
+    }
+}
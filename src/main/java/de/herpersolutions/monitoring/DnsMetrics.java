@@ -1,86 +1,448 @@
 package de.herpersolutions.monitoring;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Type;
 
 /**
- * DNS query metrics and statistics
+ * DNS query metrics and statistics. Counters are {@link LongAdder}s and
+ * latencies go into striped histograms, so many worker threads can record
+ * without contending on a shared counter.
+ * <p>
+ * Counters only ever grow, as Prometheus expects; {@link #reset()} just moves
+ * the baseline that the JSON statistics are reported from.
  */
 public class DnsMetrics {
-    private final AtomicLong totalQueries = new AtomicLong(0);
-    private final AtomicLong successfulQueries = new AtomicLong(0);
-    private final AtomicLong failedQueries = new AtomicLong(0);
-    private final AtomicLong nxdomainQueries = new AtomicLong(0);
-    private final AtomicLong noDataQueries = new AtomicLong(0);
-    private final AtomicLong rateLimitedQueries = new AtomicLong(0);
-    private final AtomicLong udpQueries = new AtomicLong(0);
-    private final AtomicLong tcpQueries = new AtomicLong(0);
-    
-    private volatile long startTime = System.currentTimeMillis();
-    
-    public void recordQuery() {
-        totalQueries.incrementAndGet();
-    }
-    
+    private static final MetricFamily QUERIES = new MetricFamily("jdns_queries", MetricFamily.COUNTER,
+            "DNS queries received");
+    private static final MetricFamily RESULTS = new MetricFamily("jdns_query_results", MetricFamily.COUNTER,
+            "Answered queries by result");
+    private static final MetricFamily TRANSPORT = new MetricFamily("jdns_transport_queries", MetricFamily.COUNTER,
+            "Queries by transport");
+    private static final MetricFamily RATE_LIMITED = new MetricFamily("jdns_rate_limited_queries",
+            MetricFamily.COUNTER, "Queries refused by the per-client rate limiter");
+    private static final MetricFamily RRL = new MetricFamily("jdns_rrl_responses", MetricFamily.COUNTER,
+            "Responses held back by response rate limiting");
+    private static final MetricFamily TRUNCATED = new MetricFamily("jdns_truncated_responses",
+            MetricFamily.COUNTER, "UDP responses sent truncated (TC=1)");
+    private static final MetricFamily MALFORMED = new MetricFamily("jdns_malformed_queries", MetricFamily.COUNTER,
+            "Packets dropped because they were not a valid query");
+    private static final MetricFamily TCP_REFUSED = new MetricFamily("jdns_tcp_refused_connections",
+            MetricFamily.COUNTER, "TCP connections closed on accept because the limit was reached");
+    private static final MetricFamily CACHE_HITS = new MetricFamily("jdns_cache_hits", MetricFamily.COUNTER,
+            "Queries answered from the response cache");
+    private static final MetricFamily CACHE_MISSES = new MetricFamily("jdns_cache_misses", MetricFamily.COUNTER,
+            "Queries not found in the response cache");
+    private static final MetricFamily CACHE_EVICTIONS = new MetricFamily("jdns_cache_evictions",
+            MetricFamily.COUNTER, "Responses evicted from the cache to make room");
+    private static final MetricFamily QUERY_LOG_DROPPED = new MetricFamily("jdns_query_log_dropped",
+            MetricFamily.COUNTER, "Query log events dropped because the buffer was full");
+    private static final MetricFamily TRANSFERS = new MetricFamily("jdns_zone_transfers", MetricFamily.COUNTER,
+            "Zone transfers served, by type");
+    private static final MetricFamily TRANSFERS_REFUSED = new MetricFamily("jdns_refused_transfers",
+            MetricFamily.COUNTER, "Zone transfer requests from clients not allowed to transfer");
+    private static final MetricFamily NOTIFIES = new MetricFamily("jdns_notifies", MetricFamily.COUNTER,
+            "NOTIFY messages received, by whether they were accepted");
+    private static final MetricFamily UPDATES = new MetricFamily("jdns_updates", MetricFamily.COUNTER,
+            "Dynamic UPDATE messages, by whether they were applied, rejected or refused");
+    private static final MetricFamily SECONDARY_REFRESHES = new MetricFamily("jdns_secondary_refreshes",
+            MetricFamily.COUNTER, "Refreshes of secondary zones from their primary, by outcome");
+    static final MetricFamily QTYPE = new MetricFamily("jdns_qtype_queries", MetricFamily.COUNTER,
+            "Queries by query type");
+    static final MetricFamily ZONE = new MetricFamily("jdns_zone_queries", MetricFamily.COUNTER,
+            "Queries answered from each zone");
+
+    private final Counter totalQueries = new Counter(QUERIES, null);
+    private final Counter successfulQueries = new Counter(RESULTS, "result=\"success\"");
+    private final Counter failedQueries = new Counter(RESULTS, "result=\"failure\"");
+    private final Counter nxdomainQueries = new Counter(RESULTS, "result=\"nxdomain\"");
+    private final Counter noDataQueries = new Counter(RESULTS, "result=\"nodata\"");
+    private final Counter udpQueries = new Counter(TRANSPORT, "transport=\"udp\"");
+    private final Counter tcpQueries = new Counter(TRANSPORT, "transport=\"tcp\"");
+    private final Counter rateLimitedQueries = new Counter(RATE_LIMITED, null);
+    private final Counter rrlDropped = new Counter(RRL, "action=\"dropped\"");
+    private final Counter rrlSlipped = new Counter(RRL, "action=\"slipped\"");
+    private final Counter truncatedResponses = new Counter(TRUNCATED, null);
+    private final Counter malformedQueries = new Counter(MALFORMED, null);
+    private final Counter refusedTcpConnections = new Counter(TCP_REFUSED, null);
+    private final Counter cacheHits = new Counter(CACHE_HITS, null);
+    private final Counter cacheMisses = new Counter(CACHE_MISSES, null);
+    private final Counter cacheEvictions = new Counter(CACHE_EVICTIONS, null);
+    private final Counter queryLogDropped = new Counter(QUERY_LOG_DROPPED, null);
+    private final Counter axfrTransfers = new Counter(TRANSFERS, "type=\"axfr\"");
+    private final Counter ixfrTransfers = new Counter(TRANSFERS, "type=\"ixfr\"");
+    private final Counter refusedTransfers = new Counter(TRANSFERS_REFUSED, null);
+    private final Counter notifiesAccepted = new Counter(NOTIFIES, "result=\"accepted\"");
+    private final Counter notifiesRefused = new Counter(NOTIFIES, "result=\"refused\"");
+    private final Counter updatesApplied = new Counter(UPDATES, "result=\"applied\"");
+    private final Counter updatesRejected = new Counter(UPDATES, "result=\"rejected\"");
+    private final Counter updatesRefused = new Counter(UPDATES, "result=\"refused\"");
+    private final Counter secondaryCurrent = new Counter(SECONDARY_REFRESHES, "result=\"current\"");
+    private final Counter secondaryAxfr = new Counter(SECONDARY_REFRESHES, "result=\"axfr\"");
+    private final Counter secondaryIxfr = new Counter(SECONDARY_REFRESHES, "result=\"ixfr\"");
+    private final Counter secondaryFailed = new Counter(SECONDARY_REFRESHES, "result=\"failed\"");
+    private final AtomicInteger activeTcpConnections = new AtomicInteger(0);
+
+    // The fixed counters above, families kept together, in exposition order
+    final List<Counter> counters = List.of(totalQueries,
+            successfulQueries, failedQueries, nxdomainQueries, noDataQueries,
+            udpQueries, tcpQueries, rateLimitedQueries, rrlDropped, rrlSlipped,
+            truncatedResponses, malformedQueries, refusedTcpConnections,
+            cacheHits, cacheMisses, cacheEvictions, queryLogDropped,
+            axfrTransfers, ixfrTransfers, refusedTransfers, notifiesAccepted, notifiesRefused,
+            updatesApplied, updatesRejected, updatesRefused,
+            secondaryCurrent, secondaryAxfr, secondaryIxfr, secondaryFailed);
+
+    // Receive-to-send latency per transport
+    final LatencyHistogram udpLatency = new LatencyHistogram();
+    final LatencyHistogram tcpLatency = new LatencyHistogram();
+    private volatile LatencyBaseline udpBaseline = LatencyBaseline.EMPTY;
+    private volatile LatencyBaseline tcpBaseline = LatencyBaseline.EMPTY;
+    private final QpsWindow qps = new QpsWindow();
+    // Query types below 256 by index; the rest (CAA, URI, ...) in a map
+    final Counter[] byQtype = new Counter[256];
+    final ConcurrentMap<Integer, Counter> byRareQtype = new ConcurrentHashMap<>();
+    // Queries answered from each zone, cache hits included
+    final ConcurrentMap<Name, Counter> byZone = new ConcurrentHashMap<>();
+
+    final long createdMillis = System.currentTimeMillis();
+    private volatile long startTime = createdMillis;
+
+    public DnsMetrics() {
+        for (int i = 0; i < byQtype.length; i++)
+            byQtype[i] = qtypeCounter(i);
+    }
+
+    public void recordQuery(int qtype) {
+        totalQueries.increment();
+        qps.record();
+        if (qtype >= 0 && qtype < byQtype.length)
+            byQtype[qtype].increment();
+        else
+            byRareQtype.computeIfAbsent(qtype, DnsMetrics::qtypeCounter).increment();
+    }
+
+    /**
+     * Counts a query answered from the zone with this origin.
+     */
+    public void recordZoneQuery(Name zone) {
+        Counter count = byZone.get(zone);
+        if (count == null)
+            count = byZone.computeIfAbsent(zone,
+                    k -> new Counter(ZONE, "zone=\"" + MetricFamily.escape(k.toString()) + "\""));
+        count.increment();
+    }
+
+    /**
+     * Records the time from receiving a query to sending its response.
+     */
+    public void recordLatency(boolean udp, long nanos) {
+        (udp ? udpLatency : tcpLatency).record(nanos);
+    }
+
     public void recordSuccess() {
-        successfulQueries.incrementAndGet();
+        successfulQueries.increment();
     }
-    
+
     public void recordFailure() {
-        failedQueries.incrementAndGet();
+        failedQueries.increment();
     }
-    
+
     public void recordNxdomain() {
-        nxdomainQueries.incrementAndGet();
+        nxdomainQueries.increment();
     }
-    
+
     public void recordNoData() {
-        noDataQueries.incrementAndGet();
+        noDataQueries.increment();
     }
-    
+
     public void recordRateLimited() {
-        rateLimitedQueries.incrementAndGet();
+        rateLimitedQueries.increment();
     }
-    
+
     public void recordUdp() {
-        udpQueries.incrementAndGet();
+        udpQueries.increment();
     }
-    
+
     public void recordTcp() {
-        tcpQueries.incrementAndGet();
+        tcpQueries.increment();
+    }
+
+    public void recordTruncated() {
+        truncatedResponses.increment();
+    }
+
+    public void recordCacheHit() {
+        cacheHits.increment();
+    }
+
+    public void recordCacheMiss() {
+        cacheMisses.increment();
+    }
+
+    public void recordCacheEviction() {
+        cacheEvictions.increment();
+    }
+
+    public void recordTcpOpened() {
+        activeTcpConnections.incrementAndGet();
+    }
+
+    public void recordTcpClosed() {
+        activeTcpConnections.decrementAndGet();
+    }
+
+    public void recordTcpRefused() {
+        refusedTcpConnections.increment();
+    }
+
+    public void recordQueryLogDropped() {
+        queryLogDropped.increment();
+    }
+
+    public void recordRrlDropped() {
+        rrlDropped.increment();
+    }
+
+    public void recordRrlSlipped() {
+        rrlSlipped.increment();
+    }
+
+    public void recordMalformed() {
+        malformedQueries.increment();
+    }
+
+    /**
+     * Counts a zone transfer served: incremental (IXFR with journaled
+     * changes), or the whole zone.
+     */
+    public void recordTransfer(boolean incremental) {
+        (incremental ? ixfrTransfers : axfrTransfers).increment();
+    }
+
+    public void recordTransferRefused() {
+        refusedTransfers.increment();
+    }
+
+    public void recordNotify(boolean accepted) {
+        (accepted ? notifiesAccepted : notifiesRefused).increment();
+    }
+
+    /**
+     * Counts an UPDATE by its RCODE: applied on NOERROR, refused when the
+     * sender or zone was not allowed to update, rejected otherwise.
+     */
+    public void recordUpdate(int rcode) {
+        switch (rcode) {
+            case Rcode.NOERROR:
+                updatesApplied.increment();
+                break;
+            case Rcode.REFUSED:
+            case Rcode.NOTAUTH:
+                updatesRefused.increment();
+                break;
+            default:
+                updatesRejected.increment();
+        }
+    }
+
+    /** Counts a secondary zone found up to date on its primary. */
+    public void recordSecondaryCurrent() {
+        secondaryCurrent.increment();
     }
-    
+
+    /** Counts a secondary zone updated from its primary, with IXFR changes or a full transfer. */
+    public void recordSecondaryTransfer(boolean incremental) {
+        (incremental ? secondaryIxfr : secondaryAxfr).increment();
+    }
+
+    public void recordSecondaryFailed() {
+        secondaryFailed.increment();
+    }
+
     public String getStatsJson() {
         long uptime = System.currentTimeMillis() - startTime;
-        long total = totalQueries.get();
-        double qps = total > 0 ? (double) total / (uptime / 1000.0) : 0.0;
-        
+        long total = totalQueries.sinceReset();
+        double qpsAverage = total > 0 ? (double) total / (uptime / 1000.0) : 0.0;
+
         return String.format("""
             {
               "uptime_ms": %d,
               "queries_per_second": %.2f,
+              "qps_1s": %.2f,
+              "qps_10s": %.2f,
+              "qps_60s": %.2f,
               "total_queries": %d,
               "successful_queries": %d,
               "failed_queries": %d,
               "nxdomain_queries": %d,
               "nodata_queries": %d,
               "rate_limited_queries": %d,
+              "rrl_dropped_responses": %d,
+              "rrl_slipped_responses": %d,
               "udp_queries": %d,
-              "tcp_queries": %d
+              "tcp_queries": %d,
+              "udp_truncated_responses": %d,
+              "tcp_active_connections": %d,
+              "tcp_refused_connections": %d,
+              "cache_hits": %d,
+              "cache_misses": %d,
+              "cache_evictions": %d,
+              "query_log_dropped": %d,
+              "malformed_queries": %d,
+              "axfr_transfers": %d,
+              "ixfr_transfers": %d,
+              "refused_transfers": %d,
+              "notifies_accepted": %d,
+              "notifies_refused": %d,
+              "updates_applied": %d,
+              "updates_rejected": %d,
+              "updates_refused": %d,
+              "secondary_refreshes_current": %d,
+              "secondary_refreshes_axfr": %d,
+              "secondary_refreshes_ixfr": %d,
+              "secondary_refreshes_failed": %d,
+              "udp_latency_us": %s,
+              "tcp_latency_us": %s,
+              "queries_by_qtype": %s,
+              "queries_by_zone": %s
             }""",
-            uptime, qps, total, successfulQueries.get(), failedQueries.get(),
-            nxdomainQueries.get(), noDataQueries.get(), rateLimitedQueries.get(),
-            udpQueries.get(), tcpQueries.get());
+            uptime, qpsAverage, qps.rate(1), qps.rate(10), qps.rate(60),
+            total, successfulQueries.sinceReset(), failedQueries.sinceReset(),
+            nxdomainQueries.sinceReset(), noDataQueries.sinceReset(), rateLimitedQueries.sinceReset(),
+            rrlDropped.sinceReset(), rrlSlipped.sinceReset(),
+            udpQueries.sinceReset(), tcpQueries.sinceReset(), truncatedResponses.sinceReset(),
+            activeTcpConnections.get(), refusedTcpConnections.sinceReset(),
+            cacheHits.sinceReset(), cacheMisses.sinceReset(), cacheEvictions.sinceReset(),
+            queryLogDropped.sinceReset(), malformedQueries.sinceReset(),
+            axfrTransfers.sinceReset(), ixfrTransfers.sinceReset(), refusedTransfers.sinceReset(),
+            notifiesAccepted.sinceReset(), notifiesRefused.sinceReset(),
+            updatesApplied.sinceReset(), updatesRejected.sinceReset(), updatesRefused.sinceReset(),
+            secondaryCurrent.sinceReset(), secondaryAxfr.sinceReset(), secondaryIxfr.sinceReset(),
+            secondaryFailed.sinceReset(),
+            latencyJson(udpLatency, udpBaseline), latencyJson(tcpLatency, tcpBaseline),
+            countsJson(queriesByQtype()), countsJson(queriesByZone()));
+    }
+
+    /** Queries per type name since the last reset, for types that were asked for. */
+    public Map<String, Long> queriesByQtype() {
+        Map<String, Long> out = new TreeMap<>();
+        for (int i = 0; i < byQtype.length; i++)
+            putIfCounted(out, Type.string(i), byQtype[i]);
+        byRareQtype.forEach((type, n) -> putIfCounted(out, Type.string(type), n));
+        return out;
+    }
+
+    /** Queries per zone origin since the last reset. */
+    public Map<String, Long> queriesByZone() {
+        Map<String, Long> out = new TreeMap<>();
+        byZone.forEach((zone, n) -> putIfCounted(out, zone.toString(), n));
+        return out;
     }
-    
+
+    int activeTcpConnections() {
+        return activeTcpConnections.get();
+    }
+
+    /**
+     * Starts the JSON statistics over. The underlying counters and histograms
+     * keep counting, so scrapers see no reset.
+     */
     public void reset() {
-        totalQueries.set(0);
-        successfulQueries.set(0);
-        failedQueries.set(0);
-        nxdomainQueries.set(0);
-        noDataQueries.set(0);
-        rateLimitedQueries.set(0);
-        udpQueries.set(0);
-        tcpQueries.set(0);
+        for (Counter c : counters)
+            c.reset();
+        for (Counter c : byQtype)
+            c.reset();
+        byRareQtype.values().forEach(Counter::reset);
+        byZone.values().forEach(Counter::reset);
+        udpBaseline = new LatencyBaseline(udpLatency.snapshot(), udpLatency.sum());
+        tcpBaseline = new LatencyBaseline(tcpLatency.snapshot(), tcpLatency.sum());
+        qps.reset();
+        // activeTcpConnections is a gauge, not a counter; leave it alone
         startTime = System.currentTimeMillis();
     }
+
+    private static void putIfCounted(Map<String, Long> out, String key, Counter counter) {
+        long n = counter.sinceReset();
+        if (n > 0)
+            out.put(key, n);
+    }
+
+    private static Counter qtypeCounter(int qtype) {
+        return new Counter(QTYPE, "qtype=\"" + MetricFamily.escape(Type.string(qtype)) + "\"");
+    }
+
+    private static String latencyJson(LatencyHistogram h, LatencyBaseline base) {
+        long[] counts = h.snapshot();
+        long n = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] -= base.counts[i];
+            n += counts[i];
+        }
+        return String.format("{\"count\": %d, \"mean\": %.1f, \"p50\": %.1f, \"p99\": %.1f, \"p999\": %.1f}",
+                n, n == 0 ? 0.0 : (h.sum() - base.sum) / 1000.0 / n,
+                LatencyHistogram.percentile(counts, 0.50) / 1000.0,
+                LatencyHistogram.percentile(counts, 0.99) / 1000.0,
+                LatencyHistogram.percentile(counts, 0.999) / 1000.0);
+    }
+
+    private static String countsJson(Map<String, Long> counts) {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, Long> e : counts.entrySet()) {
+            if (sb.length() > 1)
+                sb.append(", ");
+            sb.append('"');
+            for (char c : e.getKey().toCharArray()) {
+                if (c == '"' || c == '\\')
+                    sb.append('\\');
+                sb.append(c);
+            }
+            sb.append("\": ").append(e.getValue());
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * A monotonic counter, its exposition labels and the value it had at the
+     * last {@link DnsMetrics#reset()}.
+     */
+    static final class Counter {
+        final MetricFamily family;
+        final byte[] sample;
+        private final LongAdder total = new LongAdder();
+        private volatile long baseline;
+
+        Counter(MetricFamily family, String labels) {
+            this.family = family;
+            this.sample = family.sample("_total", labels);
+        }
+
+        void increment() {
+            total.increment();
+        }
+
+        long total() {
+            return total.sum();
+        }
+
+        long sinceReset() {
+            return total.sum() - baseline;
+        }
+
+        void reset() {
+            baseline = total.sum();
+        }
+    }
+
+    private record LatencyBaseline(long[] counts, long sum) {
+        static final LatencyBaseline EMPTY = new LatencyBaseline(new long[LatencyHistogram.BUCKETS], 0);
+    }
 }
@@ -0,0 +1,98 @@
+package de.herpersolutions.monitoring;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * HDR-style histogram of nanosecond latencies: each power of two is split into
+ * {@value #SUB_BUCKETS} linear buckets, so values are kept to within about 3%
+ * from 1 ns up to about 36 minutes. Counts are striped by thread so worker
+ * threads recording at the same time rarely touch the same counter; reads merge
+ * the stripes. Counts never go back down, so the histogram can be exported
+ * as a Prometheus histogram.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_BIT = 41;
+    private static final long MAX_VALUE = (1L << (MAX_BIT + 1)) - 1;
+    /** Number of buckets; bucket {@code i} holds values up to {@link #upperBound(int)}. */
+    public static final int BUCKETS = (MAX_BIT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final int stripes;
+    // Per stripe: BUCKETS counts, then the sum of recorded values
+    private final AtomicLongArray counts;
+
+    public LatencyHistogram() {
+        this.stripes = Integer.highestOneBit(Math.max(1, Math.min(16, Runtime.getRuntime().availableProcessors())) * 2 - 1);
+        this.counts = new AtomicLongArray(stripes * (BUCKETS + 1));
+    }
+
+    public void record(long nanos) {
+        long v = Math.max(0, Math.min(nanos, MAX_VALUE));
+        int base = (int) (Thread.currentThread().threadId() & (stripes - 1)) * (BUCKETS + 1);
+        counts.incrementAndGet(base + bucket(v));
+        counts.addAndGet(base + BUCKETS, v);
+    }
+
+    /** Counts per bucket, merged over all stripes. */
+    public long[] snapshot() {
+        return snapshot(new long[BUCKETS]);
+    }
+
+    /** Like {@link #snapshot()}, into a caller's array of {@link #BUCKETS} longs. */
+    public long[] snapshot(long[] out) {
+        Arrays.fill(out, 0);
+        for (int s = 0; s < stripes; s++) {
+            int base = s * (BUCKETS + 1);
+            for (int i = 0; i < BUCKETS; i++)
+                out[i] += counts.get(base + i);
+        }
+        return out;
+    }
+
+    /** Sum of all recorded values in nanoseconds. */
+    public long sum() {
+        long sum = 0;
+        for (int s = 0; s < stripes; s++)
+            sum += counts.get(s * (BUCKETS + 1) + BUCKETS);
+        return sum;
+    }
+
+    /**
+     * Value at quantile {@code q} (0..1) of a {@link #snapshot()}: the highest
+     * value of the bucket it falls in, or 0 if the snapshot is empty.
+     */
+    public static long percentile(long[] snapshot, double q) {
+        long total = 0;
+        for (long c : snapshot)
+            total += c;
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return upperBound(i);
+        }
+        return MAX_VALUE;
+    }
+
+    /** Highest value that falls into bucket {@code i}. */
+    public static long upperBound(int i) {
+        if (i < SUB_BUCKETS)
+            return i;
+        int shift = i / SUB_BUCKETS - 1;
+        long sub = i % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    static int bucket(long v) {
+        int msb = 63 - Long.numberOfLeadingZeros(v | 1);
+        if (msb < SUB_BITS)
+            return (int) v;
+        int shift = msb - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (v >>> shift) - SUB_BUCKETS;
+    }
+}
@@ -0,0 +1,62 @@
+package de.herpersolutions.monitoring;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Name, type and help text of one exposed metric, with its {@code # HELP} and
+ * {@code # TYPE} lines encoded up front for both exposition formats. They only
+ * differ for counters: OpenMetrics names the family without {@code _total},
+ * the Prometheus text format names it after the sample.
+ */
+final class MetricFamily {
+    static final String COUNTER = "counter";
+    static final String GAUGE = "gauge";
+    static final String HISTOGRAM = "histogram";
+
+    final String name;
+    final String type;
+    private final byte[] openMetricsHeader;
+    private final byte[] textHeader;
+
+    MetricFamily(String name, String type, String help) {
+        this.name = name;
+        this.type = type;
+        this.openMetricsHeader = header(name, type, help);
+        this.textHeader = header(type.equals(COUNTER) ? name + "_total" : name, type, help);
+    }
+
+    byte[] header(boolean openMetrics) {
+        return openMetrics ? openMetricsHeader : textHeader;
+    }
+
+    /**
+     * Start of a sample line up to the value, e.g. {@code jdns_queries_total{transport="udp"} }.
+     *
+     * @param suffix appended to the family name ({@code _total}, {@code _bucket}, ...)
+     * @param labels label pairs without braces, or null
+     */
+    byte[] sample(String suffix, String labels) {
+        String s = name + suffix + (labels != null ? "{" + labels + "}" : "") + " ";
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** A label value escaped for the exposition formats. */
+    static String escape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"')
+                sb.append('\\').append(c);
+            else if (c == '\n')
+                sb.append("\\n");
+            else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static byte[] header(String name, String type, String help) {
+        return ("# HELP " + name + " " + help + "\n# TYPE " + name + " " + type + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+}
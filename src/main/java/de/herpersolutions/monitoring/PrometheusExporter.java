@@ -0,0 +1,241 @@
+package de.herpersolutions.monitoring;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Writes {@link DnsMetrics} and registered gauges in the OpenMetrics text
+ * format, or the older Prometheus text format for clients that don't ask for
+ * OpenMetrics. Label sets, {@code # HELP}/{@code # TYPE} lines and histogram
+ * bounds are encoded once; a scrape renders numbers straight into a buffer
+ * that is reused by the next scrape, so frequent scrapes create no garbage
+ * per sample.
+ */
+public final class PrometheusExporter {
+    public static final String OPENMETRICS_CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    public static final String TEXT_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final MetricFamily TCP_ACTIVE = new MetricFamily("jdns_tcp_active_connections",
+            MetricFamily.GAUGE, "Open TCP connections");
+    private static final MetricFamily LATENCY = new MetricFamily("jdns_query_duration_seconds",
+            MetricFamily.HISTOGRAM, "Time from receiving a query to sending its response");
+    private static final MetricFamily START_TIME = new MetricFamily("jdns_start_time_seconds",
+            MetricFamily.GAUGE, "Time the server started, in seconds since the epoch");
+    private static final byte[] EOF = ascii("# EOF\n");
+
+    // Histogram bucket bounds in nanoseconds; each takes the fine buckets of
+    // LatencyHistogram that lie entirely below it, so values within ~3% under a
+    // bound may be counted in the next one
+    private static final long[] BOUNDS = {
+        10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+        1_000_000, 2_500_000, 5_000_000, 10_000_000, 25_000_000, 50_000_000,
+        100_000_000, 250_000_000, 500_000_000, 1_000_000_000, 2_500_000_000L, 5_000_000_000L
+    };
+    private static final int[] BOUND_LAST_BUCKET = new int[BOUNDS.length];
+
+    static {
+        for (int b = 0; b < BOUNDS.length; b++) {
+            int i = 0;
+            while (LatencyHistogram.upperBound(i + 1) <= BOUNDS[b])
+                i++;
+            BOUND_LAST_BUCKET[b] = i;
+        }
+    }
+
+    private final DnsMetrics metrics;
+    private final List<Gauge> gauges = new ArrayList<>();
+    private final Histogram udp;
+    private final Histogram tcp;
+    private final byte[] tcpActiveSample = TCP_ACTIVE.sample("", null);
+    private final byte[] startTimeSample = START_TIME.sample("", null);
+
+    // Scrape state, guarded by this
+    private final long[] scratch = new long[LatencyHistogram.BUCKETS];
+    private final byte[] digits = new byte[20];
+    private byte[] buf = new byte[16 * 1024];
+    private int len;
+
+    public PrometheusExporter(DnsMetrics metrics) {
+        this.metrics = metrics;
+        this.udp = new Histogram(metrics.udpLatency, "transport=\"udp\"");
+        this.tcp = new Histogram(metrics.tcpLatency, "transport=\"tcp\"");
+    }
+
+    /**
+     * Exposes a value that is read at every scrape, e.g. a table size.
+     *
+     * @param name metric name, {@code jdns_} prefixed by convention
+     */
+    public synchronized void gauge(String name, String help, LongSupplier value) {
+        MetricFamily family = new MetricFamily(name, MetricFamily.GAUGE, help);
+        gauges.add(new Gauge(family, family.sample("", null), value));
+    }
+
+    /**
+     * Whether a request's Accept header asks for OpenMetrics rather than the
+     * Prometheus text format.
+     */
+    public static boolean wantsOpenMetrics(String accept) {
+        return accept != null && accept.contains("application/openmetrics-text");
+    }
+
+    /**
+     * Renders all metrics and writes them to {@code out}. Scrapes are
+     * serialised, as they share the output buffer.
+     */
+    public synchronized void write(OutputStream out, boolean openMetrics) throws IOException {
+        len = 0;
+        String family = null;
+        for (DnsMetrics.Counter c : metrics.counters) {
+            if (!c.family.name.equals(family)) {
+                put(c.family.header(openMetrics));
+                family = c.family.name;
+            }
+            counter(c);
+        }
+
+        put(DnsMetrics.QTYPE.header(openMetrics));
+        for (DnsMetrics.Counter c : metrics.byQtype)
+            if (c.total() > 0)
+                counter(c);
+        for (DnsMetrics.Counter c : metrics.byRareQtype.values())
+            counter(c);
+
+        put(DnsMetrics.ZONE.header(openMetrics));
+        for (DnsMetrics.Counter c : metrics.byZone.values())
+            counter(c);
+
+        put(LATENCY.header(openMetrics));
+        histogram(udp);
+        histogram(tcp);
+
+        put(TCP_ACTIVE.header(openMetrics));
+        put(tcpActiveSample);
+        putLong(metrics.activeTcpConnections());
+        putByte('\n');
+
+        for (Gauge g : gauges) {
+            put(g.family.header(openMetrics));
+            put(g.sample);
+            putLong(g.value.getAsLong());
+            putByte('\n');
+        }
+
+        put(START_TIME.header(openMetrics));
+        put(startTimeSample);
+        putLong(metrics.createdMillis / 1000);
+        putByte('\n');
+
+        if (openMetrics)
+            put(EOF);
+        out.write(buf, 0, len);
+    }
+
+    private void counter(DnsMetrics.Counter c) {
+        put(c.sample);
+        putLong(c.total());
+        putByte('\n');
+    }
+
+    private void histogram(Histogram h) {
+        long[] counts = h.histogram.snapshot(scratch);
+        long sum = h.histogram.sum();
+        long cumulative = 0;
+        int i = 0;
+        for (int b = 0; b < BOUNDS.length; b++) {
+            for (; i <= BOUND_LAST_BUCKET[b]; i++)
+                cumulative += counts[i];
+            put(h.buckets[b]);
+            putLong(cumulative);
+            putByte('\n');
+        }
+        for (; i < counts.length; i++)
+            cumulative += counts[i];
+        put(h.buckets[BOUNDS.length]);
+        putLong(cumulative);
+        putByte('\n');
+        put(h.count);
+        putLong(cumulative);
+        putByte('\n');
+        put(h.sum);
+        putSeconds(sum);
+        putByte('\n');
+    }
+
+    private void put(byte[] b) {
+        ensure(b.length);
+        System.arraycopy(b, 0, buf, len, b.length);
+        len += b.length;
+    }
+
+    private void putByte(char c) {
+        ensure(1);
+        buf[len++] = (byte) c;
+    }
+
+    private void putLong(long v) {
+        if (v < 0) {
+            putByte('-');
+            v = -v;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        ensure(n);
+        while (n > 0)
+            buf[len++] = digits[--n];
+    }
+
+    /** Nanoseconds as decimal seconds, without going through a double. */
+    private void putSeconds(long nanos) {
+        putLong(nanos / 1_000_000_000L);
+        long frac = nanos % 1_000_000_000L;
+        ensure(10);
+        buf[len++] = '.';
+        for (long div = 100_000_000L; div > 0; div /= 10)
+            buf[len++] = (byte) ('0' + frac / div % 10);
+    }
+
+    private void ensure(int n) {
+        if (len + n > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** A bucket bound as OpenMetrics wants it, e.g. "0.0025" or "1.0". */
+    private static String seconds(long nanos) {
+        String s = BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+        return s.indexOf('.') < 0 ? s + ".0" : s;
+    }
+
+    private record Gauge(MetricFamily family, byte[] sample, LongSupplier value) {
+    }
+
+    /** One labelled histogram with its sample prefixes. */
+    private static final class Histogram {
+        final LatencyHistogram histogram;
+        final byte[][] buckets = new byte[BOUNDS.length + 1][];
+        final byte[] count;
+        final byte[] sum;
+
+        Histogram(LatencyHistogram histogram, String labels) {
+            this.histogram = histogram;
+            for (int b = 0; b < BOUNDS.length; b++)
+                buckets[b] = LATENCY.sample("_bucket", labels + ",le=\"" + seconds(BOUNDS[b]) + "\"");
+            buckets[BOUNDS.length] = LATENCY.sample("_bucket", labels + ",le=\"+Inf\"");
+            count = LATENCY.sample("_count", labels);
+            sum = LATENCY.sample("_sum", labels);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package de.herpersolutions.monitoring;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Queries per second over the last few seconds, from a ring of per-second
+ * {@link LongAdder}s. The first recording in a new second claims and clears
+ * its slot; a count racing with that may be lost, which is fine for a rate.
+ */
+final class QpsWindow {
+    private static final int SLOTS = 64; // more than the longest window asked for
+    static final int MAX_WINDOW = SLOTS - 2;
+
+    private final LongAdder[] counts = new LongAdder[SLOTS];
+    private final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+
+    QpsWindow() {
+        for (int i = 0; i < SLOTS; i++) {
+            counts[i] = new LongAdder();
+            seconds.set(i, Long.MIN_VALUE);
+        }
+    }
+
+    void record() {
+        long now = now();
+        int slot = (int) (now & (SLOTS - 1));
+        long stamp = seconds.get(slot);
+        if (stamp != now && seconds.compareAndSet(slot, stamp, now))
+            counts[slot].reset();
+        counts[slot].increment();
+    }
+
+    /**
+     * Average rate over the last {@code window} completed seconds.
+     */
+    double rate(int window) {
+        window = Math.max(1, Math.min(window, MAX_WINDOW));
+        long now = now();
+        long sum = 0;
+        for (long s = now - window; s < now; s++) {
+            int slot = (int) (s & (SLOTS - 1));
+            if (seconds.get(slot) == s)
+                sum += counts[slot].sum();
+        }
+        return (double) sum / window;
+    }
+
+    void reset() {
+        for (int i = 0; i < SLOTS; i++) {
+            seconds.set(i, Long.MIN_VALUE);
+            counts[i].reset();
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000_000L;
+    }
+}
@@ -0,0 +1,259 @@
+package de.herpersolutions.monitoring;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.DNSInput;
+import org.xbill.DNS.Header;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Type;
+
+/**
+ * Asynchronous query log. Query threads drop compact events into a lock-free
+ * ring buffer; a single background thread drains them in batches and writes
+ * them to a file or to logback. When the ring is full, events are dropped
+ * and counted instead of slowing down the query path.
+ */
+public class QueryLog {
+    private static final Logger logger = LoggerFactory.getLogger(QueryLog.class);
+
+    public static final byte SUCCESS = 0;
+    public static final byte NO_ZONE = 1;
+    public static final byte NO_DATA = 2;
+    public static final byte SERVFAIL = 3;
+    public static final byte RATE_LIMITED = 4;
+    public static final byte NO_NAME = 5;
+
+    private static final String[] OUTCOMES = {
+        "SUCCESS", "FAILURE (no matching zone)", "FAILURE (no answer records)", "FAILURE (exception)", "RATE LIMITED",
+        "FAILURE (no such name)"
+    };
+    private static final int BATCH_SIZE = 1024;
+    private static final int MAX_SUMMARY_CLIENTS = 1024;
+
+    private final DnsMetrics metrics;
+    private final int sampleRate;
+    private final long rateLimitSummaryMs;
+    private final BufferedWriter file;
+
+    // Ring buffer slots (struct of arrays); published[i] == seq + 1 once slot i holds event seq
+    private final int mask;
+    private final long[] times;
+    private final int[] qtypes;
+    private final byte[] outcomes;
+    private final Name[] names;
+    private final InetAddress[] clients;
+    private final AtomicLongArray published;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+
+    // Consumer-side state for rate-limit summaries
+    private final Map<InetAddress, long[]> rateLimitedByClient = new HashMap<>();
+    private long rateLimitedOther;
+    private long summaryStart = System.currentTimeMillis();
+
+    private volatile boolean running = true;
+    private final Thread writer;
+
+    /**
+     * @param sampleRate         log one in this many queries; 0 disables query logging
+     * @param capacity           ring size, rounded up to a power of two
+     * @param rateLimitSummaryMs 0 logs every rate-limited query; otherwise drops are
+     *                           summed per client and logged once per interval
+     * @param file               log file to append to, or null to log through logback
+     */
+    public QueryLog(DnsMetrics metrics, int sampleRate, int capacity, long rateLimitSummaryMs, Path file) throws IOException {
+        this.metrics = metrics;
+        this.sampleRate = sampleRate;
+        this.rateLimitSummaryMs = rateLimitSummaryMs;
+        this.file = file == null ? null : Files.newBufferedWriter(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.times = new long[size];
+        this.qtypes = new int[size];
+        this.outcomes = new byte[size];
+        this.names = new Name[size];
+        this.clients = new InetAddress[size];
+        this.published = new AtomicLongArray(size);
+
+        writer = new Thread(this::drainLoop, "query-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Logs an answered query, subject to sampling.
+     */
+    public void log(Name qname, InetAddress client, int qtype, byte outcome) {
+        if (!sampled())
+            return;
+        offer(qname, client, qtype, outcome);
+    }
+
+    /**
+     * Same as {@link #log(Name, InetAddress, int, byte)} for a raw query; the
+     * question name is only parsed if the query is sampled.
+     */
+    public void log(byte[] query, InetAddress client, int qtype, byte outcome) {
+        if (!sampled())
+            return;
+        Name qname = null;
+        try {
+            DNSInput in = new DNSInput(query);
+            in.jump(Header.LENGTH);
+            qname = new Name(in);
+        } catch (IOException e) {
+            // Logged without a name
+        }
+        offer(qname, client, qtype, outcome);
+    }
+
+    /**
+     * Logs a query dropped by rate limiting. In summary mode every drop is
+     * counted (no sampling), but only one line per client and interval is written.
+     */
+    public void rateLimited(InetAddress client) {
+        if (rateLimitSummaryMs <= 0 && !sampled())
+            return;
+        offer(null, client, 0, RATE_LIMITED);
+    }
+
+    private boolean sampled() {
+        if (sampleRate <= 0)
+            return false;
+        return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    private void offer(Name qname, InetAddress client, int qtype, byte outcome) {
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail > mask) {
+                metrics.recordQueryLogDropped();
+                return;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+
+        int i = (int) seq & mask;
+        times[i] = System.currentTimeMillis();
+        qtypes[i] = qtype;
+        outcomes[i] = outcome;
+        names[i] = qname;
+        clients[i] = client;
+        published.lazySet(i, seq + 1);
+    }
+
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop() {
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            int drained = drainBatch(line);
+            if (rateLimitSummaryMs > 0 && System.currentTimeMillis() - summaryStart >= rateLimitSummaryMs)
+                flushRateLimitSummary();
+            if (drained > 0)
+                continue;
+            flushFile();
+            if (!running)
+                break;
+            LockSupport.parkNanos(10_000_000L);
+        }
+        flushRateLimitSummary();
+        flushFile();
+    }
+
+    private int drainBatch(StringBuilder line) {
+        long t = tail;
+        int n = 0;
+        while (n < BATCH_SIZE) {
+            int i = (int) t & mask;
+            if (published.get(i) != t + 1)
+                break;
+            write(line, times[i], names[i], clients[i], qtypes[i], outcomes[i]);
+            names[i] = null;
+            clients[i] = null;
+            t++;
+            n++;
+        }
+        tail = t;
+        return n;
+    }
+
+    private void write(StringBuilder line, long time, Name qname, InetAddress client, int qtype, byte outcome) {
+        if (outcome == RATE_LIMITED && rateLimitSummaryMs > 0) {
+            long[] count = rateLimitedByClient.get(client);
+            if (count == null && rateLimitedByClient.size() < MAX_SUMMARY_CLIENTS)
+                rateLimitedByClient.put(client, count = new long[1]);
+            if (count != null)
+                count[0]++;
+            else
+                rateLimitedOther++;
+            return;
+        }
+
+        if (file == null) {
+            if (outcome == RATE_LIMITED)
+                logger.warn("Rate limited query from {}", client.getHostAddress());
+            else
+                logger.info("Query ({}) [{}] [{}] | {}", qname, client.getHostAddress(), Type.string(qtype), OUTCOMES[outcome]);
+            return;
+        }
+
+        line.setLength(0);
+        line.append(Instant.ofEpochMilli(time)).append(' ')
+                .append(client.getHostAddress()).append(' ');
+        if (qname != null)
+            line.append(qname).append(' ').append(Type.string(qtype)).append(' ');
+        line.append(OUTCOMES[outcome]).append('\n');
+        try {
+            file.append(line);
+        } catch (IOException e) {
+            logger.error("Failed to write query log", e);
+        }
+    }
+
+    private void flushRateLimitSummary() {
+        long now = System.currentTimeMillis();
+        long window = now - summaryStart;
+        for (Map.Entry<InetAddress, long[]> e : rateLimitedByClient.entrySet())
+            logger.warn("Rate limited {} queries from {} in the last {} ms", e.getValue()[0], e.getKey().getHostAddress(), window);
+        if (rateLimitedOther > 0)
+            logger.warn("Rate limited {} queries from other clients in the last {} ms", rateLimitedOther, window);
+        rateLimitedByClient.clear();
+        rateLimitedOther = 0;
+        summaryStart = now;
+    }
+
+    private void flushFile() {
+        if (file == null)
+            return;
+        try {
+            file.flush();
+        } catch (IOException e) {
+            logger.error("Failed to flush query log", e);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package de.herpersolutions.security;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A list of networks allowed to do something, such as transferring zones,
+ * given as addresses or CIDR prefixes ({@code 127.0.0.1, ::1, 10.0.0.0/8}).
+ * IPv4 and IPv6 entries only match addresses of their own family.
+ */
+public class NetworkAcl {
+    public static final NetworkAcl NONE = new NetworkAcl(List.of());
+
+    private final List<Network> networks;
+
+    private NetworkAcl(List<Network> networks) {
+        this.networks = networks;
+    }
+
+    /**
+     * @param spec comma-separated addresses and prefixes; empty allows nobody
+     * @throws IllegalArgumentException for entries that are not an address literal or prefix
+     */
+    public static NetworkAcl parse(String spec) {
+        List<Network> networks = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty())
+                continue;
+            int slash = entry.indexOf('/');
+            String address = slash < 0 ? entry : entry.substring(0, slash);
+            if (!address.matches("[0-9A-Fa-f:.]+"))
+                throw new IllegalArgumentException("not an address: " + entry);
+            byte[] bytes;
+            try {
+                bytes = InetAddress.getByName(address).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("not an address: " + entry, e);
+            }
+            int bits = slash < 0 ? bytes.length * 8 : Integer.parseInt(entry.substring(slash + 1));
+            if (bits < 0 || bits > bytes.length * 8)
+                throw new IllegalArgumentException("bad prefix length: " + entry);
+            networks.add(new Network(bytes, bits));
+        }
+        return new NetworkAcl(List.copyOf(networks));
+    }
+
+    public boolean allows(InetAddress client) {
+        byte[] a = client.getAddress();
+        for (Network n : networks)
+            if (n.contains(a))
+                return true;
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return networks.isEmpty();
+    }
+
+    private record Network(byte[] prefix, int bits) {
+        boolean contains(byte[] a) {
+            if (a.length != prefix.length)
+                return false;
+            int full = bits / 8;
+            for (int i = 0; i < full; i++)
+                if (a[i] != prefix[i])
+                    return false;
+            int rest = bits % 8;
+            if (rest == 0)
+                return true;
+            int mask = 0xFF << (8 - rest);
+            return ((a[full] ^ prefix[full]) & mask) == 0;
+        }
+    }
+}
@@ -1,76 +1,44 @@
 package de.herpersolutions.security;
 
+import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
- * Simple rate limiter to prevent DNS amplification attacks
+ * Per-client token-bucket rate limiter with a fixed memory footprint.
+ *
+ * Clients are keyed by their IPv4 address or IPv6 /64 prefix, without
+ * allocating per client, in a {@link TokenBucketTable}. Memory stays bounded
+ * no matter how many distinct (possibly spoofed) sources send traffic.
  */
 public class RateLimiter {
-    private static final Logger logger = LoggerFactory.getLogger(RateLimiter.class);
-    
-    private final ConcurrentMap<String, ClientMetrics> clientStats = new ConcurrentHashMap<>();
-    private final int maxQueriesPerSecond;
-    private final int windowSizeMs;
-    
+    private static final long V4_TAG = 1L << 32;
+
+    private final TokenBucketTable buckets;
+
     public RateLimiter(int maxQueriesPerSecond, int windowSizeMs) {
-        this.maxQueriesPerSecond = maxQueriesPerSecond;
-        this.windowSizeMs = windowSizeMs;
-        
-        // Cleanup thread to remove old entries
-        Thread cleanup = new Thread(this::cleanupOldEntries);
-        cleanup.setDaemon(true);
-        cleanup.start();
+        this(maxQueriesPerSecond, windowSizeMs, 65536);
     }
-    
-    public boolean isAllowed(InetAddress clientIp) {
-        String key = clientIp.getHostAddress();
-        long now = System.currentTimeMillis();
-        
-        ClientMetrics metrics = clientStats.computeIfAbsent(key, k -> new ClientMetrics());
-        
-        synchronized (metrics) {
-            // Reset window if needed
-            if (now - metrics.windowStart > windowSizeMs) {
-                metrics.windowStart = now;
-                metrics.queryCount.set(0);
-            }
-            
-            long currentCount = metrics.queryCount.incrementAndGet();
-            metrics.lastSeen = now;
-            
-            if (currentCount > maxQueriesPerSecond) {
-                logger.warn("Rate limit exceeded for client: {} (queries: {})", key, currentCount);
-                return false;
-            }
-            
-            return true;
-        }
+
+    /**
+     * @param maxQueriesPerSecond sustained rate per client
+     * @param windowSizeMs        burst allowance, as the number of milliseconds worth of queries
+     * @param tableSize           number of client slots, rounded up to a power of two
+     */
+    public RateLimiter(int maxQueriesPerSecond, int windowSizeMs, int tableSize) {
+        this.buckets = new TokenBucketTable(maxQueriesPerSecond, windowSizeMs, tableSize);
     }
-    
-    private void cleanupOldEntries() {
-        while (!Thread.currentThread().isInterrupted()) {
-            try {
-                Thread.sleep(60000); // Cleanup every minute
-                
-                long cutoff = System.currentTimeMillis() - (windowSizeMs * 2);
-                clientStats.entrySet().removeIf(entry -> entry.getValue().lastSeen < cutoff);
-                
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
-            }
-        }
+
+    public boolean isAllowed(InetAddress clientIp) {
+        return buckets.tryAcquire(keyOf(clientIp));
     }
-    
-    private static class ClientMetrics {
-        volatile long windowStart = System.currentTimeMillis();
-        volatile long lastSeen = System.currentTimeMillis();
-        final AtomicLong queryCount = new AtomicLong(0);
+
+    private static long keyOf(InetAddress ip) {
+        if (ip instanceof Inet4Address)
+            return V4_TAG | (ip.hashCode() & 0xFFFFFFFFL); // Inet4Address hashes to its address
+        byte[] a = ip.getAddress();
+        long prefix = 0;
+        for (int i = 0; i < 8; i++)
+            prefix = (prefix << 8) | (a[i] & 0xFF);
+        return prefix == 0 ? 1 : prefix; // 0 marks an empty slot
     }
 }
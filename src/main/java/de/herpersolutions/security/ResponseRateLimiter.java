@@ -0,0 +1,65 @@
+package de.herpersolutions.security;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * BIND-style Response Rate Limiting (RRL) for UDP answers.
+ *
+ * Identical responses are counted per (client /24 or /56, qname, qtype,
+ * response kind) in a fixed-size {@link TokenBucketTable}. Once a bucket is
+ * empty the response is either dropped or "slipped": replaced by a tiny TC=1
+ * reply so a real client can retry over TCP, while a spoofed victim only sees
+ * a fraction of the traffic an attacker asked for.
+ */
+public class ResponseRateLimiter {
+    public enum Action { SEND, DROP, SLIP }
+
+    // Response kinds; NXDOMAIN and errors share one bucket per client network regardless of name
+    public static final int POSITIVE = 0;
+    public static final int NODATA = 1;
+    public static final int NXDOMAIN = 2;
+    public static final int ERROR = 3;
+
+    private final TokenBucketTable buckets;
+    private final int slip;
+
+    /**
+     * @param responsesPerSecond identical responses allowed per second and bucket
+     * @param slip               every n-th limited response (on average) is slipped;
+     *                           0 never slips, 1 always slips
+     * @param tableSize          number of buckets, rounded up to a power of two
+     */
+    public ResponseRateLimiter(int responsesPerSecond, int slip, int tableSize) {
+        this.buckets = new TokenBucketTable(responsesPerSecond, 1000, tableSize);
+        this.slip = slip;
+    }
+
+    /**
+     * @param nameHash case-insensitive hash of the query name
+     */
+    public Action check(InetAddress client, int nameHash, int qtype, int kind) {
+        long key = networkKey(client);
+        key = key * 31 + kind;
+        if (kind == POSITIVE || kind == NODATA) {
+            key = key * 31 + nameHash;
+            key = key * 31 + qtype;
+        }
+        if (buckets.tryAcquire(key == 0 ? 1 : key))
+            return Action.SEND;
+        if (slip > 0 && (slip == 1 || ThreadLocalRandom.current().nextInt(slip) == 0))
+            return Action.SLIP;
+        return Action.DROP;
+    }
+
+    private static long networkKey(InetAddress ip) {
+        if (ip instanceof Inet4Address)
+            return (1L << 32) | (ip.hashCode() & 0xFFFFFF00L); // /24
+        byte[] a = ip.getAddress();
+        long prefix = 0;
+        for (int i = 0; i < 7; i++) // /56
+            prefix = (prefix << 8) | (a[i] & 0xFF);
+        return prefix;
+    }
+}
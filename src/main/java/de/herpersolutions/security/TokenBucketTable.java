@@ -0,0 +1,123 @@
+package de.herpersolutions.security;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size, lock-free table of token buckets keyed by a 64-bit key.
+ *
+ * Keys are hashed into a preallocated open-addressing table. Each slot holds
+ * its bucket in a single long (last refill time and remaining milli-tokens)
+ * that is updated with CAS, so there are no locks and no per-key objects.
+ * When the probe window is full the least recently refilled slot is recycled,
+ * which keeps memory bounded no matter how many distinct keys show up.
+ */
+class TokenBucketTable {
+    private static final int PROBES = 8;
+    // How far behind a slot's time a thread's clock reading can be, having read it before another thread stored its own
+    private static final int MAX_SKEW_MS = 60_000;
+
+    private final int ratePerSecond;
+    private final int capacity; // bucket size in milli-tokens
+    private final int mask;
+    private final AtomicLongArray keys;    // 0 = empty slot
+    private final AtomicLongArray buckets; // (refill time ms << 32) | milli-tokens
+
+    /**
+     * @param ratePerSecond sustained tokens per second per key
+     * @param burstMs       bucket size, as the number of milliseconds worth of tokens
+     * @param tableSize     number of slots, rounded up to a power of two
+     */
+    TokenBucketTable(int ratePerSecond, int burstMs, int tableSize) {
+        this.ratePerSecond = ratePerSecond;
+        long burst = Math.max(1, (long) ratePerSecond * burstMs / 1000);
+        this.capacity = (int) Math.min(Integer.MAX_VALUE, burst * 1000);
+        int size = Integer.highestOneBit(Math.max(PROBES, tableSize) - 1) << 1;
+        this.mask = size - 1;
+        this.keys = new AtomicLongArray(size);
+        this.buckets = new AtomicLongArray(size);
+    }
+
+    /**
+     * Takes one token from the bucket of {@code key}.
+     *
+     * @param key any value except 0
+     * @return false if the bucket is empty
+     */
+    boolean tryAcquire(long key) {
+        int now = (int) System.currentTimeMillis();
+        int slot = slotFor(key, now);
+
+        while (true) {
+            long state = buckets.get(slot);
+            int tokens = refill(state, now);
+            if (tokens < 1000)
+                return false;
+            if (buckets.compareAndSet(slot, state, pack(now, tokens - 1000)))
+                return true;
+        }
+    }
+
+    private int refill(long state, int now) {
+        long elapsed = elapsed(now, state);
+        int tokens = (int) state;
+        if (elapsed == 0)
+            return tokens;
+        // ratePerSecond tokens per second == ratePerSecond milli-tokens per ms
+        long refilled = tokens + elapsed * ratePerSecond;
+        return (int) Math.min(capacity, refilled);
+    }
+
+    private int slotFor(long key, int now) {
+        int start = mix(key) & mask;
+        int victim = start;
+        long oldestAge = -1;
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (start + i) & mask;
+            long k = keys.get(slot);
+            if (k == key)
+                return slot;
+            if (k == 0) {
+                if (keys.compareAndSet(slot, 0, key)) {
+                    buckets.set(slot, pack(now, capacity));
+                    return slot;
+                }
+                if (keys.get(slot) == key)
+                    return slot;
+                continue;
+            }
+            long age = elapsed(now, buckets.get(slot));
+            if (age > oldestAge) {
+                oldestAge = age;
+                victim = slot;
+            }
+        }
+        // Probe window full: recycle the stalest slot
+        long old = keys.get(victim);
+        if (keys.compareAndSet(victim, old, key))
+            buckets.set(victim, pack(now, capacity));
+        return victim;
+    }
+
+    /**
+     * Milliseconds since a bucket was last refilled. Times are the low 32 bits
+     * of the clock, so the difference is taken as unsigned: a bucket idle for
+     * more than 24.8 days would otherwise look refilled in the future and
+     * never refill again. Small negative differences are threads racing and
+     * count as no time.
+     */
+    private static long elapsed(int now, long state) {
+        int diff = now - (int) (state >>> 32);
+        if (diff < 0 && diff > -MAX_SKEW_MS)
+            return 0;
+        return Integer.toUnsignedLong(diff);
+    }
+
+    private static long pack(int time, int tokens) {
+        return ((long) time << 32) | (tokens & 0xFFFFFFFFL);
+    }
+
+    private static int mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+}
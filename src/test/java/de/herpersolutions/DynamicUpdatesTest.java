@@ -0,0 +1,410 @@
+package de.herpersolutions;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TSIG;
+import org.xbill.DNS.Type;
+import org.xbill.DNS.Update;
+
+import de.herpersolutions.Zones.JsonRecord;
+import de.herpersolutions.Zones.JsonZone;
+import de.herpersolutions.Zones.ZoneStore;
+import de.herpersolutions.engine.AuthoritativeEngine;
+import de.herpersolutions.engine.WireQuery;
+import de.herpersolutions.monitoring.DnsMetrics;
+import de.herpersolutions.monitoring.QueryLog;
+
+/**
+ * The prerequisite checks of RFC 2136 3.2, where an update applies only if
+ * all of them hold and a failed one answers with its rcode and changes
+ * nothing, and the update section rules of 3.4.2.
+ */
+class DynamicUpdatesTest {
+    private static final String ORIGIN = "t.example.";
+    private static final InetAddress CLIENT = InetAddress.getLoopbackAddress();
+
+    @TempDir
+    Path dir;
+
+    private ZoneStore store;
+    private AuthoritativeEngine engine;
+    private ZoneWriter writer;
+    private DynamicUpdates updates;
+    private TSIG key;
+    private Name origin;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        store = new ZoneStore(dir);
+        JsonZone z = new JsonZone();
+        z.setOrigin(ORIGIN);
+        z.setNs(new ArrayList<>(List.of("ns1." + ORIGIN)));
+        z.getRecords().add(new JsonRecord("www", "A", 60, "10.0.0.1", null));
+        z.getRecords().add(new JsonRecord("www", "A", 60, "10.0.0.2", null));
+        z.getRecords().add(new JsonRecord("mail", "A", 60, "10.0.0.5", null));
+        store.replaceZone(z);
+
+        DnsMetrics metrics = new DnsMetrics();
+        engine = new AuthoritativeEngine(store, metrics, null, null, new QueryLog(metrics, 0, 1024, 0, null), null,
+                1232, false);
+        writer = new ZoneWriter(store, engine, 100, 60_000);
+        key = new TSIG(TSIG.HMAC_SHA256, "k.", "c2VjcmV0c2VjcmV0c2VjcmV0");
+        updates = new DynamicUpdates(store, writer, metrics, Map.of(Name.fromString("k."), key), Set.of(), 1232);
+        origin = Name.fromString(ORIGIN);
+    }
+
+    @AfterEach
+    void tearDown() {
+        writer.close();
+    }
+
+    @Test
+    void nameInUseHolds() throws IOException {
+        Update u = new Update(origin);
+        u.present(name("www"));
+        u.add(name("api"), Type.A, 120, "10.0.0.9");
+        assertEquals(Rcode.NOERROR, send(u));
+        assertTrue(answer("api", Type.A).contains("10.0.0.9"));
+        assertEquals(2, serial());
+    }
+
+    @Test
+    void nameInUseFails() throws IOException {
+        Update u = new Update(origin);
+        u.present(name("nothere"));
+        u.add(name("api"), Type.A, 120, "10.0.0.9");
+        assertEquals(Rcode.NXDOMAIN, send(u));
+        assertUnchanged();
+    }
+
+    @Test
+    void nameNotInUseFails() throws IOException {
+        Update u = new Update(origin);
+        u.absent(name("www"));
+        u.delete(name("www"));
+        assertEquals(Rcode.YXDOMAIN, send(u));
+        assertTrue(answer("www", Type.A).contains("10.0.0.1"));
+        assertUnchanged();
+    }
+
+    @Test
+    void rrsetExistsFails() throws IOException {
+        Update u = new Update(origin);
+        u.present(name("www"), Type.AAAA);
+        u.delete(name("www"));
+        assertEquals(Rcode.NXRRSET, send(u));
+        assertUnchanged();
+    }
+
+    @Test
+    void rrsetDoesNotExistFails() throws IOException {
+        Update u = new Update(origin);
+        u.absent(name("mail"), Type.A);
+        u.delete(name("mail"));
+        assertEquals(Rcode.YXRRSET, send(u));
+        assertUnchanged();
+    }
+
+    @Test
+    void rrsetWithValuesHolds() throws IOException {
+        Update u = new Update(origin);
+        u.present(a("www", "10.0.0.2"));
+        u.present(a("www", "10.0.0.1"));
+        u.delete(name("mail"), Type.A);
+        assertEquals(Rcode.NOERROR, send(u));
+        assertTrue(answer("mail", Type.A).contains("NXDOMAIN"));
+    }
+
+    @Test
+    void rrsetWithValuesMustMatchWholeSet() throws IOException {
+        // Only one of the two records
+        Update u = new Update(origin);
+        u.present(a("www", "10.0.0.1"));
+        u.delete(name("mail"), Type.A);
+        assertEquals(Rcode.NXRRSET, send(u));
+
+        u = new Update(origin);
+        u.present(a("www", "10.0.0.1"));
+        u.present(a("www", "10.0.0.3"));
+        u.delete(name("mail"), Type.A);
+        assertEquals(Rcode.NXRRSET, send(u));
+        assertUnchanged();
+    }
+
+    @Test
+    void laterPrerequisiteFails() throws IOException {
+        Update u = new Update(origin);
+        u.present(name("www"));
+        u.absent(name("mail"));
+        u.add(name("api"), Type.A, 120, "10.0.0.9");
+        assertEquals(Rcode.YXDOMAIN, send(u));
+        assertTrue(answer("api", Type.A).contains("NXDOMAIN"));
+        assertUnchanged();
+    }
+
+    @Test
+    void prerequisiteOutsideZone() throws IOException {
+        Update u = new Update(origin);
+        u.present(Name.fromString("www.other.example."));
+        u.add(name("api"), Type.A, 120, "10.0.0.9");
+        assertEquals(Rcode.NOTZONE, send(u));
+        assertUnchanged();
+    }
+
+    @Test
+    void prerequisiteWithTtl() throws IOException {
+        Update u = new Update(origin);
+        u.addRecord(Record.newRecord(name("www"), Type.ANY, DClass.ANY, 60), Section.PREREQ);
+        u.add(name("api"), Type.A, 120, "10.0.0.9");
+        assertEquals(Rcode.FORMERR, send(u));
+        assertUnchanged();
+    }
+
+    @Test
+    void unknownZone() throws IOException {
+        Update u = new Update(Name.fromString("nope.example."));
+        u.add(Name.fromString("www.nope.example."), Type.A, 120, "10.0.0.9");
+        assertEquals(Rcode.NOTAUTH, send(u));
+    }
+
+    @Test
+    void unsignedRefused() throws IOException {
+        Update u = new Update(origin);
+        u.add(name("api"), Type.A, 120, "10.0.0.9");
+        byte[] wire = u.toWire();
+        assertEquals(Rcode.REFUSED, new Message(updates.update(wire, wire.length, CLIENT)).getRcode());
+        assertUnchanged();
+    }
+
+    @Test
+    void cnameNotAddedBesideOtherData() throws IOException {
+        Update u = new Update(origin);
+        u.add(name("www"), Type.CNAME, 60, "mail." + ORIGIN);
+        assertEquals(Rcode.NOERROR, send(u));
+        assertEquals(List.of(), records("www", "CNAME"));
+        assertEquals(2, records("www", "A").size());
+        assertEquals(1, serial());
+    }
+
+    @Test
+    void otherDataNotAddedBesideCname() throws IOException {
+        Update u = new Update(origin);
+        u.add(name("alias"), Type.CNAME, 60, "www." + ORIGIN);
+        assertEquals(Rcode.NOERROR, send(u));
+
+        u = new Update(origin);
+        u.add(name("alias"), Type.A, 60, "10.0.0.7");
+        u.add(name("alias"), Type.TXT, 60, "text");
+        assertEquals(Rcode.NOERROR, send(u));
+        assertEquals(1, records("alias", "CNAME").size());
+        assertEquals(List.of(), records("alias", "A"));
+        assertEquals(List.of(), records("alias", "TXT"));
+        assertEquals(2, serial());
+    }
+
+    @Test
+    void cnameReplacesCname() throws IOException {
+        Update u = new Update(origin);
+        u.add(name("alias"), Type.CNAME, 60, "www." + ORIGIN);
+        u.add(name("alias"), Type.CNAME, 60, "mail." + ORIGIN);
+        assertEquals(Rcode.NOERROR, send(u));
+        List<JsonRecord> cname = records("alias", "CNAME");
+        assertEquals(1, cname.size());
+        assertEquals("mail." + ORIGIN, cname.get(0).getData());
+        assertTrue(answer("alias", Type.A).contains("10.0.0.5"));
+    }
+
+    @Test
+    void deleteAllAtApexKeepsSoaAndNs() throws IOException {
+        Update u = new Update(origin);
+        u.add(origin, Type.A, 60, "10.0.0.100");
+        u.add(origin, Type.TXT, 60, "apex");
+        u.add(origin, Type.NS, 60, "ns2." + ORIGIN);
+        assertEquals(Rcode.NOERROR, send(u));
+        assertEquals(1, records("@", "A").size());
+
+        u = new Update(origin);
+        u.delete(origin);
+        assertEquals(Rcode.NOERROR, send(u));
+        assertEquals(List.of(), records("@", "A"));
+        assertEquals(List.of(), records("@", "TXT"));
+        assertEquals(List.of("ns1." + ORIGIN, "ns2." + ORIGIN), store.getZone(ORIGIN).getNs());
+        assertTrue(answer("@", Type.SOA).contains("SOA"));
+        assertTrue(answer("@", Type.NS).contains("ns2." + ORIGIN));
+
+        u = new Update(origin);
+        u.delete(origin, Type.NS);
+        u.delete(origin, Type.SOA);
+        assertEquals(Rcode.NOERROR, send(u));
+        assertEquals(2, store.getZone(ORIGIN).getNs().size());
+        assertEquals(3, serial());
+    }
+
+    @Test
+    void deleteAllAtApexKeepsNsRecordsOfZoneFile() throws Exception {
+        // Zone files may list apex NS records among the records as well
+        JsonZone z = store.getZone(ORIGIN).copy();
+        z.getRecords().add(new JsonRecord("@", "NS", 60, "ns3." + ORIGIN, null));
+        z.getRecords().add(new JsonRecord("@", "A", 60, "10.0.0.100", null));
+        writer.submit(ORIGIN, List.of(ZoneWriter.Change.putZone(z))).get();
+
+        Update u = new Update(origin);
+        u.delete(origin);
+        assertEquals(Rcode.NOERROR, send(u));
+        assertEquals(List.of(), records("@", "A"));
+        assertEquals(1, records("@", "NS").size());
+    }
+
+    @Test
+    void lastApexNsNotDeleted() throws IOException {
+        Update u = new Update(origin);
+        u.delete(new NSRecord(origin, DClass.IN, 0, name("ns1")));
+        assertEquals(Rcode.NOERROR, send(u));
+        assertEquals(List.of("ns1." + ORIGIN), store.getZone(ORIGIN).getNs());
+        assertEquals(1, serial());
+
+        // With a second one it can go
+        u = new Update(origin);
+        u.add(origin, Type.NS, 60, "ns2." + ORIGIN);
+        assertEquals(Rcode.NOERROR, send(u));
+        u = new Update(origin);
+        u.delete(new NSRecord(origin, DClass.IN, 0, name("ns1")));
+        u.delete(new NSRecord(origin, DClass.IN, 0, name("ns2")));
+        assertEquals(Rcode.NOERROR, send(u));
+        assertEquals(List.of("ns2." + ORIGIN), store.getZone(ORIGIN).getNs());
+    }
+
+    @Test
+    void soaWithLowerSerialIgnored() throws IOException {
+        JsonZone before = store.getZone(ORIGIN);
+        Update u = new Update(origin);
+        u.add(soa(0, "other." + ORIGIN));
+        assertEquals(Rcode.NOERROR, send(u));
+        assertEquals(1, serial());
+        assertEquals(before.getAdmin(), store.getZone(ORIGIN).getAdmin());
+
+        // Along with other changes the serial is incremented as usual
+        u = new Update(origin);
+        u.add(soa(1, "other." + ORIGIN));
+        u.add(name("api"), Type.A, 120, "10.0.0.9");
+        assertEquals(Rcode.NOERROR, send(u));
+        assertEquals(2, serial());
+        assertEquals(before.getAdmin(), store.getZone(ORIGIN).getAdmin());
+    }
+
+    @Test
+    void soaWithHigherSerialTaken() throws IOException {
+        Update u = new Update(origin);
+        u.add(soa(100, "other." + ORIGIN));
+        u.add(name("api"), Type.A, 120, "10.0.0.9");
+        assertEquals(Rcode.NOERROR, send(u));
+        JsonZone z = store.getZone(ORIGIN);
+        assertEquals(100, z.getSerial());
+        assertEquals("other." + ORIGIN, z.getAdmin());
+        assertEquals(7200, z.getRefresh());
+        assertTrue(answer("@", Type.SOA).contains(" 100 "));
+    }
+
+    @Test
+    void ttlChangeReplacesRecord() throws IOException {
+        Update u = new Update(origin);
+        u.add(name("www"), Type.A, 600, "10.0.0.1");
+        assertEquals(Rcode.NOERROR, send(u));
+        List<JsonRecord> www = records("www", "A");
+        assertEquals(2, www.size());
+        assertEquals(600, www.stream().filter(r -> r.getData().equals("10.0.0.1")).findFirst().orElseThrow().getTtl());
+        assertEquals(2, serial());
+
+        // The same TTL again changes nothing
+        u = new Update(origin);
+        u.add(name("www"), Type.A, 600, "10.0.0.1");
+        assertEquals(Rcode.NOERROR, send(u));
+        assertEquals(2, serial());
+    }
+
+    @Test
+    void deleteSingleRecord() throws IOException {
+        Update u = new Update(origin);
+        u.delete(a("www", "10.0.0.1"));
+        assertEquals(Rcode.NOERROR, send(u));
+        List<JsonRecord> www = records("www", "A");
+        assertEquals(1, www.size());
+        assertEquals("10.0.0.2", www.get(0).getData());
+        String answer = answer("www", Type.A);
+        assertTrue(answer.contains("10.0.0.2"));
+        assertFalse(answer.contains("10.0.0.1"));
+
+        // A record that is not there changes nothing
+        u = new Update(origin);
+        u.delete(a("www", "10.0.0.3"));
+        assertEquals(Rcode.NOERROR, send(u));
+        assertEquals(2, serial());
+    }
+
+    private int send(Message m) throws IOException {
+        m.setTSIG(key);
+        byte[] wire = m.toWire(65535);
+        return new Message(updates.update(wire, wire.length, CLIENT)).getRcode();
+    }
+
+    private String answer(String label, int type) throws IOException {
+        Message q = Message.newQuery(Record.newRecord(name(label), type, DClass.IN));
+        byte[] wire = q.toWire();
+        WireQuery query = new WireQuery();
+        assertTrue(query.parse(wire, wire.length));
+        return new Message(engine.answer(query, CLIENT, false)).toString();
+    }
+
+    private void assertUnchanged() {
+        JsonZone z = store.getZone(ORIGIN);
+        assertEquals(1, z.getSerial());
+        assertEquals(3, z.getRecords().size());
+        assertFalse(z.getRecords().stream().anyMatch(r -> r.getName().equals("api")));
+    }
+
+    private List<JsonRecord> records(String label, String type) {
+        return store.getZone(ORIGIN).getRecords().stream()
+                .filter(r -> r.getName().equals(label) && r.getType().equals(type))
+                .toList();
+    }
+
+    private SOARecord soa(long serial, String admin) throws IOException {
+        return new SOARecord(origin, DClass.IN, 300, name("ns1"), Name.fromString(admin), serial, 7200, 900, 604800,
+                300);
+    }
+
+    private long serial() {
+        return store.getZone(ORIGIN).getSerial();
+    }
+
+    private Name name(String label) throws IOException {
+        return Name.fromString(label, origin);
+    }
+
+    private ARecord a(String label, String address) throws IOException {
+        return new ARecord(name(label), DClass.IN, 0, InetAddress.getByName(address));
+    }
+}
@@ -0,0 +1,36 @@
+package de.herpersolutions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import de.herpersolutions.Zones.JsonRecord;
+import de.herpersolutions.Zones.JsonZone;
+
+/**
+ * Zone data shared by the tests.
+ */
+public final class TestZones {
+    private TestZones() {
+    }
+
+    /**
+     * A small zone with an A record, a CNAME to it, an MX with in-zone glue and two NS hosts.
+     */
+    public static JsonZone exampleZone(String origin) {
+        JsonZone z = new JsonZone();
+        z.setOrigin(origin);
+        z.setAdmin("hostmaster." + origin);
+        z.setNs(new ArrayList<>(Arrays.asList("ns1." + origin, "ns2." + origin)));
+        z.setRecords(new ArrayList<>(Arrays.asList(
+                new JsonRecord("@", "A", 60, "192.0.2.1", null),
+                new JsonRecord("www", "A", 300, "192.0.2.10", null),
+                new JsonRecord("www", "AAAA", 300, "2001:db8::10", null),
+                new JsonRecord("alias", "CNAME", 300, "www." + origin, null),
+                new JsonRecord("@", "MX", 300, "mail." + origin, 10),
+                new JsonRecord("mail", "A", 300, "192.0.2.25", null),
+                new JsonRecord("ns1", "A", 300, "192.0.2.53", null),
+                new JsonRecord("ns2", "A", 300, "192.0.2.54", null),
+                new JsonRecord("@", "TXT", 300, "v=spf1 mx -all", null))));
+        return z;
+    }
+}
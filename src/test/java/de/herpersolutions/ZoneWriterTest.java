@@ -0,0 +1,216 @@
+package de.herpersolutions;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import de.herpersolutions.Zones.JsonRecord;
+import de.herpersolutions.Zones.JsonZone;
+import de.herpersolutions.Zones.ZoneStore;
+import de.herpersolutions.engine.AuthoritativeEngine;
+import de.herpersolutions.monitoring.DnsMetrics;
+import de.herpersolutions.monitoring.QueryLog;
+
+/**
+ * Replay of the write-ahead log after a crash, simulated by copying the data
+ * directory while the writer runs, and compaction of the log into the zone
+ * files.
+ */
+class ZoneWriterTest {
+    private static final String ORIGIN = "zone1.test.";
+    // Compaction only when a test closes the writer
+    private static final long COMPACT_INTERVAL_MS = 600_000;
+
+    @TempDir
+    Path dir;
+    @TempDir
+    Path crashed;
+
+    private ZoneStore store;
+    private ZoneWriter writer;
+    private Path file;
+    private String fileBefore;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        new ZoneStore(dir).replaceZone(TestZones.exampleZone(ORIGIN));
+        // Loaded from its file, as at startup
+        store = new ZoneStore(dir);
+        store.loadAll();
+        writer = new ZoneWriter(store, engine(store), 100, COMPACT_INTERVAL_MS);
+        file = dir.resolve("zone1_test_.zone.json");
+        fileBefore = Files.readString(file);
+    }
+
+    @AfterEach
+    void tearDown() {
+        writer.close();
+    }
+
+    @Test
+    void changesAreLoggedNotWritten() throws Exception {
+        JsonZone z = add("api", "192.0.2.80");
+        assertEquals(2, z.getSerial());
+        assertEquals(fileBefore, Files.readString(file));
+        // More than the segment header
+        assertTrue(walSize(dir) > 8);
+    }
+
+    @Test
+    void reloadKeepsLoggedChanges() throws Exception {
+        add("api", "192.0.2.80");
+        store.reloadZone(ORIGIN);
+        store.reloadFiles(List.of(file));
+        store.loadAll();
+        JsonZone z = store.getZone(ORIGIN);
+        assertEquals(2, z.getSerial());
+        assertTrue(hasRecord(z, "api"));
+
+        writer.close();
+        ZoneStore reloaded = new ZoneStore(dir);
+        reloaded.loadAll();
+        assertTrue(hasRecord(reloaded.getZone(ORIGIN), "api"));
+    }
+
+    @Test
+    void reloadTakesEditedFile() throws Exception {
+        add("api", "192.0.2.80");
+        JsonZone edited = TestZones.exampleZone(ORIGIN);
+        edited.setSerial(10);
+        new ZoneStore(crashed).replaceZone(edited);
+        Files.copy(crashed.resolve(file.getFileName()), file, StandardCopyOption.REPLACE_EXISTING);
+
+        store.reloadZone(ORIGIN);
+        JsonZone z = store.getZone(ORIGIN);
+        assertEquals(10, z.getSerial());
+        assertFalse(hasRecord(z, "api"));
+    }
+
+    @Test
+    void closeWritesZoneFilesAndEmptiesLog() throws Exception {
+        add("api", "192.0.2.80");
+        writer.close();
+        assertNotEquals(fileBefore, Files.readString(file));
+        assertEquals(0, walFiles(dir));
+
+        ZoneStore reloaded = new ZoneStore(dir);
+        reloaded.loadAll();
+        JsonZone z = reloaded.getZone(ORIGIN);
+        assertEquals(2, z.getSerial());
+        assertTrue(hasRecord(z, "api"));
+    }
+
+    @Test
+    void replaysAfterCrash() throws Exception {
+        add("api", "192.0.2.80");
+        add("api2", "192.0.2.81");
+        crash();
+
+        ZoneStore restarted = restart();
+        JsonZone z = restarted.getZone(ORIGIN);
+        assertEquals(3, z.getSerial());
+        assertTrue(hasRecord(z, "api"));
+        assertTrue(hasRecord(z, "api2"));
+    }
+
+    @Test
+    void replaysZoneDeletion() throws Exception {
+        writer.submit(ORIGIN, List.of(ZoneWriter.Change.deleteZone(ORIGIN))).get();
+        crash();
+        assertNull(restart().getZone(ORIGIN));
+    }
+
+    @Test
+    void dropsTornBatch() throws Exception {
+        add("api", "192.0.2.80");
+        crash();
+        // A batch whose write was cut short: a length promising more than is there
+        try (Stream<Path> s = Files.list(crashed.resolve("wal"))) {
+            Path last = s.sorted().reduce((a, b) -> b).orElseThrow();
+            Files.write(last, new byte[] { 0, 0, 1, 0, 1, 2, 3, 4, '{' }, StandardOpenOption.APPEND);
+        }
+
+        JsonZone z = restart().getZone(ORIGIN);
+        assertEquals(2, z.getSerial());
+        assertTrue(hasRecord(z, "api"));
+    }
+
+    @Test
+    void skipsChangesAlreadyInZoneFile() throws Exception {
+        add("api", "192.0.2.80");
+        crash();
+        writer.submit(ORIGIN, List.of(ZoneWriter.Change.remove(ORIGIN, "api", "A", List.of()))).get();
+        // The crash came after compaction wrote the file but before it deleted the log
+        writer.close();
+        Files.copy(file, crashed.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+
+        JsonZone z = restart().getZone(ORIGIN);
+        assertEquals(3, z.getSerial());
+        assertFalse(hasRecord(z, "api"));
+    }
+
+    private JsonZone add(String name, String address) throws InterruptedException, ExecutionException {
+        return writer.submit(ORIGIN, List.of(ZoneWriter.Change.add(ORIGIN,
+                List.of(new JsonRecord(name, "A", 300, address, null))))).get();
+    }
+
+    /** Copies the data directory as it is on disk, log included. */
+    private void crash() throws IOException {
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) s::iterator) {
+                Path target = crashed.resolve(dir.relativize(p).toString());
+                if (Files.isDirectory(p))
+                    Files.createDirectories(target);
+                else
+                    Files.copy(p, target);
+            }
+        }
+    }
+
+    /** Starts on the copied directory and returns its store once the log is replayed. */
+    private ZoneStore restart() throws IOException {
+        ZoneStore restarted = new ZoneStore(crashed);
+        restarted.loadAll();
+        ZoneWriter w = new ZoneWriter(restarted, engine(restarted), 100, COMPACT_INTERVAL_MS);
+        w.close();
+        return restarted;
+    }
+
+    private static AuthoritativeEngine engine(ZoneStore store) throws IOException {
+        DnsMetrics metrics = new DnsMetrics();
+        return new AuthoritativeEngine(store, metrics, null, null, new QueryLog(metrics, 0, 1024, 0, null), null,
+                1232, false);
+    }
+
+    private static boolean hasRecord(JsonZone z, String name) {
+        return z.getRecords().stream().anyMatch(r -> r.getName().equals(name));
+    }
+
+    private static long walSize(Path dir) throws IOException {
+        try (Stream<Path> s = Files.list(dir.resolve("wal"))) {
+            return s.mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    private static long walFiles(Path dir) throws IOException {
+        try (Stream<Path> s = Files.list(dir.resolve("wal"))) {
+            return s.count();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package de.herpersolutions.engine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.ExtendedFlags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import de.herpersolutions.TestZones;
+import de.herpersolutions.Zones.JsonRecord;
+import de.herpersolutions.Zones.JsonZone;
+import de.herpersolutions.Zones.ZoneStore;
+import de.herpersolutions.monitoring.DnsMetrics;
+import de.herpersolutions.monitoring.QueryLog;
+
+/**
+ * Differential test of the response encoder against dnsjava: runs a corpus
+ * of queries (every record type, wildcards, CNAME chains, NXDOMAIN, NODATA,
+ * EDNS with and without DO, mixed case, answers large enough that names fall
+ * beyond compression pointer range) with encoder verification on and expects
+ * every response to match byte for byte.
+ */
+class ResponseEncoderTest {
+    private static final int[] TYPES = { Type.A, Type.AAAA, Type.MX, Type.NS, Type.SOA, Type.TXT, Type.CNAME, Type.ANY };
+    // No OPT record, EDNS without and with the DO bit
+    private static final int[] EDNS_FLAGS = { -1, 0, ExtendedFlags.DO };
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void matchesDnsjava() throws IOException {
+        List<JsonZone> zones = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            zones.add(TestZones.exampleZone("zone" + i + ".test."));
+        zones.add(edgeZone());
+        ZoneStore store = new ZoneStore(dir);
+        store.putZones(zones);
+
+        DnsMetrics metrics = new DnsMetrics();
+        QueryLog queryLog = new QueryLog(metrics, 0, 1024, 0, null);
+        AuthoritativeEngine engine = new AuthoritativeEngine(store, metrics, null, null, queryLog, null, 1232, false);
+        engine.setVerifyEncoder(true);
+        InetAddress client = InetAddress.getByName("198.51.100.7");
+
+        List<String> names = new ArrayList<>(List.of("zone1.test.", "www.zone1.test.", "alias.zone1.test.",
+                "mail.zone1.test.", "nothere.zone1.test.", "www.not-served.example.", "edge.test.",
+                "anything.edge.test.", "x.y.edge.test.", "host.wild.edge.test.", "chain1.edge.test.",
+                "loop1.edge.test.", "out.edge.test.", "dangling.edge.test.", "deleg.edge.test.",
+                "b.c.edge.test.", "a.b.c.edge.test.", "mixed.edge.test.", "big.edge.test.", "bigmx.edge.test."));
+        for (String n : List.copyOf(names))
+            names.add(n.toUpperCase(Locale.ROOT));
+
+        WireQuery query = new WireQuery();
+        for (String n : names) {
+            for (int type : TYPES) {
+                for (int edns : EDNS_FLAGS) {
+                    byte[] wire = query(n, type, 0, edns);
+                    assertTrue(query.parse(wire, wire.length), n);
+                    assertNotNull(engine.answer(query, client, false), n);
+                }
+            }
+        }
+        // Unsupported EDNS version
+        byte[] badvers = query("www.zone1.test.", Type.A, 1, 0);
+        assertTrue(query.parse(badvers, badvers.length));
+        engine.answer(query, client, false);
+        queryLog.close();
+
+        assertEquals(0, engine.encoderMismatches());
+    }
+
+    /**
+     * @param flags EDNS flags, or -1 for a query without an OPT record
+     */
+    private static byte[] query(String name, int type, int version, int flags) throws IOException {
+        Message q = Message.newQuery(Record.newRecord(Name.fromString(name), type, DClass.IN));
+        if (flags >= 0)
+            q.addRecord(new OPTRecord(1232, 0, version, flags), Section.ADDITIONAL);
+        return q.toWire();
+    }
+
+    private static JsonZone edgeZone() {
+        JsonZone z = TestZones.exampleZone("edge.test.");
+        List<JsonRecord> r = z.getRecords();
+        r.add(new JsonRecord("*", "A", 60, "192.0.2.99", null));
+        r.add(new JsonRecord("*", "TXT", 60, "wildcard", null));
+        r.add(new JsonRecord("*.wild", "CNAME", 60, "www.zone1.test.", null));
+        r.add(new JsonRecord("chain1", "CNAME", 60, "chain2.edge.test.", null));
+        r.add(new JsonRecord("chain2", "CNAME", 60, "alias.zone2.test.", null));
+        r.add(new JsonRecord("loop1", "CNAME", 60, "loop2.edge.test.", null));
+        r.add(new JsonRecord("loop2", "CNAME", 60, "loop1.edge.test.", null));
+        r.add(new JsonRecord("out", "CNAME", 60, "www.elsewhere.example.", null));
+        r.add(new JsonRecord("dangling", "CNAME", 60, "nothere.zone3.test.", null));
+        r.add(new JsonRecord("deleg", "NS", 60, "ns1.zone3.test.", null));
+        r.add(new JsonRecord("a.b.c", "A", 60, "192.0.2.7", null));
+        r.add(new JsonRecord("MiXeD", "A", 60, "192.0.2.8", null));
+        r.add(new JsonRecord("@", "MX", 20, "mail.zone4.test.", 20));
+        // Past 0x3FFF bytes names can no longer be pointed to
+        for (int i = 0; i < 1100; i++)
+            r.add(new JsonRecord("big", "A", 60, "198.51." + (i / 256) + "." + (i % 256), null));
+        for (int i = 0; i < 800; i++) {
+            r.add(new JsonRecord("bigmx", "MX", 60, "mx" + i + ".edge.test.", i));
+            r.add(new JsonRecord("mx" + i, "A", 60, "203.0." + (i / 256) + "." + (i % 256), null));
+        }
+        return z;
+    }
+}